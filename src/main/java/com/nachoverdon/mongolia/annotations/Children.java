@@ -14,4 +14,14 @@ public @interface Children {
    * @return the type of the node.
    */
   Class<?> typeOf();
+
+  /**
+   * Whether the children must be mapped on first access instead of along with their parent. The
+   * field will hold a Collection that only keeps the identifier of the parent node until it is
+   * read, with the permissions of the user that mapped the parent. Beans with lazy children are
+   * not cached by {@code Node2Bean.toCachedBean}.
+   *
+   * @return true to map the children lazily.
+   */
+  boolean lazy() default false;
 }
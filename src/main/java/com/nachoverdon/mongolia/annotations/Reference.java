@@ -0,0 +1,26 @@
+package com.nachoverdon.mongolia.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Reference {
+  /**
+   * The workspace of the referenced nodes. Ex: "dam"
+   *
+   * @return the workspace of the referenced nodes.
+   */
+  String workspace();
+
+  /**
+   * The type of the referenced nodes. If the field is a Collection, the property can hold several
+   * identifiers, and the field receives a collection of its declared type, like a LinkedHashSet
+   * for a Set.
+   *
+   * @return the type of the referenced nodes.
+   */
+  Class<?> typeOf();
+}
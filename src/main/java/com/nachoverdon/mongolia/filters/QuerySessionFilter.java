@@ -0,0 +1,53 @@
+package com.nachoverdon.mongolia.filters;
+
+import com.nachoverdon.mongolia.utils.QuerySessions;
+import info.magnolia.cms.filters.OncePerRequestAbstractMgnlFilter;
+import java.io.IOException;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Opens a {@link QuerySessions} scope for each request, so the queries of
+ * {@link com.nachoverdon.mongolia.utils.QueryUtils} reuse the same session and query manager
+ * during the whole request, and closes it when the request ends. Add it to your Magnolia
+ * configuration on:
+ * <pre>{@code
+ *  config:
+ *    server:
+ *      filters:
+ *        cms:
+ *          # Make sure to put it BEFORE the "rendering" filter
+ *          querySessions:
+ *            class: com.nachoverdon.mongolia.filters.QuerySessionFilter
+ *            enabled: true
+ *            # Optional, to run the queries with the session of the current user
+ *            userSessions: true
+ * }</pre>
+ */
+public class QuerySessionFilter extends OncePerRequestAbstractMgnlFilter {
+  private boolean userSessions = false;
+
+  @Override
+  public void doFilter(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    try (QuerySessions sessions = userSessions ? QuerySessions.openForUser()
+        : QuerySessions.open()) {
+      chain.doFilter(request, response);
+    }
+  }
+
+  public boolean isUserSessions() {
+    return userSessions;
+  }
+
+  /**
+   * Sets whether the queries run with the session of the current user instead of the system one.
+   *
+   * @param userSessions Whether the sessions of the user are used
+   */
+  public void setUserSessions(boolean userSessions) {
+    this.userSessions = userSessions;
+  }
+}
@@ -0,0 +1,488 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import info.magnolia.observation.WorkspaceEventListenerRegistration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A bounded LRU cache of beans mapped by {@link Node2Bean}, keyed by workspace, node identifier,
+ * user, language and bean class. Each user gets its own beans, since the Nodes a bean holds, like
+ * its children and references, depend on what the user can read.
+ * <p>
+ * The cache remembers the paths of the Nodes each bean was mapped from, including the referenced
+ * ones of other workspaces, like the assets of the "dam" workspace. The first time a workspace is
+ * used, a JCR observation listener is registered on it, and every change of a node evicts the
+ * beans mapped from that node, from any of its ancestors, since their children may have changed,
+ * or from any of its descendants, since they may have been moved or removed along with it. Beans
+ * are only cached once all their workspaces are observed.
+ * </p>
+ * <p>
+ * Cached beans are shared between requests, so they must be treated as read-only. Beans with
+ * {@link com.nachoverdon.mongolia.annotations.Children} fields mapped lazily are never cached,
+ * since their children are read with the session of the user that mapped them. Refer to
+ * {@link LazyChildrenCollection}.
+ * </p>
+ * <p>
+ * The listeners are unregistered by {@link #shutdown()}, which
+ * {@link com.nachoverdon.mongolia.setup.MongoliaModule} calls when the module stops.
+ * </p>
+ */
+@Slf4j
+public class BeanCache {
+
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  private static final BeanCache INSTANCE = new BeanCache(DEFAULT_MAX_SIZE);
+
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+  private final int maxSize;
+  private final Map<Key, Entry> entries;
+  // The keys of the entries by workspace and path of the Nodes they depend on, guarded by entries
+  private final Map<String, NavigableMap<String, Set<Key>>> index = new HashMap<>();
+  private final Map<String, WorkspaceEventListenerRegistration.Handle> listeners =
+      new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * Creates a cache that holds at most the given amount of beans.
+   *
+   * @param maxSize The maximum amount of beans
+   */
+  public BeanCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        if (size() > BeanCache.this.maxSize) {
+          evictions.incrementAndGet();
+          unindex(eldest.getKey(), eldest.getValue());
+
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Gets the cache shared by {@link Node2Bean#toCachedBean(Node, Class, String)}.
+   *
+   * @return The shared cache
+   */
+  public static BeanCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets the bean mapped from the Node, mapping and caching it if it is not cached yet.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @return An object of the given class type.
+   */
+  @Nullable
+  public <T> T get(Node node, Class<T> clazz, @Nullable String lang) {
+    MappingContext context = MappingContext.create(lang);
+
+    try {
+      Session session = node.getSession();
+      String workspace = session.getWorkspace().getName();
+      Key key = new Key(workspace, node.getIdentifier(), session.getUserID(),
+          context.getLanguage(), clazz);
+      Entry entry;
+
+      synchronized (entries) {
+        entry = entries.get(key);
+      }
+
+      if (entry != null) {
+        hits.incrementAndGet();
+
+        return clazz.cast(entry.bean);
+      }
+
+      misses.incrementAndGet();
+
+      boolean cacheable = observe(workspace);
+      // Any invalidation while the bean is mapped may leave it stale
+      long invalidationsBefore = invalidations.get();
+
+      context.trackDependencies();
+
+      T bean = Node2Bean.mapNode(node, clazz, context);
+      Map<String, Set<String>> dependencies = context.getDependencies();
+
+      // The changes of a workspace observed only after mapping the bean may have been missed
+      for (String dependency : dependencies.keySet()) {
+        if (!listeners.containsKey(dependency)) {
+          observe(dependency);
+          cacheable = false;
+        }
+      }
+
+      if (bean != null && cacheable && !context.hasLazyChildren()) {
+        synchronized (entries) {
+          if (invalidations.get() == invalidationsBefore) {
+            Entry added = new Entry(dependencies, bean);
+            Entry previous = entries.put(key, added);
+
+            if (previous != null) {
+              unindex(key, previous);
+            }
+
+            index(key, added);
+          }
+        }
+      }
+
+      return bean;
+    } catch (RepositoryException e) {
+      log.error(e.getMessage(), e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Evicts the beans mapped from the Node at the given path, from any of its ancestors or from any
+   * of its descendants.
+   *
+   * @param workspace The workspace of the Node
+   * @param path The path of the Node
+   */
+  public void invalidate(String workspace, String path) {
+    invalidate(workspace, Collections.singleton(path));
+  }
+
+  /**
+   * Evicts the beans mapped from the Nodes at the given paths, from any of their ancestors or from
+   * any of their descendants, at once.
+   *
+   * @param workspace The workspace of the Nodes
+   * @param paths The paths of the Nodes
+   */
+  public void invalidate(String workspace, Collection<String> paths) {
+    invalidations.incrementAndGet();
+
+    synchronized (entries) {
+      NavigableMap<String, Set<Key>> workspaceIndex = index.get(workspace);
+
+      if (workspaceIndex == null) {
+        return;
+      }
+
+      Set<Key> keys = new HashSet<>();
+
+      for (String path : paths) {
+        addDependents(workspaceIndex, path, keys);
+      }
+
+      for (Key key : keys) {
+        Entry entry = entries.remove(key);
+
+        if (entry != null) {
+          unindex(key, entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts every bean.
+   */
+  public void clear() {
+    invalidations.incrementAndGet();
+
+    synchronized (entries) {
+      entries.clear();
+      index.clear();
+    }
+  }
+
+  /**
+   * Evicts every bean and unregisters the observation listeners.
+   */
+  public void shutdown() {
+    List<String> workspaces = new ArrayList<>(listeners.keySet());
+
+    for (String workspace : workspaces) {
+      WorkspaceEventListenerRegistration.Handle handle = listeners.remove(workspace);
+
+      try {
+        if (handle != null) {
+          handle.unregister();
+        }
+      } catch (RepositoryException e) {
+        log.error("Cannot unregister the bean cache listener of workspace [" + workspace + "]", e);
+      }
+    }
+
+    clear();
+  }
+
+  /**
+   * Gets the statistics of the cache since it was created.
+   *
+   * @return The statistics
+   */
+  public Stats getStats() {
+    int size;
+
+    synchronized (entries) {
+      size = entries.size();
+    }
+
+    return new Stats(hits.get(), misses.get(), evictions.get(), invalidations.get(), size);
+  }
+
+  /**
+   * Registers an observation listener on the whole workspace.
+   *
+   * @param workspace The workspace to observe
+   * @param listener The listener that evicts the beans of the workspace
+   * @return The handle of the registration
+   * @throws RepositoryException If the workspace cannot be observed.
+   */
+  protected WorkspaceEventListenerRegistration.Handle register(String workspace,
+                                                               EventListener listener)
+      throws RepositoryException {
+    return WorkspaceEventListenerRegistration.observe(workspace, "/", listener)
+        .withSubNodes(true)
+        .withEventTypesMask(EVENT_TYPES)
+        .register();
+  }
+
+  /**
+   * Observes the workspace, unless it is already observed.
+   *
+   * @return Whether the workspace is observed
+   */
+  private boolean observe(String workspace) {
+    if (listeners.containsKey(workspace)) {
+      return true;
+    }
+
+    synchronized (listeners) {
+      if (listeners.containsKey(workspace)) {
+        return true;
+      }
+
+      try {
+        listeners.put(workspace, register(workspace, new InvalidationListener(workspace)));
+
+        return true;
+      } catch (RepositoryException e) {
+        log.error("Cannot observe workspace [" + workspace + "], its beans won't be cached", e);
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Adds the keys of the entries that depend on the path: the ones mapped from the Node itself,
+   * its ancestors and its descendants.
+   */
+  private static void addDependents(NavigableMap<String, Set<Key>> paths, String path,
+                                    Set<Key> keys) {
+    for (String ancestor = path; ancestor != null; ancestor = getParent(ancestor)) {
+      Set<Key> dependents = paths.get(ancestor);
+
+      if (dependents != null) {
+        keys.addAll(dependents);
+      }
+    }
+
+    // '0' follows '/', so the range holds every descendant
+    String prefix = "/".equals(path) ? "/" : path + "/";
+
+    paths.subMap(prefix, false, prefix.substring(0, prefix.length() - 1) + "0", false).values()
+        .forEach(keys::addAll);
+  }
+
+  @Nullable
+  private static String getParent(String path) {
+    if ("/".equals(path)) {
+      return null;
+    }
+
+    int separator = path.lastIndexOf('/');
+
+    return separator <= 0 ? "/" : path.substring(0, separator);
+  }
+
+  private void index(Key key, Entry entry) {
+    entry.dependencies.forEach((workspace, paths) -> {
+      NavigableMap<String, Set<Key>> workspaceIndex =
+          index.computeIfAbsent(workspace, w -> new TreeMap<>());
+
+      for (String path : paths) {
+        workspaceIndex.computeIfAbsent(path, p -> new HashSet<>()).add(key);
+      }
+    });
+  }
+
+  private void unindex(Key key, Entry entry) {
+    entry.dependencies.forEach((workspace, paths) -> {
+      NavigableMap<String, Set<Key>> workspaceIndex = index.get(workspace);
+
+      if (workspaceIndex == null) {
+        return;
+      }
+
+      for (String path : paths) {
+        Set<Key> keys = workspaceIndex.get(path);
+
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+          workspaceIndex.remove(path);
+        }
+      }
+
+      if (workspaceIndex.isEmpty()) {
+        index.remove(workspace);
+      }
+    });
+  }
+
+  private class InvalidationListener implements EventListener {
+    private final String workspace;
+
+    private InvalidationListener(String workspace) {
+      this.workspace = workspace;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+      Set<String> paths = new HashSet<>();
+
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+
+        try {
+          paths.add(event.getPath());
+
+          if (event.getType() == Event.NODE_MOVED) {
+            Object source = event.getInfo().get("srcAbsPath");
+
+            if (source != null && StringUtils.isNotEmpty(source.toString())) {
+              paths.add(source.toString());
+            }
+          }
+        } catch (RepositoryException e) {
+          log.error("Cannot read an event of workspace [" + workspace + "], clearing the cache", e);
+          clear();
+
+          return;
+        }
+      }
+
+      // A single invalidation covers the whole batch of events
+      if (!paths.isEmpty()) {
+        invalidate(workspace, paths);
+      }
+    }
+  }
+
+  /**
+   * The statistics of a {@link BeanCache}.
+   */
+  @Value
+  public static class Stats {
+    long hits;
+    long misses;
+    long evictions;
+    long invalidations;
+    int size;
+
+    /**
+     * Gets the ratio of requests served from the cache.
+     *
+     * @return A value between 0 and 1
+     */
+    public double getHitRate() {
+      long requests = hits + misses;
+
+      return requests == 0 ? 0 : (double) hits / requests;
+    }
+  }
+
+  private static final class Key {
+    private final String workspace;
+    private final String identifier;
+    @Nullable
+    private final String user;
+    private final String language;
+    private final Class<?> clazz;
+
+    private Key(String workspace, String identifier, @Nullable String user, String language,
+                Class<?> clazz) {
+      this.workspace = workspace;
+      this.identifier = identifier;
+      this.user = user;
+      this.language = language;
+      this.clazz = clazz;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key key = (Key) o;
+
+      return workspace.equals(key.workspace) && identifier.equals(key.identifier)
+          && Objects.equals(user, key.user) && language.equals(key.language)
+          && clazz.equals(key.clazz);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(workspace, identifier, user, language, clazz);
+    }
+  }
+
+  private static final class Entry {
+    private final Map<String, Set<String>> dependencies;
+    private final Object bean;
+
+    private Entry(Map<String, Set<String>> dependencies, Object bean) {
+      this.dependencies = dependencies;
+      this.bean = bean;
+    }
+  }
+}
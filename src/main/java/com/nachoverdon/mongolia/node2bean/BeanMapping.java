@@ -0,0 +1,743 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import com.nachoverdon.mongolia.annotations.Children;
+import com.nachoverdon.mongolia.annotations.Reference;
+import com.nachoverdon.mongolia.annotations.Translatable;
+import com.nachoverdon.mongolia.utils.ReflectionUtils;
+import java.beans.ConstructorProperties;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The mapping plan of a JavaBean class. It holds all the metadata that {@link Node2Bean} needs to
+ * populate a bean from a Node, so the reflection is done only once per class instead of once per
+ * mapped Node. Fields are set through MethodHandles bound to their public setter, if any, or to
+ * the public field itself, so non-public fields with a public setter are mapped as well.
+ * <p>
+ * Beans without a public empty constructor are created through their public constructor annotated
+ * with {@link ConstructorProperties}, or through their only public constructor if the class was
+ * compiled with the "-parameters" flag. Each parameter receives the property with the same name,
+ * translated if the field with that name is {@link Translatable}, or its default value if the Node
+ * doesn't have it.
+ * </p>
+ *
+ * @param <T> The type of the JavaBean
+ */
+@Slf4j
+public final class BeanMapping<T> {
+
+  private static final ClassValue<BeanMapping<?>> MAPPINGS = new ClassValue<BeanMapping<?>>() {
+    @Override
+    protected BeanMapping<?> computeValue(Class<?> type) {
+      return new BeanMapping<>(type);
+    }
+  };
+
+  private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<>();
+
+  static {
+    WRAPPERS.put(boolean.class, Boolean.class);
+    WRAPPERS.put(byte.class, Byte.class);
+    WRAPPERS.put(short.class, Short.class);
+    WRAPPERS.put(char.class, Character.class);
+    WRAPPERS.put(int.class, Integer.class);
+    WRAPPERS.put(long.class, Long.class);
+    WRAPPERS.put(float.class, Float.class);
+    WRAPPERS.put(double.class, Double.class);
+  }
+
+  private static final MethodType SETTER_TYPE =
+      MethodType.methodType(void.class, Object.class, Object.class);
+  private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+  private final Class<T> type;
+  @Nullable
+  private final Constructor<T> constructor;
+  @Nullable
+  private final MethodHandle constructorHandle;
+  @Nullable
+  private final MethodHandle injectionHandle;
+  private final List<ConstructorParameter> constructorParameters;
+  private final Map<String, FieldMapping> fields;
+  private final List<FieldMapping> references;
+  private final ConcurrentMap<String, PropertyNames> propertyNames = new ConcurrentHashMap<>();
+
+  private BeanMapping(Class<T> type) {
+    this.type = type;
+    this.constructor = getEmptyConstructor(type);
+    this.constructorHandle = constructor == null ? null : unreflectConstructor(constructor);
+
+    List<Field> allFields = ReflectionUtils.getAllFields(type);
+    Constructor<?> injectionConstructor = constructor == null
+        ? getInjectionConstructor(type)
+        : null;
+
+    if (injectionConstructor == null) {
+      this.injectionHandle = null;
+      this.constructorParameters = Collections.emptyList();
+
+      if (constructor == null) {
+        log.error("Class " + type.getSimpleName() + " doesn't have an empty constructor nor one "
+            + "whose parameters can be mapped");
+      }
+    } else {
+      this.injectionHandle = unreflectInjectionConstructor(injectionConstructor);
+      this.constructorParameters = getConstructorParameters(injectionConstructor, allFields);
+    }
+
+    Map<String, FieldMapping> fieldMappings = new LinkedHashMap<>();
+
+    for (Field field : allFields) {
+      if (Modifier.isStatic(field.getModifiers())) {
+        continue;
+      }
+
+      MethodHandle setter = unreflectSetter(type, field);
+
+      if (setter != null) {
+        fieldMappings.put(field.getName(), new FieldMapping(field, setter));
+      }
+    }
+
+    this.fields = Collections.unmodifiableMap(fieldMappings);
+    this.references = Collections.unmodifiableList(fieldMappings.values().stream()
+        .filter(FieldMapping::isReference)
+        .collect(Collectors.toList()));
+  }
+
+  /**
+   * Gets a MethodHandle that sets the field, either through its public setter or directly if the
+   * field is public. Non public fields without a setter cannot be mapped.
+   */
+  @Nullable
+  private static MethodHandle unreflectSetter(Class<?> type, Field field) {
+    Method setterMethod = ReflectionUtils.getSetter(type, field);
+
+    if (setterMethod == null && !Modifier.isPublic(field.getModifiers())) {
+      log.debug("Field '" + field.getName() + "' of '" + type.getName()
+          + "' class is not public and has no setter, it will be ignored");
+
+      return null;
+    }
+
+    try {
+      MethodHandle setter = setterMethod != null
+          ? MethodHandles.publicLookup().unreflect(setterMethod)
+          : MethodHandles.publicLookup().unreflectSetter(field);
+
+      return setter.asType(SETTER_TYPE);
+    } catch (IllegalAccessException e) {
+      log.error("Field '" + field.getName() + "' of '" + type.getName()
+          + "' class cannot be accessed", e);
+    }
+
+    return null;
+  }
+
+  @Nullable
+  private static MethodHandle unreflectConstructor(Constructor<?> constructor) {
+    try {
+      return MethodHandles.publicLookup().unreflectConstructor(constructor)
+          .asType(CONSTRUCTOR_TYPE);
+    } catch (IllegalAccessException e) {
+      log.error("Constructor of '" + constructor.getDeclaringClass().getName()
+          + "' class cannot be accessed", e);
+    }
+
+    return null;
+  }
+
+  @Nullable
+  private static MethodHandle unreflectInjectionConstructor(Constructor<?> constructor) {
+    int parameters = constructor.getParameterCount();
+
+    try {
+      return MethodHandles.publicLookup().unreflectConstructor(constructor)
+          .asType(MethodType.genericMethodType(parameters))
+          .asSpreader(Object[].class, parameters);
+    } catch (IllegalAccessException e) {
+      log.error("Constructor of '" + constructor.getDeclaringClass().getName()
+          + "' class cannot be accessed", e);
+    }
+
+    return null;
+  }
+
+  @Nullable
+  @SuppressWarnings("unchecked")
+  private static <T> Constructor<T> getEmptyConstructor(Class<T> type) {
+    for (Constructor<?> candidate : type.getConstructors()) {
+      if (candidate.getParameterCount() == 0) {
+        return (Constructor<T>) candidate;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Gets the public constructor annotated with {@link ConstructorProperties} or, if there is none,
+   * the only public constructor if the names of its parameters were compiled into the class.
+   */
+  @Nullable
+  private static Constructor<?> getInjectionConstructor(Class<?> type) {
+    if (Modifier.isAbstract(type.getModifiers())) {
+      return null;
+    }
+
+    Constructor<?>[] constructors = type.getConstructors();
+
+    for (Constructor<?> candidate : constructors) {
+      if (candidate.getDeclaredAnnotation(ConstructorProperties.class) != null) {
+        return candidate;
+      }
+    }
+
+    if (constructors.length != 1) {
+      return null;
+    }
+
+    for (Parameter parameter : constructors[0].getParameters()) {
+      if (!parameter.isNamePresent()) {
+        return null;
+      }
+    }
+
+    return constructors[0];
+  }
+
+  private static List<ConstructorParameter> getConstructorParameters(Constructor<?> constructor,
+                                                                     List<Field> fields) {
+    ConstructorProperties properties =
+        constructor.getDeclaredAnnotation(ConstructorProperties.class);
+    Parameter[] parameters = constructor.getParameters();
+    List<ConstructorParameter> result = new ArrayList<>(parameters.length);
+
+    for (int i = 0; i < parameters.length; i++) {
+      String name = properties == null ? parameters[i].getName() : properties.value()[i];
+      boolean translatable = fields.stream().anyMatch(field -> field.getName().equals(name)
+          && field.getDeclaredAnnotation(Translatable.class) != null);
+
+      result.add(new ConstructorParameter(name, parameters[i].getType(), translatable));
+    }
+
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Converts a value to the type of a field the same way its setter would, widening primitives
+   * but never narrowing them nor parsing Strings. Used by the generated {@link NodeMapper}s, so
+   * they set the same values as the mapping plan.
+   *
+   * @param value The value to convert
+   * @param type The type of the field
+   * @param fieldName The name of the field, for the error message
+   * @return The converted value, boxed if the type is primitive
+   * @throws IllegalArgumentException If the value cannot be assigned to the field.
+   */
+  @Nullable
+  public static Object adapt(@Nullable Object value, Class<?> type, String fieldName) {
+    return adapt(box(type), value, type, "field", fieldName);
+  }
+
+  /**
+   * Gets the class whose instances can be assigned to the type: its wrapper if it is primitive.
+   */
+  private static Class<?> box(Class<?> type) {
+    return type.isPrimitive() ? WRAPPERS.get(type) : type;
+  }
+
+  /**
+   * Converts a value to the given type. Values that are already instances of the boxed type, which
+   * are most of them, are checked with a single {@link Class#isInstance(Object)}.
+   */
+  @Nullable
+  private static Object adapt(Class<?> boxedType, @Nullable Object value, Class<?> type,
+                              String target, String name) {
+    if (boxedType.isInstance(value)) {
+      return value;
+    }
+
+    Object widened = null;
+
+    if (value == null) {
+      if (!type.isPrimitive()) {
+        return null;
+      }
+    } else if (type.isPrimitive()) {
+      widened = widen(value, type);
+    }
+
+    if (widened == null) {
+      String valueType = value == null ? "null" : value.getClass().getName();
+
+      throw new IllegalArgumentException("Cannot set " + valueType + " value to " + target + " '"
+          + name + "' of type " + type.getName());
+    }
+
+    return widened;
+  }
+
+  /**
+   * Applies a widening primitive conversion (JLS 5.1.2) to a boxed value.
+   *
+   * @return The widened value, boxed, or null if the value cannot be widened to the type
+   */
+  @Nullable
+  private static Object widen(Object value, Class<?> type) {
+    if (value instanceof Character) {
+      char character = (Character) value;
+
+      if (type == int.class) {
+        return (int) character;
+      } else if (type == long.class) {
+        return (long) character;
+      } else if (type == float.class) {
+        return (float) character;
+      } else if (type == double.class) {
+        return (double) character;
+      }
+
+      return null;
+    }
+
+    if (!(value instanceof Byte || value instanceof Short || value instanceof Integer
+        || value instanceof Long || value instanceof Float)) {
+      return null;
+    }
+
+    Number number = (Number) value;
+    boolean integral = !(value instanceof Float);
+
+    if (type == double.class) {
+      return number.doubleValue();
+    } else if (type == float.class && integral) {
+      return number.floatValue();
+    } else if (type == long.class && integral && !(value instanceof Long)) {
+      return number.longValue();
+    } else if (type == int.class && (value instanceof Byte || value instanceof Short)) {
+      return number.intValue();
+    } else if (type == short.class && value instanceof Byte) {
+      return number.shortValue();
+    }
+
+    return null;
+  }
+
+  /**
+   * Gets the mapping plan of the given class. It is built the first time it is requested and reused
+   * afterwards.
+   *
+   * @param clazz The class of the JavaBean
+   * @param <T> The type of the JavaBean
+   * @return The mapping plan of the class
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> BeanMapping<T> of(Class<T> clazz) {
+    return (BeanMapping<T>) MAPPINGS.get(clazz);
+  }
+
+  /**
+   * Gets the class of the JavaBean.
+   *
+   * @return The class of the JavaBean
+   */
+  public Class<T> getType() {
+    return type;
+  }
+
+  /**
+   * Gets the empty constructor of the JavaBean.
+   *
+   * @return The empty constructor or null if the class doesn't have one
+   */
+  @Nullable
+  public Constructor<T> getConstructor() {
+    return constructor;
+  }
+
+  /**
+   * Checks if the JavaBean can be instantiated, either with its public empty constructor or with
+   * the one whose parameters are mapped.
+   *
+   * @return true if {@link #newInstance()} or {@link #newInstance(Object[])} can be used
+   */
+  public boolean isInstantiable() {
+    return constructorHandle != null || injectionHandle != null;
+  }
+
+  /**
+   * Gets the parameters of the constructor that receives the properties of the Node, in order.
+   *
+   * @return The parameters, empty if the JavaBean is created with its empty constructor
+   */
+  public List<ConstructorParameter> getConstructorParameters() {
+    return constructorParameters;
+  }
+
+  /**
+   * Creates a new instance of the JavaBean with its empty constructor.
+   *
+   * @return A new instance of the JavaBean
+   * @throws InstantiationException If the class doesn't have an accessible empty constructor.
+   * @throws InvocationTargetException If the constructor throws an exception.
+   */
+  public T newInstance() throws InstantiationException, InvocationTargetException {
+    if (constructorHandle == null) {
+      throw new InstantiationException("Class " + type.getName()
+          + " doesn't have an accessible empty constructor");
+    }
+
+    try {
+      return type.cast((Object) constructorHandle.invokeExact());
+    } catch (Throwable e) {
+      throw new InvocationTargetException(e);
+    }
+  }
+
+  /**
+   * Creates a new instance of the JavaBean with the constructor whose parameters are mapped. Refer
+   * to {@link #getConstructorParameters()}.
+   *
+   * @param arguments The values of the parameters, in order. Null values of primitive parameters
+   *                  are replaced by their default value.
+   * @return A new instance of the JavaBean
+   * @throws InstantiationException If the class doesn't have such a constructor.
+   * @throws InvocationTargetException If the constructor throws an exception.
+   * @throws IllegalArgumentException If a value cannot be assigned to its parameter.
+   */
+  public T newInstance(Object[] arguments) throws InstantiationException,
+      InvocationTargetException {
+    if (injectionHandle == null) {
+      throw new InstantiationException("Class " + type.getName()
+          + " doesn't have an accessible constructor whose parameters can be mapped");
+    }
+
+    if (arguments.length != constructorParameters.size()) {
+      throw new IllegalArgumentException("Constructor of " + type.getName() + " takes "
+          + constructorParameters.size() + " arguments, not " + arguments.length);
+    }
+
+    Object[] adapted = new Object[arguments.length];
+
+    for (int i = 0; i < arguments.length; i++) {
+      adapted[i] = constructorParameters.get(i).adapt(arguments[i]);
+    }
+
+    try {
+      return type.cast((Object) injectionHandle.invokeExact(adapted));
+    } catch (Throwable e) {
+      throw new InvocationTargetException(e);
+    }
+  }
+
+  /**
+   * Gets the names of the fields that can be mapped.
+   *
+   * @return A collection of field names
+   */
+  public Collection<String> getFieldNames() {
+    return fields.keySet();
+  }
+
+  /**
+   * Gets all the mappable fields, in declaration order.
+   *
+   * @return A collection of field mappings
+   */
+  public Collection<FieldMapping> getFields() {
+    return fields.values();
+  }
+
+  /**
+   * Gets the fields annotated with {@link Reference}.
+   *
+   * @return A list of field mappings
+   */
+  public List<FieldMapping> getReferences() {
+    return references;
+  }
+
+  /**
+   * Gets the mapping of a field by its name.
+   *
+   * @param name The name of the field
+   * @return The field mapping or null if the bean doesn't have a mappable field with that name
+   */
+  @Nullable
+  public FieldMapping getField(String name) {
+    return fields.get(name);
+  }
+
+  /**
+   * Gets the names of the properties that hold the values of the fields for the given context. It
+   * is computed once per language.
+   *
+   * @param context The languages of the current mapping
+   * @return The property names
+   */
+  public PropertyNames getPropertyNames(MappingContext context) {
+    String key = context.isTranslated() ? context.getLanguage() : "";
+
+    return propertyNames.computeIfAbsent(key, lang -> new PropertyNames(this, lang));
+  }
+
+  /**
+   * The names of the properties that a JavaBean reads for a given language. They can be used as
+   * name globs to get only those properties from a Node.
+   */
+  public static final class PropertyNames {
+    private final String[] nameGlobs;
+    private final Map<String, FieldMapping> translatedFields;
+
+    private PropertyNames(BeanMapping<?> mapping, String lang) {
+      List<String> names = new ArrayList<>();
+      Map<String, FieldMapping> translated = new HashMap<>();
+
+      for (FieldMapping field : mapping.getFields()) {
+        if (field.isChildren() || field.isReference()) {
+          continue;
+        }
+
+        names.add(field.getName());
+
+        if (!lang.isEmpty() && field.isTranslatable()) {
+          String i18nName = field.getI18nName(lang);
+
+          names.add(i18nName);
+          translated.put(i18nName, field);
+        }
+      }
+
+      this.nameGlobs = names.toArray(new String[0]);
+      this.translatedFields = Collections.unmodifiableMap(translated);
+    }
+
+    /**
+     * Gets the names of all the properties, untranslated and translated, as name globs for
+     * {@link javax.jcr.Node#getProperties(String[])}.
+     *
+     * @return The name globs. Must not be modified.
+     */
+    public String[] getNameGlobs() {
+      return nameGlobs;
+    }
+
+    /**
+     * Gets the field whose translated value is held by the given property.
+     *
+     * @param propertyName The name of the property, like "title_es"
+     * @return The field or null if the property is not a translation
+     */
+    @Nullable
+    public FieldMapping getTranslatedField(String propertyName) {
+      return translatedFields.get(propertyName);
+    }
+  }
+
+  /**
+   * A parameter of the constructor that receives the properties of the Node.
+   */
+  public static final class ConstructorParameter {
+    private final String name;
+    private final Class<?> type;
+    private final boolean translatable;
+    private final Class<?> boxedType;
+    @Nullable
+    private final Object defaultValue;
+
+    private ConstructorParameter(String name, Class<?> type, boolean translatable) {
+      this.name = name;
+      this.type = type;
+      this.translatable = translatable;
+      this.boxedType = box(type);
+      this.defaultValue = type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+
+    /**
+     * Gets the name of the parameter, which is also the name of the property.
+     *
+     * @return The name of the parameter
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the type of the parameter.
+     *
+     * @return The type of the parameter
+     */
+    public Class<?> getType() {
+      return type;
+    }
+
+    /**
+     * Checks if the field with the same name is annotated with {@link Translatable}.
+     *
+     * @return true if it's translatable
+     */
+    public boolean isTranslatable() {
+      return translatable;
+    }
+
+    @Nullable
+    private Object adapt(@Nullable Object value) {
+      return value == null
+          ? defaultValue
+          : BeanMapping.adapt(boxedType, value, type, "constructor parameter", name);
+    }
+  }
+
+  /**
+   * The metadata of a single field of the JavaBean.
+   */
+  public static final class FieldMapping {
+    private final Field field;
+    private final MethodHandle setter;
+    private final Class<?> boxedType;
+    private final boolean translatable;
+    @Nullable
+    private final Children children;
+    @Nullable
+    private final Reference reference;
+    private final ConcurrentMap<String, String> i18nNames = new ConcurrentHashMap<>();
+
+    private FieldMapping(Field field, MethodHandle setter) {
+      this.field = field;
+      this.setter = setter;
+      this.boxedType = box(field.getType());
+      this.translatable = field.getDeclaredAnnotation(Translatable.class) != null;
+      this.children = Collection.class.equals(field.getType())
+          ? field.getDeclaredAnnotation(Children.class)
+          : null;
+      this.reference = field.getDeclaredAnnotation(Reference.class);
+    }
+
+    /**
+     * Gets the reflected field.
+     *
+     * @return The field
+     */
+    public Field getField() {
+      return field;
+    }
+
+    /**
+     * Gets the name of the field, which is also the name of the property or the child node.
+     *
+     * @return The name of the field
+     */
+    public String getName() {
+      return field.getName();
+    }
+
+    /**
+     * Checks if the field is annotated with {@link Translatable}.
+     *
+     * @return true if it's translatable
+     */
+    public boolean isTranslatable() {
+      return translatable;
+    }
+
+    /**
+     * Checks if the field is a Collection annotated with {@link Children}.
+     *
+     * @return true if it holds children nodes
+     */
+    public boolean isChildren() {
+      return children != null;
+    }
+
+    /**
+     * Gets the {@link Children} annotation of the field.
+     *
+     * @return The annotation or null if the field doesn't hold children nodes
+     */
+    @Nullable
+    public Children getChildren() {
+      return children;
+    }
+
+    /**
+     * Checks if the field is annotated with {@link Reference}.
+     *
+     * @return true if it holds referenced nodes
+     */
+    public boolean isReference() {
+      return reference != null;
+    }
+
+    /**
+     * Gets the {@link Reference} annotation of the field.
+     *
+     * @return The annotation or null if the field doesn't hold referenced nodes
+     */
+    @Nullable
+    public Reference getReference() {
+      return reference;
+    }
+
+    /**
+     * Gets the name of the translated property for the given language, like "title_es".
+     *
+     * @param lang The language
+     * @return The name of the translated property
+     */
+    public String getI18nName(String lang) {
+      return i18nNames.computeIfAbsent(lang, l -> field.getName() + "_" + l);
+    }
+
+    /**
+     * Converts a value to the type of the field. Refer to
+     * {@link BeanMapping#adapt(Object, Class, String)}.
+     *
+     * @param value The value to convert
+     * @return The converted value, boxed if the field is primitive
+     * @throws IllegalArgumentException If the value cannot be assigned to the field.
+     */
+    @Nullable
+    public Object adapt(@Nullable Object value) {
+      return BeanMapping.adapt(boxedType, value, field.getType(), "field", getName());
+    }
+
+    /**
+     * Sets the value of the field on the given object, through its setter if it has one.
+     *
+     * @param object The object that will receive the value
+     * @param value The value to set
+     * @throws InvocationTargetException If the setter throws an exception, whatever it is.
+     * @throws IllegalArgumentException If the value cannot be assigned to the field.
+     */
+    public void set(Object object, @Nullable Object value) throws InvocationTargetException {
+      Object adapted = adapt(value);
+
+      try {
+        setter.invokeExact(object, adapted);
+      } catch (Throwable e) {
+        throw new InvocationTargetException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A minimal streaming JSON writer. It only keeps track of the commas needed between the elements
+ * of the objects and arrays being written, so the output is never held in memory.
+ */
+final class JsonWriter {
+  private final Writer writer;
+  private final Deque<Boolean> empty = new ArrayDeque<>();
+  private boolean afterName;
+
+  JsonWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  JsonWriter beginObject() throws IOException {
+    return begin('{');
+  }
+
+  JsonWriter endObject() throws IOException {
+    return end('}');
+  }
+
+  JsonWriter beginArray() throws IOException {
+    return begin('[');
+  }
+
+  JsonWriter endArray() throws IOException {
+    return end(']');
+  }
+
+  JsonWriter name(String name) throws IOException {
+    separate();
+    string(name);
+    writer.write(':');
+    afterName = true;
+
+    return this;
+  }
+
+  JsonWriter value(String value) throws IOException {
+    separate();
+    string(value);
+
+    return this;
+  }
+
+  JsonWriter value(Number value) throws IOException {
+    separate();
+    writer.write(value.toString());
+
+    return this;
+  }
+
+  JsonWriter value(boolean value) throws IOException {
+    separate();
+    writer.write(value ? "true" : "false");
+
+    return this;
+  }
+
+  JsonWriter nullValue() throws IOException {
+    separate();
+    writer.write("null");
+
+    return this;
+  }
+
+  void flush() throws IOException {
+    writer.flush();
+  }
+
+  private JsonWriter begin(char bracket) throws IOException {
+    separate();
+    writer.write(bracket);
+    empty.push(true);
+
+    return this;
+  }
+
+  private JsonWriter end(char bracket) throws IOException {
+    empty.pop();
+    writer.write(bracket);
+
+    return this;
+  }
+
+  /**
+   * Writes a comma unless the element is the first one of its container or the value of a name.
+   */
+  private void separate() throws IOException {
+    if (afterName) {
+      afterName = false;
+    } else if (!empty.isEmpty()) {
+      if (empty.peek()) {
+        empty.pop();
+        empty.push(false);
+      } else {
+        writer.write(',');
+      }
+    }
+  }
+
+  private void string(String value) throws IOException {
+    writer.write('"');
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+
+    writer.write('"');
+  }
+}
@@ -0,0 +1,90 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import java.util.AbstractCollection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * A Collection of children beans that are mapped on first access. Until then it only keeps the
+ * workspace and the identifier of the node that holds the children. The children are read with
+ * the permissions of the user that mapped their parent, as explained on
+ * {@link MappingContext#getSession(String)}, whoever accesses them first.
+ * <p>
+ * If the children cannot be read, like when the parent was mapped during a request that already
+ * finished and there is no context of the same user, accessing the collection throws an
+ * {@link IllegalStateException}. Nothing is remembered, so the next access tries again.
+ * </p>
+ *
+ * @param <T> The type of the children JavaBeans
+ */
+public final class LazyChildrenCollection<T> extends AbstractCollection<T> {
+  private final String workspace;
+  private final String identifier;
+  private final Class<T> clazz;
+  private final MappingContext context;
+  private volatile List<T> children;
+
+  LazyChildrenCollection(Node node, Class<T> clazz, MappingContext context)
+      throws RepositoryException {
+    this.workspace = node.getSession().getWorkspace().getName();
+    this.identifier = node.getIdentifier();
+    this.clazz = clazz;
+    this.context = context.fork();
+
+    context.markLazyChildren();
+  }
+
+  /**
+   * Checks if the children have already been mapped.
+   *
+   * @return true if the children have been mapped
+   */
+  public boolean isLoaded() {
+    return children != null;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return load().iterator();
+  }
+
+  @Override
+  public int size() {
+    return load().size();
+  }
+
+  private List<T> load() {
+    List<T> result = children;
+
+    if (result == null) {
+      synchronized (this) {
+        result = children;
+
+        if (result == null) {
+          result = Collections.unmodifiableList(fetch());
+          children = result;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private List<T> fetch() {
+    try {
+      Node node = context.getSession(workspace).getNodeByIdentifier(identifier);
+
+      List<T> beans = Node2Bean.toChildrenBeans(node, clazz, context);
+
+      context.resolveReferences();
+
+      return beans;
+    } catch (RepositoryException e) {
+      throw new IllegalStateException("Cannot load the children of node [" + identifier
+          + "] on workspace [" + workspace + "]", e);
+    }
+  }
+}
@@ -0,0 +1,389 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import com.nachoverdon.mongolia.utils.LangUtils;
+import info.magnolia.context.MgnlContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The state shared by all the beans mapped from a single {@link Node2Bean} call: the requested
+ * language and the language of the untranslated properties, resolved only once, the
+ * {@link MappingOptions}, the current depth and the Nodes being mapped. It must not outlive the
+ * call.
+ * <p>
+ * It also remembers the session that read the first mapped Node, so the Nodes read later on, like
+ * the referenced ones or the lazy children, are read with the permissions of the same user. Refer
+ * to {@link #getSession(String)}.
+ * </p>
+ */
+public final class MappingContext {
+  private final String language;
+  private final String defaultLanguage;
+  private final boolean translated;
+  private final MappingOptions options;
+  private final Map<String, String> i18nNames = new ConcurrentHashMap<>();
+  private final Set<String> ancestors = new LinkedHashSet<>();
+  private ReferenceResolver references;
+  private int depth;
+  @Nullable
+  private Session session;
+  @Nullable
+  private String userId;
+  private boolean lazyChildren;
+  @Nullable
+  private Map<String, Set<String>> dependencies;
+
+  MappingContext(String language, String defaultLanguage, MappingOptions options, int depth) {
+    this.language = language;
+    this.defaultLanguage = defaultLanguage;
+    this.translated = !language.equals(defaultLanguage);
+    this.options = options;
+    this.depth = depth;
+  }
+
+  /**
+   * Creates a context for the given language, or the current one if empty.
+   *
+   * @param lang Optional. The language to get the properties from.
+   * @return A new context
+   */
+  public static MappingContext create(@Nullable String lang) {
+    return create(lang, MappingOptions.DEFAULT);
+  }
+
+  /**
+   * Creates a context for the given language, or the current one if empty, and options.
+   *
+   * @param lang Optional. The language to get the properties from.
+   * @param options The options that limit the mapping
+   * @return A new context
+   */
+  public static MappingContext create(@Nullable String lang, MappingOptions options) {
+    return new MappingContext(StringUtils.isEmpty(lang) ? LangUtils.getLanguage() : lang,
+        LangUtils.getDefaultLanguage(), options, 0);
+  }
+
+  /**
+   * Creates a context with the same languages and options, starting at the current depth. Used to
+   * map children later on, like {@link LazyChildrenCollection} does.
+   *
+   * @return A new context
+   */
+  MappingContext fork() {
+    MappingContext fork = new MappingContext(language, defaultLanguage, options, depth);
+
+    fork.session = session;
+    fork.userId = userId;
+    fork.ancestors.addAll(ancestors);
+
+    return fork;
+  }
+
+  /**
+   * Gets the language to get the translatable properties from.
+   *
+   * @return The language
+   */
+  public String getLanguage() {
+    return language;
+  }
+
+  /**
+   * Gets the language of the untranslated properties.
+   *
+   * @return The default language
+   */
+  public String getDefaultLanguage() {
+    return defaultLanguage;
+  }
+
+  /**
+   * Checks if the translatable properties must be read from their "_lang" variant.
+   *
+   * @return true if the language is not the default one
+   */
+  public boolean isTranslated() {
+    return translated;
+  }
+
+  /**
+   * Gets the options that limit the mapping.
+   *
+   * @return The options
+   */
+  public MappingOptions getOptions() {
+    return options;
+  }
+
+  /**
+   * Gets the level of {@link com.nachoverdon.mongolia.annotations.Children} being mapped. The root
+   * bean is at depth 0.
+   *
+   * @return The current depth
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Checks if the children of the current bean can be mapped without exceeding the maximum depth.
+   *
+   * @return true if the children can be mapped
+   */
+  public boolean canDescend() {
+    return options.getMaxDepth() == MappingOptions.UNLIMITED || depth < options.getMaxDepth();
+  }
+
+  /**
+   * Checks if only some fields of the current bean must be mapped. The projection of the options
+   * only applies to the root bean.
+   *
+   * @return true if the fields must be checked with {@link #isIncluded(String)}
+   */
+  public boolean isProjected() {
+    return depth == 0 && options.hasProjection();
+  }
+
+  /**
+   * Checks if a field of the current bean must be mapped.
+   *
+   * @param fieldName The name of the field
+   * @return true if it must be mapped
+   */
+  public boolean isIncluded(String fieldName) {
+    return !isProjected() || options.isIncluded(fieldName);
+  }
+
+  void descend() {
+    depth++;
+  }
+
+  void ascend() {
+    depth--;
+  }
+
+  void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  /**
+   * Queues the identifiers of a {@link com.nachoverdon.mongolia.annotations.Reference} field, to
+   * be resolved along with all the others in {@link #resolveReferences()}.
+   */
+  void addReference(Object bean, BeanMapping.FieldMapping field, List<String> identifiers) {
+    if (references == null) {
+      references = new ReferenceResolver();
+    }
+
+    references.add(bean, field, identifiers, depth, new ArrayList<>(ancestors));
+  }
+
+  /**
+   * Fetches and maps the Nodes referenced by all the beans mapped so far, and sets them on those
+   * beans.
+   */
+  void resolveReferences() {
+    if (references != null) {
+      references.resolve(this);
+    }
+  }
+
+  /**
+   * Marks the Node as being mapped. The ancestors of a bean are the Nodes of the beans that hold
+   * it, either as a child or as a reference, since the references queued by a bean remember the
+   * ancestors it had.
+   *
+   * @param identifier The identifier of the Node
+   * @return false if the Node is already an ancestor of the mapped bean, which means a cycle
+   */
+  boolean enter(String identifier) {
+    return ancestors.add(identifier);
+  }
+
+  void exit(String identifier) {
+    ancestors.remove(identifier);
+  }
+
+  /**
+   * Checks if the Node is being mapped, so mapping it again would be a cycle.
+   *
+   * @param identifier The identifier of the Node
+   * @return true if the Node is an ancestor of the mapped bean
+   */
+  boolean isAncestor(String identifier) {
+    return ancestors.contains(identifier);
+  }
+
+  /**
+   * Gets the identifiers of the Nodes being mapped, from the outermost to the innermost one.
+   *
+   * @return A copy of the ancestors
+   */
+  List<String> getAncestors() {
+    return new ArrayList<>(ancestors);
+  }
+
+  /**
+   * Replaces the Nodes being mapped, like when the beans referenced by a bean mapped earlier are
+   * mapped.
+   *
+   * @param identifiers The identifiers of the ancestors
+   */
+  void setAncestors(List<String> identifiers) {
+    ancestors.clear();
+    ancestors.addAll(identifiers);
+  }
+
+  /**
+   * Remembers the session that read the Nodes being mapped, unless one was already remembered.
+   *
+   * @param session The session of a mapped Node
+   * @throws RepositoryException If the user of the session cannot be read.
+   */
+  void setSession(Session session) throws RepositoryException {
+    if (this.session == null) {
+      this.session = session;
+      this.userId = session.getUserID();
+    }
+  }
+
+  /**
+   * Gets a session of the workspace with the permissions of the user that read the mapped Nodes:
+   * <ul>
+   *   <li>The session that read them, while it is open and if it belongs to the workspace.</li>
+   *   <li>The system session, if they were read with it.</li>
+   *   <li>Otherwise, the session of the current Magnolia context, if it belongs to the same
+   *   user.</li>
+   * </ul>
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The session
+   * @throws RepositoryException If there is no session of the same user, like when the Nodes were
+   *     read during a request that already finished.
+   */
+  Session getSession(String workspace) throws RepositoryException {
+    if (session != null && session.isLive()
+        && workspace.equals(session.getWorkspace().getName())) {
+      return session;
+    }
+
+    if (userId != null) {
+      Session system = MgnlContext.getSystemContext().getJCRSession(workspace);
+
+      if (userId.equals(system.getUserID())) {
+        return system;
+      }
+    }
+
+    if (!MgnlContext.hasInstance()) {
+      throw new RepositoryException("Cannot read workspace [" + workspace + "] as user ["
+          + userId + "] without a Magnolia context");
+    }
+
+    Session current = MgnlContext.getJCRSession(workspace);
+
+    if (userId != null && !userId.equals(current.getUserID())) {
+      throw new RepositoryException("Cannot read workspace [" + workspace + "] as user ["
+          + userId + "] from a context of user [" + current.getUserID() + "]");
+    }
+
+    return current;
+  }
+
+  /**
+   * Marks that a {@link LazyChildrenCollection} has been created, so the mapped beans depend on
+   * the session of this context.
+   */
+  void markLazyChildren() {
+    lazyChildren = true;
+  }
+
+  /**
+   * Checks if any of the mapped beans holds a {@link LazyChildrenCollection}, whose children will
+   * be read with the session of this context. Those beans must not be shared with other users.
+   *
+   * @return true if a lazy collection has been created
+   */
+  boolean hasLazyChildren() {
+    return lazyChildren;
+  }
+
+  /**
+   * Starts remembering the paths of the mapped Nodes, including the referenced ones of other
+   * workspaces. Refer to {@link #getDependencies()}.
+   */
+  void trackDependencies() {
+    if (dependencies == null) {
+      dependencies = new HashMap<>();
+    }
+  }
+
+  /**
+   * Remembers the path of a mapped Node, if the dependencies are tracked.
+   *
+   * @param node The mapped Node
+   * @throws RepositoryException If the path cannot be read.
+   */
+  void addDependency(Node node) throws RepositoryException {
+    if (dependencies != null) {
+      dependencies.computeIfAbsent(node.getSession().getWorkspace().getName(),
+          workspace -> new LinkedHashSet<>()).add(node.getPath());
+    }
+  }
+
+  /**
+   * Gets the paths of the Nodes mapped since {@link #trackDependencies()} was called, grouped by
+   * workspace. The mapped beans depend on the properties of those Nodes and of their descendants.
+   *
+   * @return The paths by workspace, empty if the dependencies are not tracked
+   */
+  Map<String, Set<String>> getDependencies() {
+    return dependencies == null ? Collections.emptyMap() : dependencies;
+  }
+
+  /**
+   * Gets the name of the translated property, like "title_es".
+   *
+   * @param name The name of the untranslated property
+   * @return The name of the translated property
+   */
+  public String getI18nName(String name) {
+    return i18nNames.computeIfAbsent(name, n -> n + "_" + language);
+  }
+
+  /**
+   * Gets the property that holds the value of a field. Translatable fields use the "_lang"
+   * property if the Node has it, falling back to the untranslated one.
+   *
+   * @param node The Node to get the property from
+   * @param name The name of the field
+   * @param translatable If the field is annotated as translatable
+   * @return The property or null if the field must not be set
+   * @throws RepositoryException If the property cannot be accessed.
+   */
+  @Nullable
+  public Property getProperty(Node node, String name, boolean translatable)
+      throws RepositoryException {
+    if (translated && translatable) {
+      String nameI18n = getI18nName(name);
+
+      if (node.hasProperty(nameI18n)) {
+        return node.getProperty(nameI18n);
+      }
+    }
+
+    return node.hasProperty(name) ? node.getProperty(name) : null;
+  }
+}
@@ -0,0 +1,63 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import java.util.Set;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+
+/**
+ * Options that limit how much of a Node tree {@link Node2Bean} maps. Usage example:
+ * <pre>{@code
+ *   MappingOptions options = MappingOptions.builder()
+ *       .maxDepth(1)
+ *       .include("title").include("date").include("image")
+ *       .build();
+ *   Node2Bean.toBean(node, Product.class, "es", options);
+ * }</pre>
+ */
+@Getter
+@Builder
+public class MappingOptions {
+
+  public static final int UNLIMITED = -1;
+
+  public static final MappingOptions DEFAULT = MappingOptions.builder().build();
+
+  /**
+   * The maximum levels of {@link com.nachoverdon.mongolia.annotations.Children} to map below the
+   * root bean. 0 maps only the root bean. By default there is no limit.
+   */
+  @Builder.Default
+  private final int maxDepth = UNLIMITED;
+
+  /**
+   * The only fields of the root bean that will be mapped. If empty, all of them are mapped.
+   */
+  @Singular
+  private final Set<String> includes;
+
+  /**
+   * The fields of the root bean that won't be mapped.
+   */
+  @Singular
+  private final Set<String> excludes;
+
+  /**
+   * Checks if only some of the fields of the root bean must be mapped.
+   *
+   * @return true if there are includes or excludes
+   */
+  public boolean hasProjection() {
+    return !includes.isEmpty() || !excludes.isEmpty();
+  }
+
+  /**
+   * Checks if the given field of the root bean must be mapped.
+   *
+   * @param fieldName The name of the field
+   * @return true if it must be mapped
+   */
+  public boolean isIncluded(String fieldName) {
+    return (includes.isEmpty() || includes.contains(fieldName)) && !excludes.contains(fieldName);
+  }
+}
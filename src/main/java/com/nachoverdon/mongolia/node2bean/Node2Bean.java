@@ -1,26 +1,37 @@
 package com.nachoverdon.mongolia.node2bean;
 
 import com.nachoverdon.mongolia.annotations.Children;
-import com.nachoverdon.mongolia.annotations.Translatable;
+import com.nachoverdon.mongolia.node2bean.BeanMapping.ConstructorParameter;
+import com.nachoverdon.mongolia.node2bean.BeanMapping.FieldMapping;
+import com.nachoverdon.mongolia.node2bean.BeanMapping.PropertyNames;
 import com.nachoverdon.mongolia.utils.LangUtils;
 import com.nachoverdon.mongolia.utils.NodeUtils;
 import com.nachoverdon.mongolia.utils.PropertyUtils;
-import com.nachoverdon.mongolia.utils.ReflectionUtils;
-import info.magnolia.cms.i18n.I18nContentSupport;
-import info.magnolia.context.MgnlContext;
-import info.magnolia.objectfactory.Components;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
@@ -29,8 +40,12 @@ public class Node2Bean {
 
   /**
    * Transforms a Node into an object of the given class. Optionally, if the Node has properties
-   * annotated as translatable it will get the corresponding property if a language is given.
-   * It requires that the given class has an empty constructor.
+   * annotated as translatable it will get the corresponding property if a language is given,
+   * falling back to the untranslated one. Only the properties declared by the class are read.
+   * It requires that the given class has an empty constructor, or one whose parameters are named
+   * after the properties. Refer to {@link BeanMapping}.
+   * If a {@link NodeMapper} was generated for the class at build time it will be used instead of
+   * reflection.
    *
    * @param <T> The type of the JavaBean
    * @param node The Node to get the data from.
@@ -40,30 +55,383 @@ public class Node2Bean {
    */
   @Nullable
   public static <T> T toBean(Node node, Class<T> clazz, @Nullable String lang) {
-    if (StringUtils.isEmpty(lang)) {
-      lang = LangUtils.getLanguage();
+    return mapNode(node, clazz, MappingContext.create(lang));
+  }
+
+  /**
+   * Refer to {@link #toBean(Node, Class, String)}. The options limit the depth of the children
+   * that are mapped and which fields of the bean are set.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @param options The options that limit the mapping
+   * @return An object of the given class type.
+   */
+  @Nullable
+  public static <T> T toBean(Node node, Class<T> clazz, @Nullable String lang,
+                             MappingOptions options) {
+    return mapNode(node, clazz, MappingContext.create(lang, options));
+  }
+
+  /**
+   * Refer to {@link #toBean(Node, Class, String)}.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean
+   * @return An object of the given class type.
+   */
+  public static <T> T toBean(Node node, Class<T> clazz) {
+    return toBean(node, clazz, LangUtils.getLanguage());
+  }
+
+  /**
+   * Refer to {@link #toBean(Node, Class, String)}. The bean is taken from the shared
+   * {@link BeanCache} if the Node hasn't changed since it was mapped, so it must be treated as
+   * read-only.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @return An object of the given class type.
+   */
+  @Nullable
+  public static <T> T toCachedBean(Node node, Class<T> clazz, @Nullable String lang) {
+    return BeanCache.getInstance().get(node, clazz, lang);
+  }
+
+  /**
+   * Transforms the values of a query row, like the ones of
+   * {@link com.nachoverdon.mongolia.utils.QueryUtils#getRows(javax.jcr.query.QueryResult)}, into
+   * an object of the given class, without loading the Node. Each column sets the field with the
+   * same name, or the name after the selector if it's like "selector.name". Numbers and dates are
+   * converted to the type of the field.
+   *
+   * @param <T> The type of the JavaBean
+   * @param values The values by column name
+   * @param clazz The class of the JavaBean
+   * @return An object of the given class type.
+   */
+  @Nullable
+  public static <T> T toBeanFromValues(Map<String, ?> values, Class<T> clazz) {
+    BeanMapping<T> mapping = BeanMapping.of(clazz);
+
+    try {
+      if (!mapping.isInstantiable()) {
+        return null;
+      }
+
+      T object = mapping.getConstructorParameters().isEmpty()
+          ? mapping.newInstance()
+          : mapping.newInstance(getConstructorArguments(values, mapping));
+
+      for (Map.Entry<String, ?> column : values.entrySet()) {
+        String name = column.getKey();
+        FieldMapping field = mapping.getField(name.substring(name.indexOf('.') + 1));
+
+        if (field != null && !field.isChildren() && !field.isReference()
+            && column.getValue() != null) {
+          field.set(object, convert(column.getValue(), field.getField().getType()));
+        }
+      }
+
+      return object;
+    } catch (InstantiationException e) {
+      log.error("Cannot instantiate object", e);
+    } catch (InvocationTargetException | IllegalArgumentException e) {
+      log.error(e.getMessage(), e);
+    }
+
+    return null;
+  }
+
+  private static Object[] getConstructorArguments(Map<String, ?> values, BeanMapping<?> mapping) {
+    List<ConstructorParameter> parameters = mapping.getConstructorParameters();
+    Object[] arguments = new Object[parameters.size()];
+
+    for (Map.Entry<String, ?> column : values.entrySet()) {
+      String name = column.getKey().substring(column.getKey().indexOf('.') + 1);
+
+      for (int i = 0; i < arguments.length; i++) {
+        ConstructorParameter parameter = parameters.get(i);
+
+        if (parameter.getName().equals(name) && column.getValue() != null) {
+          arguments[i] = convert(column.getValue(), parameter.getType());
+        }
+      }
+    }
+
+    return arguments;
+  }
+
+  private static Object convert(Object value, Class<?> type) {
+    if (value instanceof Number) {
+      Number number = (Number) value;
+
+      if (type == int.class || type == Integer.class) {
+        return number.intValue();
+      } else if (type == long.class || type == Long.class) {
+        return number.longValue();
+      } else if (type == double.class || type == Double.class) {
+        return number.doubleValue();
+      } else if (type == float.class || type == Float.class) {
+        return number.floatValue();
+      }
+    } else if (value instanceof Date && Calendar.class.equals(type)) {
+      Calendar calendar = Calendar.getInstance();
+
+      calendar.setTime((Date) value);
+
+      return calendar;
+    }
+
+    return String.class.equals(type) ? String.valueOf(value) : value;
+  }
+
+  /**
+   * Transforms a Node into an object of the given class within an already resolved context. Refer
+   * to {@link #toBean(Node, Class, String)}.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param context The languages and state of the current mapping
+   * @return An object of the given class type.
+   */
+  @Nullable
+  public static <T> T mapNode(Node node, Class<T> clazz, MappingContext context) {
+    T bean = mapNode(node, getMapper(clazz, context), context);
+
+    context.resolveReferences();
+
+    return bean;
+  }
+
+  /**
+   * Transforms every Node into an object of the given class. Unlike
+   * {@link #toBeans(NodeIterator, Class, String)}, the references of all the beans are resolved
+   * together, with a single query per workspace. Nodes that cannot be mapped are skipped.
+   *
+   * @param <T> The type of the JavaBean
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @return A list of objects of the given class type.
+   * @see com.nachoverdon.mongolia.annotations.Reference
+   */
+  public static <T> List<T> toBeanList(Iterable<Node> nodes, Class<T> clazz,
+                                       @Nullable String lang) {
+    MappingContext context = MappingContext.create(lang);
+    NodeMapper<T> mapper = getMapper(clazz, context);
+    List<T> beans = new ArrayList<>();
+
+    for (Node node : nodes) {
+      T bean = mapNode(node, mapper, context);
+
+      if (bean != null) {
+        beans.add(bean);
+      }
+    }
+
+    context.resolveReferences();
+
+    return beans;
+  }
+
+  /**
+   * Transforms every Node of the iterator into an object of the given class. The language, the
+   * fallback language and the metadata of the class are resolved only once for the whole batch,
+   * and the Nodes are read and mapped in chunks of 100 as the returned Stream is consumed, so the
+   * references of each chunk are resolved together. Nodes that cannot be mapped are skipped. The
+   * Stream must be consumed sequentially.
+   *
+   * @param <T> The type of the JavaBean
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @return A lazy Stream of objects of the given class type.
+   */
+  public static <T> Stream<T> toBeans(NodeIterator nodes, Class<T> clazz, @Nullable String lang) {
+    return toBeans(nodes, clazz, lang, MappingOptions.DEFAULT);
+  }
+
+  /**
+   * Refer to {@link #toBeans(NodeIterator, Class, String)} and
+   * {@link #toBean(Node, Class, String, MappingOptions)}.
+   *
+   * @param <T> The type of the JavaBean
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @param options The options that limit the mapping
+   * @return A lazy Stream of objects of the given class type.
+   */
+  public static <T> Stream<T> toBeans(NodeIterator nodes, Class<T> clazz, @Nullable String lang,
+                                      MappingOptions options) {
+    MappingContext context = MappingContext.create(lang, options);
+    NodeMapper<T> mapper = getMapper(clazz, context);
+    Iterator<T> beans = new Iterator<T>() {
+      private final Queue<T> chunk = new ArrayDeque<>(ReferenceResolver.BATCH_SIZE);
+
+      @Override
+      public boolean hasNext() {
+        if (chunk.isEmpty()) {
+          mapChunk(nodes, mapper, context, chunk::add);
+        }
+
+        return !chunk.isEmpty();
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return chunk.poll();
+      }
+    };
+
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(beans, Spliterator.ORDERED),
+        false);
+  }
+
+  /**
+   * Refer to {@link #toBeans(NodeIterator, Class, String)}.
+   *
+   * @param <T> The type of the JavaBean
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean
+   * @return A lazy Stream of objects of the given class type.
+   */
+  public static <T> Stream<T> toBeans(NodeIterator nodes, Class<T> clazz) {
+    return toBeans(nodes, clazz, LangUtils.getLanguage());
+  }
+
+  /**
+   * Transforms every Node of the iterator into an object of the given class and performs an action
+   * for each of them, keeping only the beans of the current chunk of 100 Nodes. Refer to
+   * {@link #toBeans(NodeIterator, Class, String)}.
+   *
+   * @param <T> The type of the JavaBean
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean
+   * @param lang Optional. The language to get the properties from.
+   * @param action The action to perform
+   */
+  public static <T> void forEachBean(NodeIterator nodes, Class<T> clazz, @Nullable String lang,
+                                     Consumer<T> action) {
+    MappingContext context = MappingContext.create(lang);
+    NodeMapper<T> mapper = getMapper(clazz, context);
+    List<T> chunk = new ArrayList<>(ReferenceResolver.BATCH_SIZE);
+
+    while (nodes.hasNext()) {
+      mapChunk(nodes, mapper, context, chunk::add);
+      chunk.forEach(action);
+      chunk.clear();
+    }
+  }
+
+  /**
+   * Maps the next chunk of {@link ReferenceResolver#BATCH_SIZE} Nodes of the iterator, or all the
+   * remaining ones, and resolves their references together before passing the beans on. Nodes that
+   * cannot be mapped are skipped.
+   */
+  private static <T> void mapChunk(NodeIterator nodes, NodeMapper<T> mapper,
+                                   MappingContext context, Consumer<T> consumer) {
+    List<T> beans = new ArrayList<>(ReferenceResolver.BATCH_SIZE);
+
+    for (int i = 0; i < ReferenceResolver.BATCH_SIZE && nodes.hasNext(); i++) {
+      T bean = mapNode(nodes.nextNode(), mapper, context);
+
+      if (bean != null) {
+        beans.add(bean);
+      }
     }
 
+    context.resolveReferences();
+    beans.forEach(consumer);
+  }
+
+  /**
+   * Gets the generated mapper of the class or, if there is none or only some fields must be mapped,
+   * one that uses its reflection based mapping plan.
+   */
+  private static <T> NodeMapper<T> getMapper(Class<T> clazz, MappingContext context) {
+    NodeMapper<T> mapper = context.isProjected() ? null : NodeMappers.get(clazz);
+
+    if (mapper != null) {
+      return mapper;
+    }
+
+    BeanMapping<T> mapping = BeanMapping.of(clazz);
+
+    return (item, itemContext) -> mapNode(item, mapping, itemContext);
+  }
+
+  @Nullable
+  private static <T> T mapNode(Node node, NodeMapper<T> mapper, MappingContext context) {
+    String identifier = null;
+
     try {
-      Constructor<T> constructor = ReflectionUtils.getEmptyConstructor(clazz);
+      identifier = node.getIdentifier();
+      context.setSession(node.getSession());
+      context.addDependency(node);
+
+      if (!context.enter(identifier)) {
+        log.warn("Node [" + node.getPath() + "] is already being mapped, skipping it to avoid a "
+            + "cycle");
+
+        return null;
+      }
+
+      return mapper.map(node, context);
+    } catch (InvocationTargetException | RepositoryException e) {
+      log.error(e.getMessage(), e);
+    } finally {
+      if (identifier != null) {
+        context.exit(identifier);
+      }
+    }
 
-      if (constructor == null) {
+    return null;
+  }
+
+  /**
+   * Transforms a Node into an object using the reflection based mapping plan.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node to get the data from.
+   * @param mapping The mapping plan of the JavaBean
+   * @param context The languages and state of the current mapping
+   * @return An object of the given class type.
+   */
+  @Nullable
+  static <T> T mapNode(Node node, BeanMapping<T> mapping, MappingContext context) {
+    try {
+      if (!mapping.isInstantiable()) {
         return null;
       }
 
-      T object = constructor.newInstance();
-      Collection<String> objectFieldNames = ReflectionUtils.getFieldsNames(object);
+      T object = mapping.getConstructorParameters().isEmpty()
+          ? mapping.newInstance()
+          : mapping.newInstance(getConstructorArguments(node, mapping, context));
 
-      // Loop through node properties
-      addProperties(node, objectFieldNames, clazz, lang, object);
+      // Get only the properties declared by the object
+      addDeclaredProperties(node, mapping, context, object);
       // Loop through node children
-      addChildrenNodes(node, objectFieldNames, clazz, lang, object);
+      addChildrenNodes(node, mapping, context, object);
+      // Queue the referenced nodes
+      addReferences(node, mapping, context, object);
 
       return object;
 
     } catch (InstantiationException e) {
       log.error("Cannot instantiate object", e);
-    } catch (InvocationTargetException | IllegalAccessException | RepositoryException e) {
+    } catch (InvocationTargetException | RepositoryException e) {
       log.error(e.getMessage(), e);
     }
 
@@ -71,15 +439,83 @@ public class Node2Bean {
   }
 
   /**
-   * Refer to {@link #toBean(Node, Class, String)}.
+   * Reads the properties received by the constructor of the JavaBean, translated if possible.
+   * Parameters excluded by the projection of the options receive their default value.
+   */
+  private static Object[] getConstructorArguments(Node node, BeanMapping<?> mapping,
+                                                  MappingContext context)
+      throws RepositoryException {
+    List<ConstructorParameter> parameters = mapping.getConstructorParameters();
+    Object[] arguments = new Object[parameters.size()];
+
+    for (int i = 0; i < arguments.length; i++) {
+      ConstructorParameter parameter = parameters.get(i);
+
+      if (context.isIncluded(parameter.getName())) {
+        Property property = context.getProperty(node, parameter.getName(),
+            parameter.isTranslatable());
+
+        arguments[i] = property == null ? null : PropertyUtils.getPropertyByType(property);
+      }
+    }
+
+    return arguments;
+  }
+
+  /**
+   * Transforms every child of the given Node into an object of the given class. Used to fill the
+   * fields annotated with {@link com.nachoverdon.mongolia.annotations.Children}.
    *
    * @param <T> The type of the JavaBean
-   * @param node The Node to get the data from.
+   * @param node The Node whose children will be transformed
    * @param clazz The class of the JavaBean
-   * @return An object of the given class type.
+   * @param context The languages and state of the current mapping
+   * @return A list of objects of the given class type.
+   * @throws RepositoryException If the nodes cannot be accessed.
    */
-  public static <T> T toBean(Node node, Class<T> clazz) {
-    return toBean(node, clazz, LangUtils.getLanguage());
+  public static <T> List<T> toChildrenBeans(Node node, Class<T> clazz, MappingContext context)
+      throws RepositoryException {
+    List<T> childrenNodes = new ArrayList<>();
+
+    context.descend();
+
+    try {
+      NodeMapper<T> mapper = getMapper(clazz, context);
+
+      NodeUtils.forEach(node.getNodes(),
+          item -> childrenNodes.add(mapNode(item, mapper, context)));
+    } finally {
+      context.ascend();
+    }
+
+    return childrenNodes;
+  }
+
+  /**
+   * Refer to {@link #toChildrenBeans(Node, Class, MappingContext)}. If lazy, the children will be
+   * mapped on first access to the returned collection.
+   *
+   * @param <T> The type of the JavaBean
+   * @param node The Node whose children will be transformed
+   * @param clazz The class of the JavaBean
+   * @param context The languages and state of the current mapping
+   * @param lazy Whether the children must be mapped on first access
+   * @return A collection of objects of the given class type, or null if the maximum depth of the
+   *     {@link MappingOptions} has been reached.
+   * @throws RepositoryException If the nodes cannot be accessed.
+   * @see LazyChildrenCollection
+   */
+  @Nullable
+  public static <T> Collection<T> toChildrenBeans(Node node, Class<T> clazz,
+                                                  MappingContext context, boolean lazy)
+      throws RepositoryException {
+    if (!context.canDescend()) {
+      return null;
+    }
+
+    return lazy
+        ? new LazyChildrenCollection<>(node, clazz, context)
+        : toChildrenBeans(node, clazz, context);
   }
 
   /**
@@ -94,53 +530,107 @@ public class Node2Bean {
    * @param <T> The type of the object
    * @throws RepositoryException If the properties or nodes cannot be accessed.
    * @throws IllegalAccessException If the field cannot be set.
+   * @deprecated The field names are taken from the {@link BeanMapping} of the class. Use
+   *     {@link #addProperties(Node, BeanMapping, MappingContext, Object)} instead.
    */
+  @Deprecated
   public static <T> void addProperties(Node node, Collection<String> objectFieldNames,
                                        Class<T> clazz, String lang, Object object)
       throws RepositoryException, IllegalAccessException {
+    try {
+      addProperties(node, BeanMapping.of(clazz), MappingContext.create(lang), object);
+    } catch (InvocationTargetException e) {
+      throw toIllegalAccessException(e);
+    }
+  }
+
+  /**
+   * Gets the properties from the Node and sets the fields, translated if possible, of the object
+   * described by the mapping plan.
+   *
+   * @param node Node to get the properties from
+   * @param mapping The mapping plan of the object
+   * @param context The languages and state of the current mapping
+   * @param object The object that will receive the data
+   * @throws RepositoryException If the properties or nodes cannot be accessed.
+   * @throws InvocationTargetException If the setter of a field throws an exception.
+   */
+  public static void addProperties(Node node, BeanMapping<?> mapping, MappingContext context,
+                                   Object object)
+      throws RepositoryException, InvocationTargetException {
     PropertyIterator propertyIterator = node.getProperties();
 
     while (propertyIterator.hasNext()) {
       Property property = propertyIterator.nextProperty();
+      FieldMapping field = mapping.getField(property.getName());
 
       // Check if object has that property
-      if (!objectFieldNames.contains(property.getName())) {
+      if (field == null || field.isReference()) {
         continue;
       }
 
-      try {
-        I18nContentSupport i18nContentSupport = Components.getComponent(I18nContentSupport.class);
-        Field field = clazz.getField(property.getName());
-        String defaultLang = MgnlContext.isWebContext()
-            ? i18nContentSupport.getFallbackLocale().getLanguage()
-            : LangUtils.DEFAULT_LANG;
-
-        // Check i18n properties to return it correctly
-        if (!lang.equals(defaultLang) && field.getDeclaredAnnotation(Translatable.class) != null) {
-
-          //Fill object with lang values
-          String propertyNameI18n = property.getName() + "_" + lang;
+      // Check i18n properties to return it correctly
+      if (context.isTranslated() && field.isTranslatable()) {
 
-          if (!node.hasProperty(propertyNameI18n)) {
-            continue;
-          }
+        //Fill object with lang values
+        String propertyNameI18n = field.getI18nName(context.getLanguage());
 
-          Property propertyI18n = node.getProperty(propertyNameI18n);
+        if (!node.hasProperty(propertyNameI18n)) {
+          continue;
+        }
 
-          if (propertyI18n.getValue() != null) {
-            field.set(object, PropertyUtils.getPropertyByType(propertyI18n));
-          } else {
-            field.set(object, PropertyUtils.getPropertyByType(property));
-          }
+        Property propertyI18n = node.getProperty(propertyNameI18n);
 
-          //Fill object with default lang values
+        if (propertyI18n.getValue() != null) {
+          field.set(object, PropertyUtils.getPropertyByType(propertyI18n));
         } else {
           field.set(object, PropertyUtils.getPropertyByType(property));
         }
 
-      } catch (NoSuchFieldException e) {
-        log.error("Field '" + property.getName() + "' not found in '" + clazz.getName()
-            + "' class");
+        //Fill object with default lang values
+      } else {
+        field.set(object, PropertyUtils.getPropertyByType(property));
+      }
+    }
+  }
+
+  /**
+   * Gets from the Node only the properties declared by the object, with a single call, and sets
+   * its fields. Unlike {@link #addProperties(Node, BeanMapping, MappingContext, Object)}, which
+   * iterates over every property of the Node, the translatable fields fall back to the untranslated
+   * property when the Node doesn't have the "_lang" one.
+   *
+   * @param node Node to get the properties from
+   * @param mapping The mapping plan of the object
+   * @param context The languages and state of the current mapping
+   * @param object The object that will receive the data
+   * @throws RepositoryException If the properties or nodes cannot be accessed.
+   * @throws InvocationTargetException If the setter of a field throws an exception.
+   */
+  public static void addDeclaredProperties(Node node, BeanMapping<?> mapping,
+                                           MappingContext context, Object object)
+      throws RepositoryException, InvocationTargetException {
+    PropertyNames propertyNames = mapping.getPropertyNames(context);
+    PropertyIterator propertyIterator = node.getProperties(propertyNames.getNameGlobs());
+    Set<String> translatedFields = new HashSet<>();
+
+    while (propertyIterator.hasNext()) {
+      Property property = propertyIterator.nextProperty();
+      FieldMapping field = propertyNames.getTranslatedField(property.getName());
+
+      //Fill object with lang values
+      if (field != null && context.isIncluded(field.getName())) {
+        field.set(object, PropertyUtils.getPropertyByType(property));
+        translatedFields.add(field.getName());
+        continue;
+      }
+
+      field = mapping.getField(property.getName());
+
+      //Fill object with default lang values, unless already translated
+      if (field != null && !field.isChildren() && context.isIncluded(field.getName())
+          && !translatedFields.contains(field.getName())) {
+        field.set(object, PropertyUtils.getPropertyByType(property));
       }
     }
   }
@@ -157,40 +647,121 @@ public class Node2Bean {
    * @param <T> The type of the object
    * @throws RepositoryException If the properties or nodes cannot be accessed.
    * @throws IllegalAccessException If the field cannot be set.
+   * @deprecated The field names are taken from the {@link BeanMapping} of the class. Use
+   *     {@link #addChildrenNodes(Node, BeanMapping, MappingContext, Object)} instead.
    */
+  @Deprecated
   public static <T> void addChildrenNodes(Node node, Collection<String> objectFieldNames,
                                           Class<T> clazz, String lang, Object object)
       throws RepositoryException, IllegalAccessException {
+    try {
+      addChildrenNodes(node, BeanMapping.of(clazz), MappingContext.create(lang), object);
+    } catch (InvocationTargetException e) {
+      throw toIllegalAccessException(e);
+    }
+  }
+
+  /**
+   * Gets the children nodes from the node and sets the their fields, translated if possible, of the
+   * object described by the mapping plan.
+   *
+   * @param node Node to get the nodes from
+   * @param mapping The mapping plan of the object
+   * @param context The languages and state of the current mapping
+   * @param object The object that will receive the data
+   * @throws RepositoryException If the properties or nodes cannot be accessed.
+   * @throws InvocationTargetException If the setter of a field throws an exception.
+   */
+  public static void addChildrenNodes(Node node, BeanMapping<?> mapping, MappingContext context,
+                                      Object object)
+      throws RepositoryException, InvocationTargetException {
+    if (!context.canDescend()) {
+      return;
+    }
+
     NodeIterator nodes = node.getNodes();
 
     while (nodes.hasNext()) {
       Node children = nodes.nextNode();
+      FieldMapping field = mapping.getField(children.getName());
 
-      if (!objectFieldNames.contains(children.getName())) {
+      if (field == null || !field.isChildren() || !context.isIncluded(field.getName())) {
         continue;
       }
 
-      try {
-        Field field = clazz.getField(children.getName());
-        Class<?> childrenClass = field.getDeclaredAnnotation(Children.class).typeOf();
-        boolean isCollection = field.getType().getName().equals(Collection.class.getName());
+      Children annotation = field.getChildren();
+      Collection<?> childrenBeans = toChildrenBeans(children, annotation.typeOf(), context,
+          annotation.lazy());
 
-        if (field.getDeclaredAnnotation(Children.class) == null || !isCollection) {
-          continue;
-        }
+      // Add children to the object
+      field.set(object, childrenBeans);
+    }
+  }
 
-        List<Object> childrenNodes = new ArrayList<>();
+  /**
+   * Reads the identifiers held by the fields annotated with
+   * {@link com.nachoverdon.mongolia.annotations.Reference} and queues them in the context. The
+   * referenced Nodes are fetched and set on the object once the whole batch has been mapped. Used
+   * by the generated {@link NodeMapper}s.
+   *
+   * @param node Node to get the identifiers from
+   * @param object The object that will receive the referenced beans
+   * @param context The languages and state of the current mapping
+   * @throws RepositoryException If the properties cannot be accessed.
+   */
+  public static void addReferences(Node node, Object object, MappingContext context)
+      throws RepositoryException {
+    addReferences(node, BeanMapping.of(object.getClass()), context, object);
+  }
 
-        NodeUtils.forEach(children.getNodes(),
-            item -> childrenNodes.add(toBean(item, childrenClass, lang))
-        );
-        // Add children to the object
-        field.set(object, childrenNodes);
+  /**
+   * Refer to {@link #addReferences(Node, Object, MappingContext)}.
+   *
+   * @param node Node to get the identifiers from
+   * @param mapping The mapping plan of the object
+   * @param context The languages and state of the current mapping
+   * @param object The object that will receive the referenced beans
+   * @throws RepositoryException If the properties cannot be accessed.
+   */
+  public static void addReferences(Node node, BeanMapping<?> mapping, MappingContext context,
+                                   Object object)
+      throws RepositoryException {
+    if (mapping.getReferences().isEmpty() || !context.canDescend()) {
+      return;
+    }
 
-      } catch (NoSuchFieldException e) {
-        log.error("Field '" + node.getName() + "' not found in '" + clazz.getName() + "' class");
+    for (FieldMapping field : mapping.getReferences()) {
+      if (!context.isIncluded(field.getName())) {
+        continue;
       }
+
+      Property property = context.getProperty(node, field.getName(), field.isTranslatable());
+
+      if (property == null) {
+        continue;
+      }
+
+      List<String> identifiers = new ArrayList<>();
+
+      if (property.isMultiple()) {
+        for (Value value : property.getValues()) {
+          identifiers.add(value.getString());
+        }
+      } else {
+        identifiers.add(property.getString());
+      }
+
+      identifiers.removeIf(StringUtils::isEmpty);
+      context.addReference(object, field, identifiers);
     }
   }
 
+  private static IllegalAccessException toIllegalAccessException(InvocationTargetException e) {
+    IllegalAccessException exception = new IllegalAccessException(e.getMessage());
+
+    exception.initCause(e.getCause());
+
+    return exception;
+  }
+
 }
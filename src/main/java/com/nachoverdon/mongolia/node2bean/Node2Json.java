@@ -0,0 +1,442 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import com.nachoverdon.mongolia.annotations.Reference;
+import com.nachoverdon.mongolia.node2bean.BeanMapping.ConstructorParameter;
+import com.nachoverdon.mongolia.node2bean.BeanMapping.FieldMapping;
+import com.nachoverdon.mongolia.utils.PropertyUtils;
+import com.nachoverdon.mongolia.utils.ReflectionUtils;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes Nodes as JSON straight from the metadata of a JavaBean, the same one {@link Node2Bean}
+ * uses, without instantiating a bean per Node. Each field is written with the value that
+ * {@link Node2Bean} would set, converted the same way:
+ * <ul>
+ *   <li>Translatable fields use the "_lang" property if the Node has it.</li>
+ *   <li>Properties are read as {@link PropertyUtils#getPropertyByType(Property)} does and adapted
+ *   to the type of the field, so LONG properties are written as ints, or longs for long fields,
+ *   and DOUBLE, DECIMAL and multi-valued properties are written as null. A value that cannot be
+ *   assigned to its field throws the same {@link IllegalArgumentException}.</li>
+ *   <li>Dates are written as ISO-8601 strings in UTC.</li>
+ *   <li>{@link com.nachoverdon.mongolia.annotations.Children} fields are written as arrays of
+ *   objects, up to the maximum depth of the {@link MappingOptions}.</li>
+ *   <li>{@link com.nachoverdon.mongolia.annotations.Reference} fields are written as the objects
+ *   of the referenced Nodes, fetched like {@link ReferenceResolver} does, with the session of the
+ *   written Node and a single query for all the references of the field. A reference to a Node
+ *   being written is skipped to avoid a cycle. Unlike {@link Node2Bean}, a Node referenced several
+ *   times is written each time.</li>
+ *   <li>The parameters of the constructor of the JavaBean are written like the fields.</li>
+ * </ul>
+ * Fields whose property or child node is missing are written with the value they have in a bean
+ * created once per class with no properties, like null or the initial value of the field. Fields
+ * excluded by the projection of the {@link MappingOptions} are not written at all, and Nodes whose
+ * JavaBean cannot be instantiated are written as null. Setters are never invoked.
+ */
+@Slf4j
+public class Node2Json {
+
+  private static final ClassValue<Prototype> PROTOTYPES = new ClassValue<Prototype>() {
+    @Override
+    protected Prototype computeValue(Class<?> type) {
+      return new Prototype(BeanMapping.of(type));
+    }
+  };
+
+  /**
+   * Writes a Node as a JSON object to the stream, encoded as UTF-8. The stream is flushed but not
+   * closed.
+   *
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean that declares the fields to write
+   * @param lang Optional. The language to get the properties from.
+   * @param out The stream to write to, like the one of the response
+   * @throws IOException If the stream cannot be written.
+   * @throws RepositoryException If the Node cannot be accessed.
+   */
+  public static void write(Node node, Class<?> clazz, @Nullable String lang, OutputStream out)
+      throws IOException, RepositoryException {
+    write(node, clazz, lang, MappingOptions.DEFAULT, toWriter(out));
+  }
+
+  /**
+   * Refer to {@link #write(Node, Class, String, OutputStream)}. The writer is flushed but not
+   * closed.
+   *
+   * @param node The Node to get the data from.
+   * @param clazz The class of the JavaBean that declares the fields to write
+   * @param lang Optional. The language to get the properties from.
+   * @param options The options that limit the depth and the fields written
+   * @param writer The writer to write to
+   * @throws IOException If the writer cannot be written.
+   * @throws RepositoryException If the Node cannot be accessed.
+   */
+  public static void write(Node node, Class<?> clazz, @Nullable String lang,
+                           MappingOptions options, Writer writer)
+      throws IOException, RepositoryException {
+    JsonWriter json = new JsonWriter(writer);
+
+    writeNode(node, BeanMapping.of(clazz), MappingContext.create(lang, options), json);
+    json.flush();
+  }
+
+  /**
+   * Writes every Node of the iterator as a JSON array of objects to the stream, encoded as UTF-8.
+   * The Nodes are read and written one by one, so the whole array is never held in memory. The
+   * stream is flushed but not closed.
+   *
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean that declares the fields to write
+   * @param lang Optional. The language to get the properties from.
+   * @param out The stream to write to, like the one of the response
+   * @throws IOException If the stream cannot be written.
+   * @throws RepositoryException If the Nodes cannot be accessed.
+   */
+  public static void writeAll(NodeIterator nodes, Class<?> clazz, @Nullable String lang,
+                              OutputStream out)
+      throws IOException, RepositoryException {
+    writeAll(nodes, clazz, lang, MappingOptions.DEFAULT, toWriter(out));
+  }
+
+  /**
+   * Refer to {@link #writeAll(NodeIterator, Class, String, OutputStream)}. The writer is flushed
+   * but not closed.
+   *
+   * @param nodes The Nodes to get the data from.
+   * @param clazz The class of the JavaBean that declares the fields to write
+   * @param lang Optional. The language to get the properties from.
+   * @param options The options that limit the depth and the fields written
+   * @param writer The writer to write to
+   * @throws IOException If the writer cannot be written.
+   * @throws RepositoryException If the Nodes cannot be accessed.
+   */
+  public static void writeAll(NodeIterator nodes, Class<?> clazz, @Nullable String lang,
+                              MappingOptions options, Writer writer)
+      throws IOException, RepositoryException {
+    MappingContext context = MappingContext.create(lang, options);
+    BeanMapping<?> mapping = BeanMapping.of(clazz);
+    JsonWriter json = new JsonWriter(writer);
+
+    json.beginArray();
+
+    while (nodes.hasNext()) {
+      writeNode(nodes.nextNode(), mapping, context, json);
+    }
+
+    json.endArray();
+    json.flush();
+  }
+
+  private static Writer toWriter(OutputStream out) {
+    return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+
+  private static void writeNode(Node node, BeanMapping<?> mapping, MappingContext context,
+                                JsonWriter json)
+      throws IOException, RepositoryException {
+    Prototype prototype = PROTOTYPES.get(mapping.getType());
+
+    if (!prototype.isInstantiable()) {
+      json.nullValue();
+
+      return;
+    }
+
+    String identifier = node.getIdentifier();
+
+    context.setSession(node.getSession());
+    context.enter(identifier);
+
+    try {
+      json.beginObject();
+
+      Set<String> written = new HashSet<>();
+
+      for (ConstructorParameter parameter : mapping.getConstructorParameters()) {
+        if (mapping.getField(parameter.getName()) == null
+            && context.isIncluded(parameter.getName())) {
+          Property property = context.getProperty(node, parameter.getName(),
+              parameter.isTranslatable());
+
+          json.name(parameter.getName());
+          writeObject(property == null ? prototype.get(parameter.getName())
+              : BeanMapping.adapt(PropertyUtils.getPropertyByType(property), parameter.getType(),
+                  parameter.getName()), json);
+          written.add(parameter.getName());
+        }
+      }
+
+      for (FieldMapping field : mapping.getFields()) {
+        if (!context.isIncluded(field.getName()) || !written.add(field.getName())) {
+          continue;
+        }
+
+        json.name(field.getName());
+
+        if (field.isChildren()) {
+          writeChildren(node, field, prototype, context, json);
+        } else {
+          Property property = context.getProperty(node, field.getName(), field.isTranslatable());
+
+          if (property == null) {
+            writeObject(prototype.get(field.getName()), json);
+          } else if (field.isReference()) {
+            writeReference(property, field, prototype, context, json);
+          } else {
+            writeObject(field.adapt(PropertyUtils.getPropertyByType(property)), json);
+          }
+        }
+      }
+
+      json.endObject();
+    } finally {
+      context.exit(identifier);
+    }
+  }
+
+  private static void writeChildren(Node node, FieldMapping field, Prototype prototype,
+                                    MappingContext context, JsonWriter json)
+      throws IOException, RepositoryException {
+    if (!node.hasNode(field.getName()) || !context.canDescend()) {
+      writeObject(prototype.get(field.getName()), json);
+
+      return;
+    }
+
+    BeanMapping<?> mapping = BeanMapping.of(field.getChildren().typeOf());
+    NodeIterator children = node.getNode(field.getName()).getNodes();
+
+    context.descend();
+
+    try {
+      json.beginArray();
+
+      while (children.hasNext()) {
+        writeNode(children.nextNode(), mapping, context, json);
+      }
+
+      json.endArray();
+    } finally {
+      context.ascend();
+    }
+  }
+
+  /**
+   * Writes the referenced Nodes that {@link ReferenceResolver} would set: the ones found, whose
+   * JavaBean can be instantiated and which are not being written.
+   */
+  private static void writeReference(Property property, FieldMapping field, Prototype prototype,
+                                     MappingContext context, JsonWriter json)
+      throws IOException, RepositoryException {
+    Reference annotation = field.getReference();
+    BeanMapping<?> mapping = BeanMapping.of(annotation.typeOf());
+    Class<?> type = field.getField().getType();
+    boolean collection = Collection.class.isAssignableFrom(type);
+
+    if (!context.canDescend()) {
+      writeObject(prototype.get(field.getName()), json);
+
+      return;
+    }
+
+    // Sets hold each referenced bean once
+    Collection<String> identifiers = Set.class.isAssignableFrom(type) ? new LinkedHashSet<>()
+        : new ArrayList<>();
+
+    for (Value value : property.isMultiple() ? property.getValues()
+        : new Value[] {property.getValue()}) {
+      identifiers.add(value.getString());
+    }
+
+    List<Node> nodes = new ArrayList<>();
+
+    if (PROTOTYPES.get(annotation.typeOf()).isInstantiable()) {
+      identifiers.removeIf(identifier -> isSkipped(identifier, field, context));
+
+      Map<String, Node> fetched = ReferenceResolver.fetch(context, annotation.workspace(),
+          new ArrayList<>(identifiers));
+
+      for (String identifier : identifiers) {
+        Node node = fetched.get(identifier);
+
+        if (node != null) {
+          nodes.add(node);
+
+          if (!collection) {
+            break;
+          }
+        }
+      }
+    }
+
+    if (!collection && nodes.isEmpty()) {
+      writeObject(prototype.get(field.getName()), json);
+
+      return;
+    }
+
+    context.descend();
+
+    try {
+      if (collection) {
+        json.beginArray();
+      }
+
+      for (Node node : nodes) {
+        writeNode(node, mapping, context, json);
+      }
+
+      if (collection) {
+        json.endArray();
+      }
+    } finally {
+      context.ascend();
+    }
+  }
+
+  private static boolean isSkipped(String identifier, FieldMapping field,
+                                   MappingContext context) {
+    if (StringUtils.isEmpty(identifier)) {
+      return true;
+    }
+
+    if (context.isAncestor(identifier)) {
+      log.warn("Reference [" + identifier + "] of field '" + field.getName()
+          + "' is being written, skipping it to avoid a cycle");
+
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Writes a value set by {@link Node2Bean} or the initial value of a field.
+   */
+  private static void writeObject(@Nullable Object value, JsonWriter json) throws IOException {
+    if (value == null) {
+      json.nullValue();
+    } else if (value instanceof Boolean) {
+      json.value((Boolean) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      double number = ((Number) value).doubleValue();
+
+      // JSON has no representation for NaN nor infinity
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        json.nullValue();
+      } else {
+        json.value((Number) value);
+      }
+    } else if (value instanceof Number) {
+      json.value((Number) value);
+    } else if (value instanceof Date) {
+      json.value(DateTimeFormatter.ISO_INSTANT.format(((Date) value).toInstant()));
+    } else if (value instanceof Collection) {
+      json.beginArray();
+
+      for (Object item : (Collection<?>) value) {
+        writeObject(item, json);
+      }
+
+      json.endArray();
+    } else {
+      json.value(value.toString());
+    }
+  }
+
+  /**
+   * The values the fields of a bean have before any property is set, read once per class from a
+   * bean created with the empty constructor, or with empty arguments if its constructor receives
+   * the properties.
+   */
+  private static final class Prototype {
+    private final BeanMapping<?> mapping;
+    private final boolean created;
+    private final Map<String, Object> values = new HashMap<>();
+
+    private Prototype(BeanMapping<?> mapping) {
+      Object bean = null;
+
+      if (mapping.isInstantiable()) {
+        try {
+          bean = mapping.getConstructorParameters().isEmpty() ? mapping.newInstance()
+              : mapping.newInstance(new Object[mapping.getConstructorParameters().size()]);
+        } catch (InstantiationException | InvocationTargetException
+            | IllegalArgumentException e) {
+          log.error("Cannot instantiate " + mapping.getType().getName()
+              + " to get the initial values of its fields", e);
+        }
+      }
+
+      // The fields of a class hide the ones with the same name of its superclasses
+      for (Field field : ReflectionUtils.getAllFields(mapping.getType())) {
+        if (!Modifier.isStatic(field.getModifiers())) {
+          values.put(field.getName(), getInitialValue(field, bean));
+        }
+      }
+
+      this.mapping = mapping;
+      this.created = bean != null;
+    }
+
+    @Nullable
+    private static Object getInitialValue(Field field, @Nullable Object bean) {
+      if (bean != null) {
+        try {
+          field.setAccessible(true);
+
+          return field.get(bean);
+        } catch (IllegalAccessException | RuntimeException e) {
+          log.debug("Cannot read the initial value of field '" + field.getName() + "'", e);
+        }
+      }
+
+      return field.getType().isPrimitive()
+          ? Array.get(Array.newInstance(field.getType(), 1), 0) : null;
+    }
+
+    /**
+     * Checks if {@link Node2Bean} can map the JavaBean. The ones created with their empty
+     * constructor always fail if it failed for the prototype.
+     */
+    private boolean isInstantiable() {
+      return mapping.isInstantiable()
+          && (created || !mapping.getConstructorParameters().isEmpty());
+    }
+
+    /**
+     * Gets the initial value of a field, or the default value of its type if it cannot be read,
+     * or null if there is no such field.
+     */
+    @Nullable
+    private Object get(String name) {
+      return values.get(name);
+    }
+  }
+}
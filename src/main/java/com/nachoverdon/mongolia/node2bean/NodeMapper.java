@@ -0,0 +1,29 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import java.lang.reflect.InvocationTargetException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Maps a Node into a JavaBean without reflection. Implementations are generated at build time by
+ * {@link com.nachoverdon.mongolia.node2bean.processor.NodeMapperProcessor} for every bean that uses
+ * the mongolia annotations, and are picked by {@link Node2Bean#toBean(Node, Class, String)} when
+ * available.
+ *
+ * @param <T> The type of the JavaBean
+ */
+public interface NodeMapper<T> {
+
+  /**
+   * Transforms a Node into a JavaBean.
+   *
+   * @param node The Node to get the data from.
+   * @param context The languages and state of the current mapping
+   * @return The JavaBean
+   * @throws RepositoryException If the properties or nodes cannot be accessed.
+   * @throws InvocationTargetException If the constructor or a setter of the bean throws an
+   *     exception.
+   * @throws IllegalArgumentException If a value cannot be assigned to its field.
+   */
+  T map(Node node, MappingContext context) throws RepositoryException, InvocationTargetException;
+}
@@ -0,0 +1,79 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import java.util.Optional;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Finds the {@link NodeMapper} generated at build time for a JavaBean class. The generated mapper
+ * of "com.example.Book" is "com.example.BookNodeMapper" and the one of "com.example.Outer.Inner" is
+ * "com.example.Outer_InnerNodeMapper".
+ */
+@Slf4j
+public final class NodeMappers {
+
+  public static final String SUFFIX = "NodeMapper";
+
+  private static final ClassValue<Optional<NodeMapper<?>>> MAPPERS =
+      new ClassValue<Optional<NodeMapper<?>>>() {
+        @Override
+        protected Optional<NodeMapper<?>> computeValue(Class<?> type) {
+          return Optional.ofNullable(load(type));
+        }
+      };
+
+  private NodeMappers() {
+  }
+
+  /**
+   * Gets the generated mapper of the given class.
+   *
+   * @param clazz The class of the JavaBean
+   * @param <T> The type of the JavaBean
+   * @return The generated mapper or null if there is none
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public static <T> NodeMapper<T> get(Class<T> clazz) {
+    return (NodeMapper<T>) MAPPERS.get(clazz).orElse(null);
+  }
+
+  /**
+   * Gets the fully qualified name of the mapper generated for the given class.
+   *
+   * @param clazz The class of the JavaBean
+   * @return The name of the generated mapper
+   */
+  public static String getMapperName(Class<?> clazz) {
+    String packageName = clazz.getPackage() == null ? "" : clazz.getPackage().getName();
+    String simpleName = packageName.isEmpty()
+        ? clazz.getName()
+        : clazz.getName().substring(packageName.length() + 1);
+
+    return (packageName.isEmpty() ? "" : packageName + ".") + simpleName.replace('$', '_')
+        + SUFFIX;
+  }
+
+  @Nullable
+  private static NodeMapper<?> load(Class<?> type) {
+    if (type.getClassLoader() == null) {
+      return null;
+    }
+
+    try {
+      Class<?> mapperClass = Class.forName(getMapperName(type), true, type.getClassLoader());
+
+      if (!NodeMapper.class.isAssignableFrom(mapperClass)) {
+        return null;
+      }
+
+      return (NodeMapper<?>) mapperClass.getConstructor().newInstance();
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      log.error("Cannot instantiate the generated mapper of '" + type.getName() + "' class", e);
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,331 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import com.nachoverdon.mongolia.annotations.Reference;
+import com.nachoverdon.mongolia.node2bean.BeanMapping.FieldMapping;
+import com.nachoverdon.mongolia.utils.NodeUtils;
+import com.nachoverdon.mongolia.utils.QueryUtils;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects the identifiers held by the {@link Reference} fields of the beans mapped within a
+ * {@link MappingContext}, and resolves all of them at once: the referenced Nodes are fetched with a
+ * single query per workspace, with the session of the user that read the mapped Nodes, and mapped
+ * with the same context. A Node referenced by several beans is mapped only once.
+ * <p>
+ * The beans never hold themselves: a reference to a Node whose bean already holds the referring
+ * bean, as a child or through other references, is left unset. Each queued reference remembers
+ * the ancestors of its bean, so the cycle is detected although the referenced Nodes are mapped
+ * after the referring bean is done.
+ * </p>
+ */
+@Slf4j
+final class ReferenceResolver {
+
+  /**
+   * The amount of identifiers fetched with a single query. The streaming methods of
+   * {@link Node2Bean} also map this amount of Nodes before resolving their references.
+   */
+  static final int BATCH_SIZE = 100;
+
+  private final List<PendingReference> pending = new ArrayList<>();
+  private final Map<String, Object> resolved = new HashMap<>();
+  // The identifiers of the beans held by each bean, as children or references
+  private final Map<String, Set<String>> holds = new HashMap<>();
+  private boolean resolving;
+
+  void add(Object bean, FieldMapping field, List<String> identifiers, int depth,
+           List<String> ancestors) {
+    pending.add(new PendingReference(bean, field, identifiers, depth, ancestors));
+  }
+
+  /**
+   * Resolves the pending references, including the ones added by the referenced beans themselves.
+   * It does nothing if it is already resolving.
+   */
+  void resolve(MappingContext context) {
+    if (resolving) {
+      return;
+    }
+
+    resolving = true;
+
+    try {
+      while (!pending.isEmpty()) {
+        List<PendingReference> round = new ArrayList<>(pending);
+
+        pending.clear();
+        resolve(context, round, fetch(context, round));
+      }
+    } finally {
+      resolving = false;
+    }
+  }
+
+  private void resolve(MappingContext context, List<PendingReference> round,
+                       Map<String, Map<String, Node>> nodesByWorkspace) {
+    int depth = context.getDepth();
+    List<String> ancestors = context.getAncestors();
+
+    for (PendingReference reference : round) {
+      Reference annotation = reference.field.getReference();
+      Map<String, Node> nodes = nodesByWorkspace.get(annotation.workspace());
+      List<Object> beans = new ArrayList<>();
+      String holder = reference.ancestors.isEmpty() ? null
+          : reference.ancestors.get(reference.ancestors.size() - 1);
+
+      for (int i = 1; i < reference.ancestors.size(); i++) {
+        hold(reference.ancestors.get(i - 1), reference.ancestors.get(i));
+      }
+
+      context.setDepth(reference.depth + 1);
+      context.setAncestors(reference.ancestors);
+
+      try {
+        for (String identifier : reference.identifiers) {
+          if (reference.ancestors.contains(identifier)
+              || (holder != null && holds(identifier, holder))) {
+            log.warn("Reference [" + identifier + "] of field '" + reference.field.getName()
+                + "' holds the referring bean, leaving it unset to avoid a cycle");
+
+            continue;
+          }
+
+          String key = annotation.workspace() + ":" + identifier + ":" + annotation.typeOf()
+              .getName();
+          Object bean = resolved.get(key);
+          Node node = nodes == null ? null : nodes.get(identifier);
+
+          if (bean == null && node != null) {
+            bean = Node2Bean.mapNode(node, annotation.typeOf(), context);
+
+            if (bean != null) {
+              resolved.put(key, bean);
+            }
+          }
+
+          if (bean != null) {
+            beans.add(bean);
+
+            if (holder != null) {
+              hold(holder, identifier);
+            }
+          }
+        }
+      } finally {
+        context.setDepth(depth);
+        context.setAncestors(ancestors);
+      }
+
+      set(reference, beans);
+    }
+  }
+
+  private void hold(String holder, String identifier) {
+    holds.computeIfAbsent(holder, h -> new HashSet<>()).add(identifier);
+  }
+
+  /**
+   * Checks whether the bean of a Node holds the bean of another one, directly or not.
+   */
+  private boolean holds(String holder, String identifier) {
+    Deque<String> remaining = new ArrayDeque<>();
+    Set<String> visited = new HashSet<>();
+
+    remaining.push(holder);
+
+    while (!remaining.isEmpty()) {
+      String current = remaining.pop();
+
+      if (current.equals(identifier)) {
+        return true;
+      }
+
+      if (visited.add(current)) {
+        remaining.addAll(holds.getOrDefault(current, Collections.emptySet()));
+      }
+    }
+
+    return false;
+  }
+
+  private void set(PendingReference reference, List<Object> beans) {
+    Class<?> type = reference.field.getField().getType();
+
+    try {
+      if (Collection.class.isAssignableFrom(type)) {
+        Collection<Object> collection = newCollection(type);
+
+        collection.addAll(beans);
+        reference.field.set(reference.bean, collection);
+      } else if (!beans.isEmpty()) {
+        reference.field.set(reference.bean, beans.get(0));
+      }
+    } catch (InvocationTargetException | IllegalArgumentException e) {
+      log.error("Cannot set the reference of field '" + reference.field.getName() + "'", e);
+    }
+  }
+
+  /**
+   * Creates an empty collection of the type declared by a field: an {@link ArrayList} for a
+   * {@link List} or a {@link Collection}, a {@link LinkedHashSet} for a {@link Set}, a
+   * {@link TreeSet} for a {@link SortedSet}, an {@link ArrayDeque} for a {@link Queue}, or a new
+   * instance of a concrete class.
+   *
+   * @throws IllegalArgumentException If the type cannot be instantiated.
+   */
+  @SuppressWarnings("unchecked")
+  static Collection<Object> newCollection(Class<?> type) {
+    if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+      try {
+        return (Collection<Object>) type.getConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalArgumentException("Cannot instantiate " + type.getName(), e);
+      }
+    }
+
+    if (type.isAssignableFrom(ArrayList.class)) {
+      return new ArrayList<>();
+    }
+
+    if (type.isAssignableFrom(LinkedHashSet.class)) {
+      return new LinkedHashSet<>();
+    }
+
+    if (type.isAssignableFrom(TreeSet.class)) {
+      return new TreeSet<>();
+    }
+
+    if (type.isAssignableFrom(ArrayDeque.class)) {
+      return new ArrayDeque<>();
+    }
+
+    throw new IllegalArgumentException("Cannot instantiate " + type.getName());
+  }
+
+  /**
+   * Fetches the Nodes of all the references not resolved yet, grouped by workspace and identifier.
+   */
+  private Map<String, Map<String, Node>> fetch(MappingContext context,
+                                               List<PendingReference> round) {
+    Map<String, Set<String>> identifiersByWorkspace = new LinkedHashMap<>();
+
+    for (PendingReference reference : round) {
+      Reference annotation = reference.field.getReference();
+
+      for (String identifier : reference.identifiers) {
+        if (!resolved.containsKey(annotation.workspace() + ":" + identifier + ":"
+            + annotation.typeOf().getName())) {
+          identifiersByWorkspace.computeIfAbsent(annotation.workspace(), w -> new LinkedHashSet<>())
+              .add(identifier);
+        }
+      }
+    }
+
+    Map<String, Map<String, Node>> nodesByWorkspace = new HashMap<>();
+
+    identifiersByWorkspace.forEach((workspace, identifiers) -> nodesByWorkspace.put(workspace,
+        fetch(context, workspace, new ArrayList<>(identifiers))));
+
+    return nodesByWorkspace;
+  }
+
+  /**
+   * Fetches the Nodes with the session of the user that read the mapped Nodes, refer to
+   * {@link MappingContext#getSession(String)}, so the references hold only what the user can read.
+   * They are fetched with a query per {@link #BATCH_SIZE} identifiers. Also used by
+   * {@link Node2Json}.
+   */
+  static Map<String, Node> fetch(MappingContext context, String workspace,
+                                 List<String> identifiers) {
+    Map<String, Node> nodes = new HashMap<>();
+    Session session;
+
+    try {
+      session = context.getSession(workspace);
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve references on workspace [" + workspace + "]", e);
+
+      return nodes;
+    }
+
+    for (int i = 0; i < identifiers.size(); i += BATCH_SIZE) {
+      List<String> batch = identifiers.subList(i, Math.min(i + BATCH_SIZE, identifiers.size()));
+      String statement = "SELECT * FROM [nt:base] WHERE " + batch.stream()
+          .map(identifier -> "[jcr:uuid] = " + QueryUtils.quote(identifier))
+          .collect(Collectors.joining(" OR "));
+
+      try {
+        NodeUtils.forEach(QueryUtils.getQuery(statement, session).execute().getNodes(), node -> {
+          try {
+            nodes.put(node.getIdentifier(), node);
+          } catch (RepositoryException e) {
+            log.error(e.getMessage(), e);
+          }
+        });
+      } catch (RepositoryException e) {
+        log.error("Could not retrieve references on workspace [" + workspace + "]: " + statement,
+            e);
+      }
+    }
+
+    // Nodes without jcr:uuid are not found by the query
+    for (String identifier : identifiers) {
+      if (!nodes.containsKey(identifier)) {
+        getNodeByIdentifier(session, identifier, nodes);
+      }
+    }
+
+    return nodes;
+  }
+
+  private static void getNodeByIdentifier(Session session, String identifier,
+                                          Map<String, Node> nodes) {
+    try {
+      nodes.put(identifier, session.getNodeByIdentifier(identifier));
+    } catch (ItemNotFoundException e) {
+      log.debug("Referenced node [" + identifier + "] not found on workspace ["
+          + session.getWorkspace().getName() + "]");
+    } catch (RepositoryException e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  private static final class PendingReference {
+    private final Object bean;
+    private final FieldMapping field;
+    private final List<String> identifiers;
+    private final int depth;
+    private final List<String> ancestors;
+
+    private PendingReference(Object bean, FieldMapping field, List<String> identifiers,
+                             int depth, List<String> ancestors) {
+      this.bean = bean;
+      this.field = field;
+      this.identifiers = identifiers;
+      this.depth = depth;
+      this.ancestors = ancestors;
+    }
+  }
+}
@@ -0,0 +1,460 @@
+package com.nachoverdon.mongolia.node2bean.processor;
+
+import com.nachoverdon.mongolia.annotations.Children;
+import com.nachoverdon.mongolia.annotations.PropertyType;
+import com.nachoverdon.mongolia.annotations.Reference;
+import com.nachoverdon.mongolia.annotations.Translatable;
+import com.nachoverdon.mongolia.node2bean.NodeMappers;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Generates a {@link com.nachoverdon.mongolia.node2bean.NodeMapper} for every JavaBean that has
+ * fields annotated with {@link Translatable}, {@link Children}, {@link PropertyType} or
+ * {@link Reference}. The generated mapper sets the fields with straight-line code, so
+ * {@link com.nachoverdon.mongolia.node2bean.Node2Bean} doesn't need reflection for those beans.
+ * The {@link Reference} fields are left to Node2Bean, which resolves them in batch.
+ * <p>
+ * The generated mapper behaves exactly like the reflection based mapping plan of
+ * {@link com.nachoverdon.mongolia.node2bean.BeanMapping}: it reads the same properties, converts
+ * them the same way, fails for the same values and sets the fields through the same setters. The
+ * fields whose setter is generated by Lombok are set through the mapping plan, since this
+ * processor may run before Lombok does.
+ * </p>
+ * <p>
+ * The processor is registered as a service, so it runs automatically when mongolia is on the
+ * compile classpath of your module. Beans that cannot be instantiated from the generated code (not
+ * public, without a public empty constructor, abstract or inner classes) are skipped and will keep
+ * using reflection.
+ * </p>
+ */
+public class NodeMapperProcessor extends AbstractProcessor {
+
+  private static final String NODE = "javax.jcr.Node";
+  private static final String PROPERTY = "javax.jcr.Property";
+  private static final String CONTEXT = "com.nachoverdon.mongolia.node2bean.MappingContext";
+  private static final String NODE2BEAN = "com.nachoverdon.mongolia.node2bean.Node2Bean";
+  private static final String PROPERTY_UTILS = "com.nachoverdon.mongolia.utils.PropertyUtils";
+  private static final String BEAN_MAPPING = "com.nachoverdon.mongolia.node2bean.BeanMapping";
+  private static final String FIELD_MAPPING = BEAN_MAPPING + ".FieldMapping";
+  private static final String INVOCATION_EXCEPTION = "java.lang.reflect.InvocationTargetException";
+  private static final String LOMBOK_SETTER = "lombok.Setter";
+  private static final String LOMBOK_DATA = "lombok.Data";
+
+  private final Set<String> generated = new HashSet<>();
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return new HashSet<>(Arrays.asList(Translatable.class.getName(), Children.class.getName(),
+        PropertyType.class.getName(), Reference.class.getName()));
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    Set<TypeElement> beans = new LinkedHashSet<>();
+
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() == ElementKind.FIELD) {
+          beans.add((TypeElement) element.getEnclosingElement());
+        }
+      }
+    }
+
+    for (TypeElement bean : beans) {
+      if (isMappable(bean) && generated.add(bean.getQualifiedName().toString())) {
+        generate(bean);
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Checks if the generated code will be able to instantiate the bean.
+   */
+  private boolean isMappable(TypeElement bean) {
+    String reason = null;
+
+    if (bean.getKind() != ElementKind.CLASS || bean.getModifiers().contains(Modifier.ABSTRACT)) {
+      reason = "it is not a concrete class";
+    } else if (!bean.getModifiers().contains(Modifier.PUBLIC)) {
+      reason = "it is not public";
+    } else if (bean.getNestingKind() == NestingKind.MEMBER
+        && !bean.getModifiers().contains(Modifier.STATIC)) {
+      reason = "it is an inner class";
+    } else if (bean.getNestingKind() == NestingKind.LOCAL
+        || bean.getNestingKind() == NestingKind.ANONYMOUS) {
+      reason = "it is a local class";
+    } else if (!hasPublicEmptyConstructor(bean)) {
+      reason = "it doesn't have a public empty constructor";
+    }
+
+    if (reason != null) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No NodeMapper generated for "
+          + bean.getQualifiedName() + " because " + reason + ", it will use reflection", bean);
+
+      return false;
+    }
+
+    return true;
+  }
+
+  private boolean hasPublicEmptyConstructor(TypeElement bean) {
+    for (ExecutableElement constructor
+        : ElementFilter.constructorsIn(bean.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()
+          && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private void generate(TypeElement bean) {
+    PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(bean);
+    String packageName = packageElement.isUnnamed()
+        ? ""
+        : packageElement.getQualifiedName().toString();
+    String beanName = bean.getQualifiedName().toString();
+    String mapperName = (packageName.isEmpty() ? beanName
+        : beanName.substring(packageName.length() + 1)).replace('.', '_') + NodeMappers.SUFFIX;
+    StringBuilder constants = new StringBuilder();
+    StringBuilder properties = new StringBuilder();
+    StringBuilder children = new StringBuilder();
+    boolean hasReferences = false;
+
+    for (VariableElement field : getFields(bean).values()) {
+      Assignment assignment = getAssignment(bean, field);
+
+      if (assignment == null) {
+        continue;
+      }
+
+      // References are resolved in batch by Node2Bean
+      if (getAnnotation(field, Reference.class) != null) {
+        hasReferences = true;
+        continue;
+      }
+
+      if (assignment.constant != null) {
+        constants.append("  private static final ").append(FIELD_MAPPING).append(' ')
+            .append(assignment.constant).append(" =\n      ").append(BEAN_MAPPING)
+            .append(".of(").append(beanName).append(".class).getField(\"")
+            .append(field.getSimpleName()).append("\");\n\n");
+      }
+
+      // Like the mapping plan, properties are set before children
+      if (isChildren(field)) {
+        appendChildren(children.append('\n'), field, assignment);
+      } else {
+        appendProperty(properties.append('\n'), field, assignment);
+      }
+    }
+
+    StringBuilder source = new StringBuilder();
+
+    if (!packageName.isEmpty()) {
+      source.append("package ").append(packageName).append(";\n\n");
+    }
+
+    source.append("/**\n * Generated by ").append(getClass().getName())
+        .append(" from {@link ").append(beanName).append("}. Do not edit.\n */\n")
+        .append("public final class ").append(mapperName)
+        .append(" implements com.nachoverdon.mongolia.node2bean.NodeMapper<").append(beanName)
+        .append("> {\n\n")
+        .append(constants)
+        .append("  @Override\n")
+        .append("  @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+        .append("  public ").append(beanName).append(" map(").append(NODE).append(" node, ")
+        .append(CONTEXT).append(" context)\n")
+        .append("      throws javax.jcr.RepositoryException, ").append(INVOCATION_EXCEPTION)
+        .append(" {\n")
+        .append("    ").append(beanName).append(" bean;\n")
+        .append("    ").append(PROPERTY).append(" property;\n")
+        .append("    Object value;\n\n")
+        .append("    try {\n")
+        .append("      bean = new ").append(beanName).append("();\n")
+        .append("    } catch (Throwable e) {\n")
+        .append("      throw new ").append(INVOCATION_EXCEPTION).append("(e);\n")
+        .append("    }\n")
+        .append(properties)
+        .append(children);
+
+    if (hasReferences) {
+      source.append("\n    ").append(NODE2BEAN).append(".addReferences(node, bean, context);\n");
+    }
+
+    source.append("\n    return bean;\n  }\n}\n");
+
+    String qualifiedMapperName = packageName.isEmpty()
+        ? mapperName
+        : packageName + "." + mapperName;
+
+    try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedMapperName, bean)
+        .openWriter()) {
+      writer.write(source.toString());
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Cannot write " + qualifiedMapperName + ": " + e.getMessage(), bean);
+    }
+  }
+
+  /**
+   * Gets the instance fields of the bean and its superclasses. Fields of subclasses hide the ones
+   * with the same name of their superclasses.
+   */
+  private Map<String, VariableElement> getFields(TypeElement bean) {
+    Map<String, VariableElement> fields = new LinkedHashMap<>();
+    TypeMirror superclass = bean.getSuperclass();
+
+    if (superclass.getKind() == TypeKind.DECLARED) {
+      fields.putAll(getFields((TypeElement) ((DeclaredType) superclass).asElement()));
+    }
+
+    for (VariableElement field : ElementFilter.fieldsIn(bean.getEnclosedElements())) {
+      if (!field.getModifiers().contains(Modifier.STATIC)) {
+        fields.remove(field.getSimpleName().toString());
+        fields.put(field.getSimpleName().toString(), field);
+      }
+    }
+
+    return fields;
+  }
+
+  /**
+   * Gets how the field is set, as {@link com.nachoverdon.mongolia.node2bean.BeanMapping} does:
+   * through its public setter if any, or directly if the field is public. The setters that Lombok
+   * generates may not exist yet when this processor runs, so the fields with Lombok's
+   * {@code @Setter} or {@code @Data} are set through the mapping plan instead.
+   */
+  @Nullable
+  private Assignment getAssignment(TypeElement bean, VariableElement field) {
+    String name = field.getSimpleName().toString();
+    String setterName = "set" + StringUtils.capitalize(name);
+    List<ExecutableElement> methods = ElementFilter.methodsIn(
+        processingEnv.getElementUtils().getAllMembers(bean));
+
+    for (ExecutableElement method : methods) {
+      if (method.getSimpleName().contentEquals(setterName)
+          && method.getModifiers().contains(Modifier.PUBLIC)
+          && !method.getModifiers().contains(Modifier.STATIC)
+          && method.getParameters().size() == 1
+          && getErasure(method.getParameters().get(0).asType())
+          .equals(getErasure(field.asType()))) {
+        return new Assignment("bean." + setterName + "(", true, null);
+      }
+    }
+
+    if (hasLombokSetter(field)) {
+      return new Assignment(null, true, "FIELD_" + name);
+    }
+
+    return field.getModifiers().contains(Modifier.PUBLIC)
+        ? new Assignment("bean." + name + " = ", false, null)
+        : null;
+  }
+
+  private static boolean hasLombokSetter(VariableElement field) {
+    if (field.getModifiers().contains(Modifier.FINAL)) {
+      return false;
+    }
+
+    Element type = field.getEnclosingElement();
+
+    return getAnnotation(field, LOMBOK_SETTER) != null
+        || getAnnotation(type, LOMBOK_SETTER) != null
+        || getAnnotation(type, LOMBOK_DATA) != null;
+  }
+
+  private boolean isChildren(VariableElement field) {
+    return getAnnotation(field, Children.class) != null
+        && "java.util.Collection".equals(getErasure(field.asType()));
+  }
+
+  private void appendChildren(StringBuilder source, VariableElement field,
+                              Assignment assignment) {
+    String name = field.getSimpleName().toString();
+    AnnotationMirror children = getAnnotation(field, Children.class);
+    AnnotationValue typeOf = getAnnotationValue(children, "typeOf");
+    AnnotationValue lazy = getAnnotationValue(children, "lazy");
+    String childrenType = typeOf == null ? "Object" : getErasure((TypeMirror) typeOf.getValue());
+
+    source.append("    if (");
+
+    if (assignment.constant != null) {
+      source.append(assignment.constant).append(" != null && ");
+    }
+
+    source.append("context.canDescend() && node.hasNode(\"").append(name).append("\")) {\n")
+        .append("      value = ").append(NODE2BEAN).append(".toChildrenBeans(node.getNode(\"")
+        .append(name).append("\"), ").append(childrenType).append(".class, context, ")
+        .append(lazy != null && (Boolean) lazy.getValue()).append(");\n");
+    appendSet(source, field, assignment);
+    source.append("    }\n");
+  }
+
+  private void appendProperty(StringBuilder source, VariableElement field,
+                              Assignment assignment) {
+    String name = field.getSimpleName().toString();
+    boolean translatable = getAnnotation(field, Translatable.class) != null;
+
+    source.append("    property = context.getProperty(node, \"").append(name).append("\", ")
+        .append(translatable).append(");\n")
+        .append("    if (property != null");
+
+    if (assignment.constant != null) {
+      source.append(" && ").append(assignment.constant).append(" != null");
+    }
+
+    source.append(") {\n")
+        .append("      value = ").append(PROPERTY_UTILS).append(".getPropertyByType(property);\n");
+    appendSet(source, field, assignment);
+    source.append("    }\n");
+  }
+
+  /**
+   * Appends the statements that set the value, which behave like the setters of the mapping plan:
+   * the value is converted as explained on
+   * {@link com.nachoverdon.mongolia.node2bean.BeanMapping#adapt(Object, Class, String)}, and
+   * anything thrown by a setter is wrapped into an InvocationTargetException.
+   */
+  private void appendSet(StringBuilder source, VariableElement field, Assignment assignment) {
+    if (assignment.constant != null) {
+      source.append("      ").append(assignment.constant).append(".set(bean, value);\n");
+
+      return;
+    }
+
+    String fieldType = getErasure(field.asType());
+
+    source.append("      value = ").append(BEAN_MAPPING).append(".adapt(value, ")
+        .append(fieldType).append(".class, \"").append(field.getSimpleName())
+        .append("\");\n");
+
+    if (!assignment.setter) {
+      source.append("      ").append(assignment.start).append('(').append(box(fieldType))
+          .append(") value;\n");
+
+      return;
+    }
+
+    source.append("      try {\n")
+        .append("        ").append(assignment.start).append('(').append(box(fieldType))
+        .append(") value);\n")
+        .append("      } catch (Throwable e) {\n")
+        .append("        throw new ").append(INVOCATION_EXCEPTION).append("(e);\n")
+        .append("      }\n");
+  }
+
+  private static String box(String type) {
+    switch (type) {
+      case "boolean":
+        return "java.lang.Boolean";
+      case "byte":
+        return "java.lang.Byte";
+      case "char":
+        return "java.lang.Character";
+      case "short":
+        return "java.lang.Short";
+      case "int":
+        return "java.lang.Integer";
+      case "long":
+        return "java.lang.Long";
+      case "float":
+        return "java.lang.Float";
+      case "double":
+        return "java.lang.Double";
+      default:
+        return type;
+    }
+  }
+
+  private String getErasure(TypeMirror type) {
+    TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+
+    if (erasure.getKind() == TypeKind.DECLARED) {
+      return ((TypeElement) ((DeclaredType) erasure).asElement()).getQualifiedName().toString();
+    }
+
+    return erasure.toString();
+  }
+
+  private static AnnotationMirror getAnnotation(Element element, Class<?> annotation) {
+    return getAnnotation(element, annotation.getName());
+  }
+
+  private static AnnotationMirror getAnnotation(Element element, String annotation) {
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+
+      if (type.getQualifiedName().contentEquals(annotation)) {
+        return mirror;
+      }
+    }
+
+    return null;
+  }
+
+  private static AnnotationValue getAnnotationValue(AnnotationMirror annotation, String name) {
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+        : annotation.getElementValues().entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals(name)) {
+        return entry.getValue();
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * How the generated code sets a field: with a setter or the field itself, whose statement starts
+   * with {@link #start}, or through the mapping plan of the field held by {@link #constant}.
+   */
+  private static final class Assignment {
+    @Nullable
+    private final String start;
+    private final boolean setter;
+    @Nullable
+    private final String constant;
+
+    private Assignment(@Nullable String start, boolean setter, @Nullable String constant) {
+      this.start = start;
+      this.setter = setter;
+      this.constant = constant;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.nachoverdon.mongolia.setup;
+
+import com.nachoverdon.mongolia.node2bean.BeanCache;
+import com.nachoverdon.mongolia.utils.QueryResultCache;
+import info.magnolia.module.ModuleLifecycle;
+import info.magnolia.module.ModuleLifecycleContext;
+
+/**
+ * Releases the resources held by the shared caches of Mongolia when the module stops: the JCR
+ * observation listeners registered by {@link BeanCache} and {@link QueryResultCache} are
+ * unregistered and their entries are evicted.
+ * Use it as the class of your module in the module descriptor xml, or call {@link #stop} from the
+ * {@link ModuleLifecycle} of your own module.
+ */
+public class MongoliaModule implements ModuleLifecycle {
+  @Override
+  public void start(ModuleLifecycleContext moduleLifecycleContext) {
+    // The caches register their listeners the first time each workspace is used
+  }
+
+  @Override
+  public void stop(ModuleLifecycleContext moduleLifecycleContext) {
+    BeanCache.getInstance().shutdown();
+    QueryResultCache.getInstance().shutdown();
+  }
+}
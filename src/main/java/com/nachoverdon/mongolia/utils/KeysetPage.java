@@ -0,0 +1,108 @@
+package com.nachoverdon.mongolia.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import lombok.Value;
+
+/**
+ * A page of nodes retrieved with keyset pagination, refer to
+ * {@link QueryUtils#getNodesPage(String, String, String, boolean, String, int, String)}. Instead of
+ * an offset, the next page is requested with the token of this one, which holds the sort value
+ * and the identifier of its last node.
+ */
+@Value
+public class KeysetPage {
+  List<Node> nodes;
+  @Nullable
+  String nextToken;
+
+  /**
+   * Checks if there are more nodes after this page.
+   *
+   * @return true if there is a next token
+   */
+  public boolean hasNext() {
+    return nextToken != null;
+  }
+
+  /**
+   * Builds the token that points right after the given node.
+   *
+   * @param node The last node of the page
+   * @param orderBy The property the nodes are sorted by
+   * @return An opaque, URL safe token
+   * @throws RepositoryException If the node cannot be accessed.
+   * @throws IllegalArgumentException If the property is multi-valued.
+   */
+  static String toToken(Node node, String orderBy) throws RepositoryException {
+    Property property = getSortProperty(node, orderBy);
+    String token = property.getType() + "|" + node.getIdentifier() + "|" + property.getString();
+
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Gets the property the nodes are sorted by, which must be single-valued: the order of the
+   * nodes by a multi-valued property, and so the position after one of them, is not defined.
+   *
+   * @param node A node of the page
+   * @param orderBy The property the nodes are sorted by
+   * @return The property
+   * @throws RepositoryException If the node cannot be accessed.
+   * @throws IllegalArgumentException If the property is multi-valued.
+   */
+  static Property getSortProperty(Node node, String orderBy) throws RepositoryException {
+    Property property = node.getProperty(orderBy);
+
+    if (property.isMultiple()) {
+      throw new IllegalArgumentException("Cannot page by the multi-valued property '" + orderBy
+          + "' of node " + node.getPath());
+    }
+
+    return property;
+  }
+
+  /**
+   * Reads a token built by {@link #toToken(Node, String)}.
+   *
+   * @param token The token
+   * @return The sort value and the identifier of the last node of the previous page
+   * @throws IllegalArgumentException If the token is not valid.
+   */
+  static Cursor fromToken(String token) {
+    try {
+      String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+          .split("\\|", 3);
+
+      if (parts.length == 3) {
+        int type = Integer.parseInt(parts[0]);
+
+        // Throws an IllegalArgumentException if it's not a property type
+        PropertyType.nameFromValue(type);
+
+        return new Cursor(type, parts[2], parts[1]);
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid page token: " + token, e);
+    }
+
+    throw new IllegalArgumentException("Invalid page token: " + token);
+  }
+
+  /**
+   * The position right after the last node of a page: its sort value and its identifier.
+   */
+  @Value
+  static class Cursor {
+    int type;
+    String value;
+    String identifier;
+  }
+}
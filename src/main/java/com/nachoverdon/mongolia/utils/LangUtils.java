@@ -1,6 +1,11 @@
 package com.nachoverdon.mongolia.utils;
 
+import info.magnolia.cms.i18n.I18nContentSupport;
 import info.magnolia.context.MgnlContext;
+import info.magnolia.objectfactory.Components;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
 
 public class LangUtils {
   public static final String DEFAULT_LANG = "en";
@@ -8,4 +13,32 @@ public class LangUtils {
   public static String getLanguage() {
     return MgnlContext.getAggregationState().getLocale().getLanguage();
   }
+
+  /**
+   * Gets the language of the untranslated properties. On a web context it is the fallback locale
+   * of the {@link I18nContentSupport}, otherwise {@link #DEFAULT_LANG}.
+   *
+   * @return The default language
+   */
+  public static String getDefaultLanguage() {
+    return MgnlContext.isWebContext()
+        ? Components.getComponent(I18nContentSupport.class).getFallbackLocale().getLanguage()
+        : DEFAULT_LANG;
+  }
+
+  /**
+   * Gets the languages of the locales the content is translated to, configured in the
+   * {@link I18nContentSupport}, like "en" and "es".
+   *
+   * @return The languages, in the configured order
+   */
+  public static Set<String> getLanguages() {
+    Set<String> languages = new LinkedHashSet<>();
+
+    for (Locale locale : Components.getComponent(I18nContentSupport.class).getLocales()) {
+      languages.add(locale.getLanguage());
+    }
+
+    return languages;
+  }
 }
@@ -1,7 +1,14 @@
 package com.nachoverdon.mongolia.utils;
 
 import info.magnolia.jcr.util.NodeUtil;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -33,4 +40,33 @@ public class NodeUtils extends NodeUtil {
     }
   }
 
+  /**
+   * Wraps a NodeIterator in a sequential Stream that pulls the nodes one by one as it is consumed.
+   * Once the Stream is closed no more nodes are pulled.
+   *
+   * @param nodes A NodeIterator
+   * @return A lazy Stream of nodes
+   */
+  public static Stream<Node> stream(NodeIterator nodes) {
+    AtomicBoolean closed = new AtomicBoolean();
+    Iterator<Node> iterator = new Iterator<Node>() {
+      @Override
+      public boolean hasNext() {
+        return !closed.get() && nodes.hasNext();
+      }
+
+      @Override
+      public Node next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return nodes.nextNode();
+      }
+    };
+
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+        Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(() -> closed.set(true));
+  }
+
 }
@@ -0,0 +1,416 @@
+package com.nachoverdon.mongolia.utils;
+
+import com.nachoverdon.mongolia.annotations.Children;
+import com.nachoverdon.mongolia.annotations.Translatable;
+import info.magnolia.context.MgnlContext;
+import info.magnolia.observation.WorkspaceEventListenerRegistration;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps accent-stripped, lower-cased copies of String properties, like "title_norm" for "title",
+ * so they can be searched regardless of accents and case without evaluating {@code LOWER()} on
+ * every query. Usage example:
+ * <pre>{@code
+ *   NormalizedPropertyIndexer indexer =
+ *       NormalizedPropertyIndexer.forBean("website", "/", Book.class, "mgnl:page");
+ *
+ *   indexer.start();
+ *   indexer.reindex();
+ *
+ *   QueryUtils.setSearchableFields(Book.class, "Canción", "book", SearchMode.NORMALIZED);
+ *   // => " book.title_es_norm LIKE '%cancion%' OR book.author_norm LIKE '%cancion%' "
+ * }</pre>
+ * <p>
+ * Once started, a JCR observation listener updates the copies of the nodes of the given types
+ * whenever their properties change. The properties of a {@link Translatable} field are indexed in
+ * every language of the site, like "title_es_norm" for "title_es", but not other properties with
+ * the same prefix, like "title_old". {@link #reindex()} indexes the existing content.
+ * </p>
+ * <p>
+ * {@link QueryUtils.SearchMode#NORMALIZED} matches the copies with a {@code LIKE '%term%'}, whose
+ * leading wildcard no index can serve, so the query still reads every node its other constraints
+ * select. Narrow it down on large workspaces, like with a path or a full-text constraint.
+ * </p>
+ */
+@Slf4j
+public class NormalizedPropertyIndexer {
+
+  /**
+   * The suffix of the normalized copy of a property.
+   */
+  public static final String SUFFIX = "_norm";
+
+  /**
+   * The amount of changed nodes saved at once by {@link #reindex()}.
+   */
+  public static final int BATCH_SIZE = 500;
+
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+  private static final int EVENT_TYPES = Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+      | Event.PROPERTY_REMOVED;
+
+  private final String workspace;
+  private final String path;
+  private final Set<String> nodeTypes;
+  private final Set<String> properties;
+  private final Set<String> translatableProperties;
+  private final Set<String> languages;
+  @Nullable
+  private WorkspaceEventListenerRegistration.Handle handle;
+
+  /**
+   * Creates an indexer for the given properties of the nodes of the given types under a path.
+   * The translatable properties are indexed in the languages of the site. Refer to
+   * {@link LangUtils#getLanguages()}.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @param path The path of the indexed nodes. Ex: "/"
+   * @param nodeTypes The types of the indexed nodes. Ex: "mgnl:page"
+   * @param properties The names of the indexed properties
+   * @param translatableProperties The names of the indexed properties that are also translated,
+   *                               like "title" for "title_es"
+   */
+  public NormalizedPropertyIndexer(String workspace, String path, Collection<String> nodeTypes,
+                                   Collection<String> properties,
+                                   Collection<String> translatableProperties) {
+    this(workspace, path, nodeTypes, properties, translatableProperties,
+        LangUtils.getLanguages());
+  }
+
+  /**
+   * Creates an indexer for the given properties of the nodes of the given types under a path.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @param path The path of the indexed nodes. Ex: "/"
+   * @param nodeTypes The types of the indexed nodes. Ex: "mgnl:page"
+   * @param properties The names of the indexed properties
+   * @param translatableProperties The names of the indexed properties that are also translated,
+   *                               like "title" for "title_es"
+   * @param languages The languages the translatable properties are indexed in. Ex: "es"
+   */
+  public NormalizedPropertyIndexer(String workspace, String path, Collection<String> nodeTypes,
+                                   Collection<String> properties,
+                                   Collection<String> translatableProperties,
+                                   Collection<String> languages) {
+    this.workspace = workspace;
+    this.path = path;
+    this.nodeTypes = Collections.unmodifiableSet(new LinkedHashSet<>(nodeTypes));
+    this.properties = Collections.unmodifiableSet(new HashSet<>(properties));
+    this.translatableProperties =
+        Collections.unmodifiableSet(new HashSet<>(translatableProperties));
+    this.languages = Collections.unmodifiableSet(new HashSet<>(languages));
+  }
+
+  /**
+   * Creates an indexer for the String fields of a JavaBean, skipping the {@link Children} ones.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @param path The path of the indexed nodes. Ex: "/"
+   * @param clazz The class of the JavaBean
+   * @param nodeTypes The types of the indexed nodes. Ex: "mgnl:page"
+   * @return The indexer, not started yet
+   */
+  public static NormalizedPropertyIndexer forBean(String workspace, String path, Class<?> clazz,
+                                                  String... nodeTypes) {
+    List<String> properties = new ArrayList<>();
+    List<String> translatableProperties = new ArrayList<>();
+
+    for (Field field : ReflectionUtils.getAllPublicAndProtectedFields(clazz)) {
+      if (Modifier.isStatic(field.getModifiers()) || !String.class.equals(field.getType())
+          || field.getDeclaredAnnotation(Children.class) != null) {
+        continue;
+      }
+
+      properties.add(field.getName());
+
+      if (field.getDeclaredAnnotation(Translatable.class) != null) {
+        translatableProperties.add(field.getName());
+      }
+    }
+
+    return new NormalizedPropertyIndexer(workspace, path, Arrays.asList(nodeTypes), properties,
+        translatableProperties);
+  }
+
+  /**
+   * Strips the accents and other combining marks of a value and lower-cases it, so "Canción"
+   * becomes "cancion".
+   *
+   * @param value The value to normalize
+   * @return The normalized value
+   */
+  public static String normalize(String value) {
+    return COMBINING_MARKS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD))
+        .replaceAll("").toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Gets the name of the normalized copy of a property.
+   *
+   * @param property The name of the property. Ex: "title_es"
+   * @return The name of the copy. Ex: "title_es_norm"
+   */
+  public static String getNormalizedName(String property) {
+    return property + SUFFIX;
+  }
+
+  /**
+   * Starts updating the normalized copies whenever the indexed properties change. It does nothing
+   * if the indexer is already started.
+   *
+   * @throws RepositoryException If the workspace cannot be observed.
+   */
+  public synchronized void start() throws RepositoryException {
+    if (handle != null) {
+      return;
+    }
+
+    if (nodeTypes.isEmpty()) {
+      log.warn("The normalized property indexer of workspace [" + workspace + "] has no node "
+          + "types, it won't be started");
+
+      return;
+    }
+
+    handle = WorkspaceEventListenerRegistration
+        .observe(workspace, path, new IndexingListener())
+        .withSubNodes(true)
+        .withNodeTypes(nodeTypes.toArray(new String[0]))
+        .withEventTypesMask(EVENT_TYPES)
+        .register();
+  }
+
+  /**
+   * Stops updating the normalized copies. The existing ones are kept.
+   */
+  public synchronized void stop() {
+    if (handle == null) {
+      return;
+    }
+
+    try {
+      handle.unregister();
+    } catch (RepositoryException e) {
+      log.error("Cannot unregister the normalized property indexer of workspace [" + workspace
+          + "]", e);
+    }
+
+    handle = null;
+  }
+
+  /**
+   * Creates or updates the normalized copies of every indexed node, saving them in batches of
+   * {@link #BATCH_SIZE} nodes.
+   *
+   * @return The amount of nodes whose copies changed
+   * @throws RepositoryException If the nodes cannot be read or saved.
+   */
+  public long reindex() throws RepositoryException {
+    Session session = MgnlContext.getSystemContext().getJCRSession(workspace);
+    long changed = 0;
+
+    for (String nodeType : nodeTypes) {
+      NodeIterator nodes = QueryUtils.getQuery("SELECT * FROM [" + nodeType
+          + "] WHERE ISDESCENDANTNODE(" + QueryUtils.quote(path) + ")", workspace).execute()
+          .getNodes();
+
+      while (nodes.hasNext()) {
+        if (index(nodes.nextNode()) && ++changed % BATCH_SIZE == 0) {
+          session.save();
+        }
+      }
+    }
+
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+
+    log.info("Normalized the properties of " + changed + " nodes of workspace [" + workspace
+        + "] under [" + path + "]");
+
+    return changed;
+  }
+
+  /**
+   * Checks whether the property is indexed, either by itself or as the translation of an indexed
+   * property to one of the languages of the indexer.
+   *
+   * @param property The name of the property
+   * @return Whether it's indexed
+   */
+  public boolean isIndexed(String property) {
+    if (property.endsWith(SUFFIX)) {
+      return false;
+    }
+
+    if (properties.contains(property)) {
+      return true;
+    }
+
+    int separator = property.lastIndexOf('_');
+
+    return separator > 0 && languages.contains(property.substring(separator + 1))
+        && translatableProperties.contains(property.substring(0, separator));
+  }
+
+  /**
+   * Updates the normalized copies of all the indexed properties of a node, without saving it.
+   *
+   * @param node The node
+   * @return Whether any copy changed
+   * @throws RepositoryException If the node cannot be read or changed.
+   */
+  private boolean index(Node node) throws RepositoryException {
+    boolean changed = false;
+    PropertyIterator nodeProperties = node.getProperties();
+
+    while (nodeProperties.hasNext()) {
+      Property property = nodeProperties.nextProperty();
+
+      if (isIndexed(property.getName())) {
+        changed |= index(node, property.getName());
+      }
+    }
+
+    return changed;
+  }
+
+  /**
+   * Updates the normalized copy of a property, removing it if the property no longer exists or is
+   * not a String.
+   *
+   * @param node The node of the property
+   * @param name The name of the property
+   * @return Whether the copy changed
+   * @throws RepositoryException If the node cannot be read or changed.
+   */
+  private boolean index(Node node, String name) throws RepositoryException {
+    String normalizedName = getNormalizedName(name);
+    Property property = node.hasProperty(name) ? node.getProperty(name) : null;
+
+    if (property == null || property.getType() != PropertyType.STRING) {
+      if (node.hasProperty(normalizedName)) {
+        node.getProperty(normalizedName).remove();
+
+        return true;
+      }
+
+      return false;
+    }
+
+    String[] normalized = getStrings(property);
+
+    for (int i = 0; i < normalized.length; i++) {
+      normalized[i] = normalize(normalized[i]);
+    }
+
+    Property copy = node.hasProperty(normalizedName) ? node.getProperty(normalizedName) : null;
+
+    if (copy != null && copy.isMultiple() == property.isMultiple()
+        && Arrays.equals(normalized, getStrings(copy))) {
+      return false;
+    }
+
+    // A single value property cannot become a multiple one, or vice versa
+    if (copy != null) {
+      copy.remove();
+    }
+
+    if (property.isMultiple()) {
+      node.setProperty(normalizedName, normalized);
+    } else {
+      node.setProperty(normalizedName, normalized[0]);
+    }
+
+    return true;
+  }
+
+  private static String[] getStrings(Property property) throws RepositoryException {
+    if (!property.isMultiple()) {
+      return new String[] {property.getString()};
+    }
+
+    Value[] values = property.getValues();
+    String[] strings = new String[values.length];
+
+    for (int i = 0; i < values.length; i++) {
+      strings[i] = values[i].getString();
+    }
+
+    return strings;
+  }
+
+  private class IndexingListener implements EventListener {
+    @Override
+    public void onEvent(EventIterator events) {
+      Set<String> paths = new LinkedHashSet<>();
+
+      while (events.hasNext()) {
+        try {
+          String propertyPath = events.nextEvent().getPath();
+
+          // The changes of the copies themselves are skipped
+          if (isIndexed(propertyPath.substring(propertyPath.lastIndexOf('/') + 1))) {
+            paths.add(propertyPath);
+          }
+        } catch (RepositoryException e) {
+          log.error("Cannot read the path of an event of workspace [" + workspace + "]", e);
+        }
+      }
+
+      if (paths.isEmpty()) {
+        return;
+      }
+
+      try {
+        MgnlContext.doInSystemContext(() -> {
+          Session session = MgnlContext.getJCRSession(workspace);
+
+          for (String propertyPath : paths) {
+            int separator = propertyPath.lastIndexOf('/');
+            String nodePath = separator == 0 ? "/" : propertyPath.substring(0, separator);
+
+            if (session.nodeExists(nodePath)) {
+              index(session.getNode(nodePath), propertyPath.substring(separator + 1));
+            }
+          }
+
+          if (session.hasPendingChanges()) {
+            session.save();
+          }
+
+          return null;
+        }, true);
+      } catch (RepositoryException e) {
+        log.error("Cannot normalize the properties " + paths + " of workspace [" + workspace
+            + "]", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.nachoverdon.mongolia.utils;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+
+/**
+ * Binds values to the variables of a statement, like
+ * {@code SELECT * FROM [mgnl:page] WHERE [title] = $title}, so the values are never concatenated
+ * to it. Every call binds a Query of its own: a Query holds the values bound to it, so it is never
+ * shared, and the repository parses the statement on every execution anyway.
+ */
+public final class PreparedQueries {
+
+  private PreparedQueries() {
+  }
+
+  /**
+   * Binds the given values to the query and sets its limit and offset. Every bind variable of the
+   * statement must have a value.
+   *
+   * @param query A query that has not been executed yet, created for the statement
+   * @param valueFactory The value factory of the session that created the query
+   * @param bindings The values of the bind variables, by name and without the "$"
+   * @param limit The maximum amount of nodes to retrieve, or any value lower than 1 for no limit
+   * @param offset The offset of the query
+   * @return The query, ready to be executed
+   * @throws InvalidQueryException If a bind variable has no value or doesn't exist.
+   * @throws RepositoryException If a value cannot be bound.
+   */
+  public static Query bind(Query query, ValueFactory valueFactory, Map<String, ?> bindings,
+                           long limit, long offset) throws RepositoryException {
+    Set<String> unbound = new TreeSet<>();
+
+    for (String name : query.getBindVariableNames()) {
+      if (!bindings.containsKey(name)) {
+        unbound.add(name);
+      }
+    }
+
+    if (!unbound.isEmpty()) {
+      throw new InvalidQueryException("Missing values for the bind variables " + unbound
+          + " of statement:\n" + query.getStatement());
+    }
+
+    for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+      query.bindValue(binding.getKey(), toValue(valueFactory, binding.getValue()));
+    }
+
+    if (limit > 0) {
+      query.setLimit(limit);
+    }
+
+    if (offset > 0) {
+      query.setOffset(offset);
+    }
+
+    return query;
+  }
+
+  /**
+   * Converts a Java object into a JCR Value of the matching type. Values of unknown types are
+   * bound as Strings.
+   *
+   * @param valueFactory The value factory of the session
+   * @param value The object to convert
+   * @return The value
+   * @throws RepositoryException If the value cannot be created.
+   */
+  public static Value toValue(ValueFactory valueFactory, Object value)
+      throws RepositoryException {
+    if (value instanceof Value) {
+      return (Value) value;
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+      return valueFactory.createValue(((Number) value).longValue());
+    } else if (value instanceof BigDecimal) {
+      return valueFactory.createValue((BigDecimal) value);
+    } else if (value instanceof Number) {
+      return valueFactory.createValue(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      return valueFactory.createValue((Boolean) value);
+    } else if (value instanceof Calendar) {
+      return valueFactory.createValue((Calendar) value);
+    } else if (value instanceof Date) {
+      Calendar calendar = Calendar.getInstance();
+
+      calendar.setTime((Date) value);
+
+      return valueFactory.createValue(calendar);
+    }
+
+    return valueFactory.createValue(String.valueOf(value));
+  }
+}
@@ -44,6 +44,45 @@ public class PropertyUtils extends PropertyUtil {
     return null;
   }
 
+  /**
+   * Gets a value as the Java type that matches its JCR type: Strings for textual types like names,
+   * paths or references, Long, Double, BigDecimal, Date or Boolean. Binary values are not
+   * supported.
+   *
+   * @param value A value, like the ones of a query row
+   * @return The converted value or null if it's null or binary
+   */
+  @Nullable
+  public static Object getValue(@Nullable Value value) {
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      switch (value.getType()) {
+        case PropertyType.LONG:
+          return value.getLong();
+        case PropertyType.DOUBLE:
+          return value.getDouble();
+        case PropertyType.DECIMAL:
+          return value.getDecimal();
+        case PropertyType.DATE:
+          return Date.from(value.getDate().toInstant());
+        case PropertyType.BOOLEAN:
+          return value.getBoolean();
+        case PropertyType.BINARY:
+          log.error("Binary values are not supported.");
+          return null;
+        default:
+          return value.getString();
+      }
+    } catch (RepositoryException e) {
+      log.error(e.getMessage(), e);
+    }
+
+    return null;
+  }
+
   /**
    * Performs an action for every property.
    *
@@ -0,0 +1,874 @@
+package com.nachoverdon.mongolia.utils;
+
+import com.nachoverdon.mongolia.node2bean.Node2Bean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A fluent builder of JCR-SQL2 queries. Every value is bound to a variable instead of being
+ * concatenated to the statement, refer to {@link PreparedQueries}, so the same query with
+ * different values always produces the same statement and has the same
+ * {@link #getFingerprint() fingerprint}. Usage example:
+ * <pre>{@code
+ *   QueryBuilder.select("mgnl:page", "page")
+ *       .where(Condition.isDescendantNode("page", "/site/news"),
+ *           Condition.eq("page.category", category),
+ *           StringUtils.isEmpty(term) ? null : Condition.contains("page.*", term))
+ *       .orderByDescending("page.date")
+ *       .limit(10)
+ *       .getNodes("website");
+ *   // SELECT * FROM [mgnl:page] AS [page] WHERE CONTAINS([page].*, $v0)
+ *   //   AND ISDESCENDANTNODE([page], '/site/news') AND [page].[category] = $v1
+ *   //   ORDER BY [page].[date] DESC
+ * }</pre>
+ * <p>
+ * Properties are written as "name" or, to qualify them with a selector, as "selector.name". The
+ * conditions joined with AND or OR are written in a canonical order, whatever the order they were
+ * given in, so equivalent queries have the same statement.
+ * </p>
+ */
+@Slf4j
+public final class QueryBuilder {
+
+  private final String nodeType;
+  @Nullable
+  private final String selector;
+  private final List<String> columns = new ArrayList<>();
+  private final List<String> joins = new ArrayList<>();
+  private final List<Condition> joinConditions = new ArrayList<>();
+  private final List<Condition> conditions = new ArrayList<>();
+  private final List<String> orderings = new ArrayList<>();
+  private long limit = -1;
+  private long offset;
+  @Nullable
+  private Rendered rendered;
+
+  private QueryBuilder(String nodeType, @Nullable String selector) {
+    this.nodeType = nodeType;
+    this.selector = selector;
+  }
+
+  /**
+   * Starts a query that selects the nodes of the given type.
+   *
+   * @param nodeType The desired node type to be selected
+   * @return A new builder
+   */
+  public static QueryBuilder select(String nodeType) {
+    return new QueryBuilder(nodeType, null);
+  }
+
+  /**
+   * Starts a query that selects the nodes of the given type with a selector name, needed for joins.
+   *
+   * @param nodeType The desired node type to be selected
+   * @param selector The selector name
+   * @return A new builder
+   */
+  public static QueryBuilder select(String nodeType, String selector) {
+    return new QueryBuilder(nodeType, selector);
+  }
+
+  /**
+   * Selects a column, named after the property, instead of all of them. Refer to
+   * {@link #column(String, String)}.
+   *
+   * @param property The property, like "selector.name"
+   * @return This builder
+   */
+  public QueryBuilder column(String property) {
+    return column(property, property.substring(property.indexOf('.') + 1));
+  }
+
+  /**
+   * Selects a column instead of all of them, so the rows can be read with
+   * {@link #getRows(String)} without loading the nodes. Use "jcr:path" to select the path of the
+   * nodes.
+   *
+   * @param property The property, like "selector.name"
+   * @param name The name of the column
+   * @return This builder
+   */
+  public QueryBuilder column(String property, String name) {
+    columns.add(property(property) + " AS " + name(name));
+    rendered = null;
+
+    return this;
+  }
+
+  /**
+   * Joins the nodes of another type.
+   *
+   * @param nodeType The node type to join
+   * @param selector The selector name of the joined nodes
+   * @param on The join condition, like {@link Condition#childNodeJoin(String, String)}
+   * @return This builder
+   */
+  public QueryBuilder innerJoin(String nodeType, String selector, Condition on) {
+    return join("INNER JOIN", nodeType, selector, on);
+  }
+
+  /**
+   * Refer to {@link #innerJoin(String, String, Condition)}.
+   *
+   * @param nodeType The node type to join
+   * @param selector The selector name of the joined nodes
+   * @param on The join condition, like {@link Condition#childNodeJoin(String, String)}
+   * @return This builder
+   */
+  public QueryBuilder leftOuterJoin(String nodeType, String selector, Condition on) {
+    return join("LEFT OUTER JOIN", nodeType, selector, on);
+  }
+
+  /**
+   * Refer to {@link #innerJoin(String, String, Condition)}.
+   *
+   * @param nodeType The node type to join
+   * @param selector The selector name of the joined nodes
+   * @param on The join condition, like {@link Condition#childNodeJoin(String, String)}
+   * @return This builder
+   */
+  public QueryBuilder rightOuterJoin(String nodeType, String selector, Condition on) {
+    return join("RIGHT OUTER JOIN", nodeType, selector, on);
+  }
+
+  private QueryBuilder join(String type, String nodeType, String selector, Condition on) {
+    if (this.selector == null) {
+      throw new IllegalStateException("A query with joins must be started with a selector name");
+    }
+
+    joins.add(" " + type + " " + name(nodeType) + " AS " + name(selector) + " ON ");
+    joinConditions.add(Objects.requireNonNull(on));
+    rendered = null;
+
+    return this;
+  }
+
+  /**
+   * Adds conditions that the nodes must meet, all of them. Null conditions are ignored, so
+   * optional conditions can be passed inline.
+   *
+   * @param conditions The conditions
+   * @return This builder
+   */
+  public QueryBuilder where(@Nullable Condition... conditions) {
+    if (conditions != null) {
+      Arrays.stream(conditions).filter(Objects::nonNull).forEach(this.conditions::add);
+      rendered = null;
+    }
+
+    return this;
+  }
+
+  /**
+   * Sorts the nodes by a property in ascending order, after the previous orderings.
+   *
+   * @param property The property
+   * @return This builder
+   */
+  public QueryBuilder orderBy(String property) {
+    orderings.add(property(property) + " ASC");
+    rendered = null;
+
+    return this;
+  }
+
+  /**
+   * Sorts the nodes by a property in descending order, after the previous orderings.
+   *
+   * @param property The property
+   * @return This builder
+   */
+  public QueryBuilder orderByDescending(String property) {
+    orderings.add(property(property) + " DESC");
+    rendered = null;
+
+    return this;
+  }
+
+  /**
+   * Sets the maximum amount of nodes to retrieve.
+   *
+   * @param limit The limit, or any value lower than 1 for no limit
+   * @return This builder
+   */
+  public QueryBuilder limit(long limit) {
+    this.limit = limit;
+
+    return this;
+  }
+
+  /**
+   * Sets the amount of nodes to skip.
+   *
+   * @param offset The offset
+   * @return This builder
+   */
+  public QueryBuilder offset(long offset) {
+    this.offset = offset;
+
+    return this;
+  }
+
+  /**
+   * Gets the maximum amount of nodes to retrieve.
+   *
+   * @return The limit
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * Gets the amount of nodes to skip.
+   *
+   * @return The offset
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Gets the JCR-SQL2 statement, with a bind variable for every value.
+   *
+   * @return The statement
+   */
+  public String getStatement() {
+    return render().statement;
+  }
+
+  /**
+   * Gets the values of the bind variables of the statement.
+   *
+   * @return The values by variable name
+   */
+  public Map<String, Object> getBindings() {
+    return render().bindings;
+  }
+
+  /**
+   * Gets a short hash of the statement. Since the values are bound and the statement is always
+   * written the same way, it identifies the shape of the query, so it can be used as the key of
+   * plans, statistics or caches, like the ones of {@link QueryProfiler#getStats(String, String)}.
+   * The limit and the offset are not part of it.
+   *
+   * @return The fingerprint, as an hexadecimal string
+   */
+  public String getFingerprint() {
+    return render().fingerprint;
+  }
+
+  /**
+   * Builds the query for the given workspace, with its values bound and its limit and offset set.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The query, ready to be executed
+   * @throws RepositoryException If the query cannot be created
+   */
+  public Query getQuery(String workspace) throws RepositoryException {
+    return QueryUtils.getPreparedQuery(getStatement(), workspace, Query.JCR_SQL2, getBindings(),
+        limit, offset);
+  }
+
+  /**
+   * Executes the query and gets the nodes of its first selector.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A collection of nodes
+   */
+  public Collection<Node> getNodes(String workspace) {
+    try {
+      if (joins.isEmpty()) {
+        return NodeUtils.getCollectionFromNodeIterator(getQuery(workspace).execute().getNodes());
+      }
+
+      List<Node> nodes = new ArrayList<>();
+      RowIterator rows = getQuery(workspace).execute().getRows();
+
+      while (rows.hasNext()) {
+        nodes.add(rows.nextRow().getNode(selector));
+      }
+
+      return nodes;
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "] and bindings "
+          + getBindings() + ": " + getStatement(), e);
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Executes the query and gets a lazy Stream of the nodes of its first selector. Refer to
+   * {@link NodeUtils#stream(javax.jcr.NodeIterator)}.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A lazy Stream of nodes
+   */
+  public Stream<Node> streamNodes(String workspace) {
+    try {
+      if (joins.isEmpty()) {
+        return NodeUtils.stream(getQuery(workspace).execute().getNodes());
+      }
+
+      return getNodes(workspace).stream();
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "] and bindings "
+          + getBindings() + ": " + getStatement(), e);
+    }
+
+    return Stream.empty();
+  }
+
+  /**
+   * Executes the query and reads its selected columns without loading the nodes. Refer to
+   * {@link QueryUtils#getRows(javax.jcr.query.QueryResult)}.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A list of rows, each of them a map of values by column name
+   */
+  public List<Map<String, Object>> getRows(String workspace) {
+    try {
+      return QueryUtils.getRows(getQuery(workspace).execute());
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve rows with SQL on workspace [" + workspace + "] and bindings "
+          + getBindings() + ": " + getStatement(), e);
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Executes the query and sets its selected columns on objects of the given class, without
+   * loading the nodes. Refer to {@link Node2Bean#toBeanFromValues(Map, Class)}.
+   *
+   * @param <T> The type of the JavaBean
+   * @param workspace The desired workspace. Ex: "website"
+   * @param clazz The class of the JavaBean
+   * @return A list of objects of the given class type
+   */
+  public <T> List<T> getRows(String workspace, Class<T> clazz) {
+    return getRows(workspace).stream()
+        .map(row -> Node2Bean.toBeanFromValues(row, clazz))
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Executes the query and counts its rows, ignoring the limit and the offset. Refer to
+   * {@link QueryUtils#countRows(javax.jcr.query.QueryResult)}.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The count
+   */
+  public long count(String workspace) {
+    try {
+      return QueryUtils.countRows(QueryUtils.getPreparedQuery(getStatement(), workspace,
+          Query.JCR_SQL2, getBindings(), -1, 0).execute());
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve total on workspace [" + workspace + "] and bindings "
+          + getBindings() + ": " + getStatement(), e);
+    }
+
+    return 0L;
+  }
+
+  @Override
+  public String toString() {
+    return getStatement();
+  }
+
+  private Rendered render() {
+    if (rendered != null) {
+      return rendered;
+    }
+
+    Renderer renderer = new Renderer();
+
+    renderer.append("SELECT ").append(columns.isEmpty() ? "*" : String.join(", ", columns))
+        .append(" FROM ").append(name(nodeType));
+
+    if (selector != null) {
+      renderer.append(" AS ").append(name(selector));
+    }
+
+    for (int i = 0; i < joins.size(); i++) {
+      renderer.append(joins.get(i));
+      joinConditions.get(i).render(renderer);
+    }
+
+    if (!conditions.isEmpty()) {
+      renderer.append(" WHERE ");
+      Condition.and(conditions.toArray(new Condition[0])).render(renderer, false);
+    }
+
+    if (!orderings.isEmpty()) {
+      renderer.append(" ORDER BY ").append(String.join(", ", orderings));
+    }
+
+    rendered = new Rendered(renderer.statement.toString(),
+        Collections.unmodifiableMap(renderer.bindings));
+
+    return rendered;
+  }
+
+  private static String name(String name) {
+    return "[" + name + "]";
+  }
+
+  /**
+   * Writes a property, qualified with its selector if it's like "selector.name". A name of "*"
+   * means all the properties, for full-text conditions.
+   */
+  static String property(String property) {
+    int dot = property.indexOf('.');
+
+    if (dot < 0) {
+      return "*".equals(property) ? property : name(property);
+    }
+
+    String name = property.substring(dot + 1);
+
+    return name(property.substring(0, dot)) + "." + ("*".equals(name) ? name : name(name));
+  }
+
+  /**
+   * A condition of a query. Conditions are immutable and can be reused between queries.
+   */
+  public abstract static class Condition {
+
+    @Nullable
+    private String canonicalForm;
+
+    abstract void render(Renderer renderer);
+
+    /**
+     * Gets the condition as written on its own, to sort the conditions joined with AND or OR.
+     */
+    private String getCanonicalForm() {
+      if (canonicalForm == null) {
+        Renderer renderer = new Renderer();
+
+        render(renderer, true);
+        canonicalForm = renderer.statement.toString();
+      }
+
+      return canonicalForm;
+    }
+
+    /**
+     * Renders the condition, between parentheses if it is composed and nested.
+     */
+    void render(Renderer renderer, boolean nested) {
+      render(renderer);
+    }
+
+    /**
+     * The property equals the value.
+     *
+     * @param property The property
+     * @param value The value
+     * @return The condition
+     */
+    public static Condition eq(String property, Object value) {
+      return comparison(property, "=", value);
+    }
+
+    /**
+     * The property doesn't equal the value.
+     *
+     * @param property The property
+     * @param value The value
+     * @return The condition
+     */
+    public static Condition notEq(String property, Object value) {
+      return comparison(property, "<>", value);
+    }
+
+    /**
+     * The property is lower than the value.
+     *
+     * @param property The property
+     * @param value The value
+     * @return The condition
+     */
+    public static Condition lt(String property, Object value) {
+      return comparison(property, "<", value);
+    }
+
+    /**
+     * The property is lower than or equal to the value.
+     *
+     * @param property The property
+     * @param value The value
+     * @return The condition
+     */
+    public static Condition le(String property, Object value) {
+      return comparison(property, "<=", value);
+    }
+
+    /**
+     * The property is greater than the value.
+     *
+     * @param property The property
+     * @param value The value
+     * @return The condition
+     */
+    public static Condition gt(String property, Object value) {
+      return comparison(property, ">", value);
+    }
+
+    /**
+     * The property is greater than or equal to the value.
+     *
+     * @param property The property
+     * @param value The value
+     * @return The condition
+     */
+    public static Condition ge(String property, Object value) {
+      return comparison(property, ">=", value);
+    }
+
+    /**
+     * The property matches the pattern, where "%" matches any string and "_" any character.
+     *
+     * @param property The property
+     * @param pattern The pattern
+     * @return The condition
+     */
+    public static Condition like(String property, String pattern) {
+      return comparison(property, "LIKE", pattern);
+    }
+
+    /**
+     * The lower-cased property matches the lower-cased pattern. Refer to
+     * {@link #like(String, String)}.
+     *
+     * @param property The property
+     * @param pattern The pattern
+     * @return The condition
+     */
+    public static Condition likeIgnoreCase(String property, String pattern) {
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          renderer.append("LOWER(").append(property(property)).append(") LIKE ")
+              .bind(pattern.toLowerCase());
+        }
+      };
+    }
+
+    /**
+     * The property, or all of them with "*" or "selector.*", matches the full-text search
+     * expression.
+     *
+     * @param property The property
+     * @param expression The full-text search expression
+     * @return The condition
+     */
+    public static Condition contains(String property, String expression) {
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          renderer.append("CONTAINS(").append(property(property)).append(", ")
+              .bind(expression).append(")");
+        }
+      };
+    }
+
+    /**
+     * The property equals any of the values. Without values, no node meets it.
+     *
+     * @param property The property
+     * @param values The values
+     * @return The condition
+     */
+    public static Condition in(String property, Collection<?> values) {
+      if (values.isEmpty()) {
+        // JCR-SQL2 has no literal for false
+        return atom("(" + property(property) + " IS NULL AND " + property(property)
+            + " IS NOT NULL)");
+      }
+
+      return or(values.stream().map(value -> eq(property, value)).toArray(Condition[]::new));
+    }
+
+    /**
+     * The node has the property.
+     *
+     * @param property The property
+     * @return The condition
+     */
+    public static Condition isNotNull(String property) {
+      return atom(property(property) + " IS NOT NULL");
+    }
+
+    /**
+     * The node doesn't have the property.
+     *
+     * @param property The property
+     * @return The condition
+     */
+    public static Condition isNull(String property) {
+      return atom(property(property) + " IS NULL");
+    }
+
+    /**
+     * The node of the selector is a child of the node at the given path.
+     *
+     * @param selector The selector name
+     * @param path The path of the parent node
+     * @return The condition
+     */
+    public static Condition isChildNode(String selector, String path) {
+      return path("ISCHILDNODE", selector, path);
+    }
+
+    /**
+     * The node of the selector is a descendant of the node at the given path.
+     *
+     * @param selector The selector name
+     * @param path The path of the ancestor node
+     * @return The condition
+     */
+    public static Condition isDescendantNode(String selector, String path) {
+      return path("ISDESCENDANTNODE", selector, path);
+    }
+
+    /**
+     * The node of the selector is the node at the given path.
+     *
+     * @param selector The selector name
+     * @param path The path of the node
+     * @return The condition
+     */
+    public static Condition isSameNode(String selector, String path) {
+      return path("ISSAMENODE", selector, path);
+    }
+
+    /**
+     * The node of the child selector is a child of the node of the parent selector. Used as a join
+     * condition.
+     *
+     * @param childSelector The selector name of the children
+     * @param parentSelector The selector name of the parents
+     * @return The condition
+     */
+    public static Condition childNodeJoin(String childSelector, String parentSelector) {
+      return atom("ISCHILDNODE(" + name(childSelector) + ", " + name(parentSelector) + ")");
+    }
+
+    /**
+     * The node of the descendant selector is a descendant of the node of the ancestor selector.
+     * Used as a join condition.
+     *
+     * @param descendantSelector The selector name of the descendants
+     * @param ancestorSelector The selector name of the ancestors
+     * @return The condition
+     */
+    public static Condition descendantNodeJoin(String descendantSelector,
+                                               String ancestorSelector) {
+      return atom("ISDESCENDANTNODE(" + name(descendantSelector) + ", " + name(ancestorSelector)
+          + ")");
+    }
+
+    /**
+     * Both properties, qualified with their selectors, have the same value. Used as a join
+     * condition.
+     *
+     * @param property A property, like "selector.name"
+     * @param otherProperty The other property, like "selector.name"
+     * @return The condition
+     */
+    public static Condition equiJoin(String property, String otherProperty) {
+      return atom(property(property) + " = " + property(otherProperty));
+    }
+
+    /**
+     * All the conditions are met. Null conditions are ignored.
+     *
+     * @param conditions The conditions
+     * @return The condition, or null if there are no conditions
+     */
+    @Nullable
+    public static Condition and(@Nullable Condition... conditions) {
+      return composite(" AND ", conditions);
+    }
+
+    /**
+     * Any of the conditions is met. Null conditions are ignored.
+     *
+     * @param conditions The conditions
+     * @return The condition, or null if there are no conditions
+     */
+    @Nullable
+    public static Condition or(@Nullable Condition... conditions) {
+      return composite(" OR ", conditions);
+    }
+
+    /**
+     * The condition is not met.
+     *
+     * @param condition The condition
+     * @return The condition
+     */
+    public static Condition not(Condition condition) {
+      Objects.requireNonNull(condition, "The negated condition cannot be null");
+
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          renderer.append("NOT ");
+          condition.render(renderer, true);
+        }
+      };
+    }
+
+    /**
+     * A condition written by hand, for the cases not covered by the builder. Values must never be
+     * concatenated to it.
+     *
+     * @param condition The JCR-SQL2 condition
+     * @return The condition
+     */
+    public static Condition raw(String condition) {
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          renderer.append(condition);
+        }
+
+        @Override
+        void render(Renderer renderer, boolean nested) {
+          if (nested) {
+            renderer.append("(").append(condition).append(")");
+          } else {
+            renderer.append(condition);
+          }
+        }
+      };
+    }
+
+    /**
+     * A condition that never needs parentheses.
+     */
+    private static Condition atom(String condition) {
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          renderer.append(condition);
+        }
+      };
+    }
+
+    private static Condition comparison(String property, String operator, Object value) {
+      Objects.requireNonNull(value, "The value of a condition cannot be null");
+
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          renderer.append(property(property)).append(" ").append(operator).append(" ")
+              .bind(value);
+        }
+      };
+    }
+
+    private static Condition path(String function, String selector, String path) {
+      return atom(function + "(" + name(selector) + ", " + QueryUtils.quote(path) + ")");
+    }
+
+    @Nullable
+    private static Condition composite(String operator, @Nullable Condition... conditions) {
+      List<Condition> parts = conditions == null
+          ? Collections.emptyList()
+          : Arrays.stream(conditions).filter(Objects::nonNull).collect(Collectors.toList());
+
+      if (parts.isEmpty()) {
+        return null;
+      }
+
+      if (parts.size() == 1) {
+        return parts.get(0);
+      }
+
+      // Both operators are commutative
+      parts.sort(Comparator.comparing(Condition::getCanonicalForm));
+
+      return new Condition() {
+        @Override
+        void render(Renderer renderer) {
+          render(renderer, true);
+        }
+
+        @Override
+        void render(Renderer renderer, boolean nested) {
+          if (nested) {
+            renderer.append("(");
+          }
+
+          for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+              renderer.append(operator);
+            }
+
+            parts.get(i).render(renderer, true);
+          }
+
+          if (nested) {
+            renderer.append(")");
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Writes a statement, naming its bind variables in order of appearance.
+   */
+  static final class Renderer {
+    private final StringBuilder statement = new StringBuilder();
+    private final Map<String, Object> bindings = new LinkedHashMap<>();
+
+    Renderer append(String text) {
+      statement.append(text);
+
+      return this;
+    }
+
+    Renderer bind(Object value) {
+      String name = "v" + bindings.size();
+
+      bindings.put(name, value);
+      statement.append('$').append(name);
+
+      return this;
+    }
+  }
+
+  private static final class Rendered {
+    private final String statement;
+    private final Map<String, Object> bindings;
+    private final String fingerprint;
+
+    private Rendered(String statement, Map<String, Object> bindings) {
+      this.statement = statement;
+      this.bindings = bindings;
+      this.fingerprint = QueryProfiler.fingerprint(statement);
+    }
+  }
+}
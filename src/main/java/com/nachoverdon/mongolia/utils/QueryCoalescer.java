@@ -0,0 +1,199 @@
+package com.nachoverdon.mongolia.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import lombok.Value;
+
+/**
+ * Coalesces identical queries that run at the same time, like the ones of many requests right
+ * after a cache entry expires or some content is published. The first caller executes the query
+ * and the others wait for its result instead of executing it again.
+ * <p>
+ * Nodes belong to the session that retrieved them, so the result is shared as the identifiers of
+ * the nodes, which the waiting callers resolve with their own sessions. Only the queries of the
+ * same user are coalesced, since each user can read different nodes. Coalescing can be disabled
+ * with the "mongolia.query.coalescing.disabled" system property.
+ * </p>
+ */
+public final class QueryCoalescer {
+
+  private static final boolean ENABLED = !Boolean.getBoolean("mongolia.query.coalescing.disabled");
+
+  private static final QueryCoalescer INSTANCE = new QueryCoalescer();
+
+  private final Map<Object, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * Gets the coalescer shared by the "getNodes" methods of {@link QueryUtils}.
+   *
+   * @return The shared coalescer
+   */
+  public static QueryCoalescer getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Loads a value, or waits for it if an identical load is already running.
+   *
+   * @param key The key of the load, equal for every identical one
+   * @param loader The loader of the value. Its value must not depend on the session.
+   * @param <T> The type of the value
+   * @return The value
+   * @throws RepositoryException If the value cannot be loaded.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T load(Object key, QueryResultCache.Loader<T> loader) throws RepositoryException {
+    if (!ENABLED) {
+      return loader.load();
+    }
+
+    CompletableFuture<Object> call = new CompletableFuture<>();
+    CompletableFuture<Object> running = calls.putIfAbsent(key, call);
+
+    if (running != null) {
+      coalesced.increment();
+
+      return (T) await(running);
+    }
+
+    executions.increment();
+
+    try {
+      T value = loader.load();
+
+      call.complete(value);
+
+      return value;
+    } catch (RepositoryException | RuntimeException | Error e) {
+      call.completeExceptionally(e);
+
+      throw e;
+    } finally {
+      calls.remove(key, call);
+    }
+  }
+
+  /**
+   * Gets the nodes of a query, or waits for them if an identical query of the same user is already
+   * running. The caller that executes the query gets its nodes directly, the others resolve their
+   * identifiers with their session. Refer to {@link QueryUtils#resolveNodes(Collection, String)}.
+   *
+   * @param key The key of the query, equal for every identical one
+   * @param session The session that executes the query
+   * @param loader The loader of the nodes, executed with the given session
+   * @return A collection of nodes
+   * @throws RepositoryException If the query fails.
+   */
+  Collection<Node> getNodes(Object key, Session session,
+                            QueryResultCache.Loader<Collection<Node>> loader)
+      throws RepositoryException {
+    if (!ENABLED) {
+      return loader.load();
+    }
+
+    // The nodes of a user cannot be shared with other users
+    UserKey userKey = new UserKey(key, session.getUserID());
+    CompletableFuture<Object> call = new CompletableFuture<>();
+    CompletableFuture<Object> running = calls.putIfAbsent(userKey, call);
+
+    if (running != null) {
+      coalesced.increment();
+
+      @SuppressWarnings("unchecked")
+      List<String> identifiers = (List<String>) await(running);
+
+      return QueryUtils.resolveNodes(identifiers, session);
+    }
+
+    executions.increment();
+
+    try {
+      Collection<Node> nodes = loader.load();
+      List<String> identifiers = new ArrayList<>(nodes.size());
+
+      for (Node node : nodes) {
+        identifiers.add(node.getIdentifier());
+      }
+
+      call.complete(identifiers);
+
+      return nodes;
+    } catch (RepositoryException | RuntimeException | Error e) {
+      call.completeExceptionally(e);
+
+      throw e;
+    } finally {
+      calls.remove(userKey, call);
+    }
+  }
+
+  /**
+   * Gets the statistics of the coalescer since it was created.
+   *
+   * @return The statistics
+   */
+  public Stats getStats() {
+    return new Stats(executions.sum(), coalesced.sum(), calls.size());
+  }
+
+  private static Object await(CompletableFuture<Object> call) throws RepositoryException {
+    try {
+      return call.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+
+      throw new RepositoryException("The coalesced query failed: " + cause.getMessage(), cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      throw new RepositoryException("Interrupted while waiting for a coalesced query", e);
+    }
+  }
+
+  /**
+   * The key of the queries of a user.
+   */
+  @Value
+  private static class UserKey {
+    Object key;
+    String userId;
+  }
+
+  /**
+   * The statistics of a {@link QueryCoalescer}.
+   */
+  @Value
+  public static class Stats {
+    /**
+     * The amount of queries actually executed.
+     */
+    long executions;
+
+    /**
+     * The amount of queries that waited for an identical one instead of being executed.
+     */
+    long coalesced;
+
+    /**
+     * The amount of queries running right now.
+     */
+    int running;
+  }
+}
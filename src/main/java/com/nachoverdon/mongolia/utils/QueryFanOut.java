@@ -0,0 +1,318 @@
+package com.nachoverdon.mongolia.utils;
+
+import info.magnolia.context.MgnlContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs independent queries concurrently, so the time to get all their results is the one of the
+ * slowest query instead of the sum of all of them. Usage example:
+ * <pre>{@code
+ *   Map<String, QuerySpec> queries = new LinkedHashMap<>();
+ *
+ *   queries.put("news", QuerySpec.of("SELECT * FROM [mgnl:content]", "news"));
+ *   queries.put("images", QuerySpec.of("SELECT * FROM [mgnl:asset]", "dam"));
+ *
+ *   Map<String, Collection<Node>> results = QueryFanOut.getNodes(queries);
+ * }</pre>
+ * <p>
+ * Each query runs on a bounded pool of {@link #THREADS} threads, in its own system context whose
+ * sessions are released when it finishes. Nodes cannot be shared between sessions, so the queries
+ * return the identifiers of their nodes, which are resolved afterwards with the session of the
+ * calling thread. When the pool and its queue are full, or the pool has been shut down, the query
+ * runs on the calling thread instead.
+ * </p>
+ * <p>
+ * On Java 21 or later, each query runs on its own virtual thread instead, and at most
+ * {@link #THREADS} of them query the repository at the same time. Virtual threads can be disabled
+ * with the "mongolia.query.virtualThreads" system property set to false.
+ * </p>
+ */
+@Slf4j
+public final class QueryFanOut {
+
+  /**
+   * The amount of threads of the pool, or of virtual threads that query the repository at the same
+   * time, 8 by default. It can be changed with the "mongolia.query.threads" system property.
+   */
+  public static final int THREADS = Integer.getInteger("mongolia.query.threads", 8);
+
+  private static final int QUEUE_SIZE = 256;
+
+  /**
+   * Limits the queries that run at the same time on virtual threads, which are never rejected.
+   */
+  private static final Semaphore PERMITS = new Semaphore(THREADS);
+
+  private static final ExecutorService VIRTUAL_EXECUTOR = createVirtualExecutor();
+  private static final ExecutorService EXECUTOR = VIRTUAL_EXECUTOR != null
+      ? VIRTUAL_EXECUTOR
+      : createExecutor();
+  private static final ScheduledExecutorService TIMEOUTS = createTimeouts();
+
+  private QueryFanOut() {
+  }
+
+  private static ExecutorService createExecutor() {
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+          Thread thread = new Thread(runnable, "mongolia-query-" + count.incrementAndGet());
+
+          thread.setDaemon(true);
+
+          return thread;
+        });
+
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
+  /**
+   * Creates an executor that runs each task on a new virtual thread, if the runtime supports them.
+   * It's looked up by reflection, so the library still runs on Java 8.
+   *
+   * @return The executor, or null if virtual threads are not available or disabled
+   */
+  @Nullable
+  private static ExecutorService createVirtualExecutor() {
+    if (!Boolean.parseBoolean(System.getProperty("mongolia.query.virtualThreads", "true"))) {
+      return null;
+    }
+
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ReflectiveOperationException e) {
+      log.warn("Cannot create virtual threads, a pool of " + THREADS + " threads will be used", e);
+
+      return null;
+    }
+  }
+
+  private static ScheduledExecutorService createTimeouts() {
+    ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "mongolia-query-timeouts");
+
+      thread.setDaemon(true);
+
+      return thread;
+    });
+
+    timeouts.setRemoveOnCancelPolicy(true);
+
+    return timeouts;
+  }
+
+  /**
+   * Runs a query in the background and gets the identifiers of its nodes, without duplicates.
+   * The future completes exceptionally with a {@link TimeoutException} if the query takes longer
+   * than its {@link QuerySpec#getTimeoutMillis() timeout}, and cancelling it interrupts the query.
+   *
+   * @param spec The query
+   * @return A future with the identifiers, completed exceptionally if the query fails
+   */
+  public static CompletableFuture<List<String>> submit(QuerySpec spec) {
+    return supply(() -> getIdentifiers(spec), spec.getTimeoutMillis(), spec.toString());
+  }
+
+  /**
+   * Loads a value in the background, in its own system context whose sessions are released when
+   * it finishes. The value must not hold any node, since they belong to the released sessions.
+   *
+   * @param loader The loader of the value
+   * @param timeoutMillis The time to wait for the value, or 0 to wait forever
+   * @param description The description of the load, for the errors
+   * @param <T> The type of the value
+   * @return A future with the value, completed exceptionally with a {@link QueryFailedException}
+   *     if the value cannot be loaded or with a {@link TimeoutException} if it takes too long
+   */
+  static <T> CompletableFuture<T> supply(QueryResultCache.Loader<T> loader, long timeoutMillis,
+                                         String description) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    Future<?> task;
+
+    try {
+      task = EXECUTOR.submit(() -> {
+        if (future.isDone()) {
+          return;
+        }
+
+        try {
+          if (EXECUTOR == VIRTUAL_EXECUTOR) {
+            PERMITS.acquire();
+          }
+
+          try {
+            future.complete(MgnlContext.doInSystemContext(loader::load, true));
+          } finally {
+            if (EXECUTOR == VIRTUAL_EXECUTOR) {
+              PERMITS.release();
+            }
+          }
+        } catch (RepositoryException e) {
+          future.completeExceptionally(new QueryFailedException(description, e));
+        } catch (InterruptedException e) {
+          future.cancel(false);
+        } catch (RuntimeException | Error e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Run it on the calling thread, whose sessions must not be released
+      try {
+        future.complete(loader.load());
+      } catch (RepositoryException cause) {
+        future.completeExceptionally(new QueryFailedException(description, cause));
+      } catch (RuntimeException cause) {
+        future.completeExceptionally(cause);
+      }
+
+      return future;
+    }
+
+    if (timeoutMillis > 0) {
+      ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> future.completeExceptionally(
+          new TimeoutException("took more than " + timeoutMillis + "ms: " + description)),
+          timeoutMillis, TimeUnit.MILLISECONDS);
+
+      future.whenComplete((value, e) -> timeout.cancel(false));
+    }
+
+    // A cancelled or timed out query is interrupted, so it stops reading results
+    future.whenComplete((value, e) -> {
+      if (e instanceof CancellationException || e instanceof TimeoutException) {
+        task.cancel(true);
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Runs all the queries concurrently and gets the identifiers of their nodes. A query that fails
+   * or takes longer than its {@link QuerySpec#getTimeoutMillis() timeout} is logged and gets an
+   * empty result.
+   *
+   * @param specs The queries by name
+   * @return The identifiers of the nodes of each query, by name
+   */
+  public static Map<String, List<String>> getIdentifiers(Map<String, QuerySpec> specs) {
+    Map<String, CompletableFuture<List<String>>> futures = new LinkedHashMap<>();
+    Map<String, List<String>> results = new LinkedHashMap<>();
+
+    specs.forEach((name, spec) -> futures.put(name, submit(spec)));
+
+    // Every future completes by itself once its timeout is reached
+    futures.forEach((name, future) -> {
+      QuerySpec spec = specs.get(name);
+
+      try {
+        results.put(name, future.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof TimeoutException) {
+          log.warn("Query [" + name + "] " + e.getCause().getMessage());
+        } else {
+          log.error("Query [" + name + "] failed: " + spec, e.getCause());
+        }
+
+        results.put(name, Collections.emptyList());
+      } catch (CancellationException e) {
+        results.put(name, Collections.emptyList());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.cancel(true);
+        results.put(name, Collections.emptyList());
+      }
+    });
+
+    return results;
+  }
+
+  /**
+   * Runs all the queries concurrently and gets their nodes, resolved with the system session of
+   * the calling thread. Refer to {@link #getIdentifiers(Map)}.
+   *
+   * @param specs The queries by name
+   * @return The nodes of each query, by name
+   */
+  public static Map<String, Collection<Node>> getNodes(Map<String, QuerySpec> specs) {
+    Map<String, Collection<Node>> results = new LinkedHashMap<>();
+
+    getIdentifiers(specs).forEach((name, identifiers) -> {
+      try {
+        results.put(name, QueryUtils.resolveNodes(identifiers, specs.get(name).getWorkspace()));
+      } catch (RepositoryException e) {
+        log.error("Could not resolve the nodes of query [" + name + "]: " + specs.get(name), e);
+        results.put(name, Collections.emptyList());
+      }
+    });
+
+    return results;
+  }
+
+  /**
+   * Stops the threads of the pool. Queries submitted afterwards run on the calling thread.
+   */
+  public static void shutdown() {
+    EXECUTOR.shutdownNow();
+    TIMEOUTS.shutdownNow();
+  }
+
+  private static List<String> getIdentifiers(QuerySpec spec) throws RepositoryException {
+    Set<String> identifiers = new LinkedHashSet<>();
+    NodeIterator nodes = spec.toQuery().execute().getNodes();
+
+    while (nodes.hasNext()) {
+      // Set when the query is cancelled or times out
+      if (Thread.currentThread().isInterrupted()) {
+        throw new RepositoryException("Query interrupted: " + spec);
+      }
+
+      identifiers.add(nodes.nextNode().getIdentifier());
+    }
+
+    return new ArrayList<>(identifiers);
+  }
+
+  /**
+   * Thrown, wrapped in an {@link ExecutionException}, by the futures of queries that fail.
+   */
+  public static class QueryFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    QueryFailedException(String description, RepositoryException cause) {
+      super("Query failed: " + description, cause);
+    }
+  }
+}
@@ -0,0 +1,750 @@
+package com.nachoverdon.mongolia.utils;
+
+import info.magnolia.context.MgnlContext;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RangeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Measures the queries built by {@link QueryUtils}, grouped by workspace and statement
+ * {@link #fingerprint(String) fingerprint}: how long they take to be built, executed and read, and
+ * how many rows they return.
+ * <p>
+ * The latency of an execution covers its execute call and the reading of its results, and it's
+ * recorded once all of them have been read or, for the callers that stop reading early, once its
+ * results are garbage collected, as a partial execution. An execution that takes longer than the
+ * {@link #getSlowQueryMillis() slow query threshold}, whether in its execute call alone or once
+ * recorded, is logged as a warning along with its Oak plan, captured with an "EXPLAIN" query the
+ * first time a statement is slow, flagging the ones that traverse the repository instead of using
+ * an index.
+ * </p>
+ * <p>
+ * The threshold can be set with the "mongolia.query.slowMillis" system property, 500ms by default,
+ * and the profiler can be disabled with the "mongolia.query.profiler.disabled" one.
+ * </p>
+ */
+@Slf4j
+public final class QueryProfiler {
+
+  public static final long DEFAULT_SLOW_QUERY_MILLIS = 500;
+
+  /**
+   * The maximum amount of statements with statistics. Slow executions of any other statement are
+   * still logged.
+   */
+  public static final int MAX_STATEMENTS = 1000;
+
+  /**
+   * The upper bounds of the buckets of the latency histograms, in milliseconds. The last bucket
+   * holds every execution slower than the last bound.
+   */
+  static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+  private static final Pattern STRING_LITERAL =
+      Pattern.compile("'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"");
+  private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+  private static final Map<String, String> FINGERPRINTS = new ConcurrentHashMap<>();
+  private static final Map<String, Recorder> RECORDERS = new ConcurrentHashMap<>();
+
+  /**
+   * The executions whose results are still being read, until they are read entirely or abandoned.
+   */
+  private static final Set<Reading> READINGS = ConcurrentHashMap.newKeySet();
+  private static final ReferenceQueue<ProfiledResult> ABANDONED = new ReferenceQueue<>();
+
+  private static volatile boolean enabled =
+      !Boolean.getBoolean("mongolia.query.profiler.disabled");
+  private static volatile long slowQueryMillis = Long.getLong("mongolia.query.slowMillis",
+      DEFAULT_SLOW_QUERY_MILLIS);
+  private static volatile boolean explainSlowQueries = true;
+
+  private QueryProfiler() {
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Enables or disables the profiler. Queries built while it's disabled are not measured.
+   *
+   * @param enabled Whether the queries are measured
+   */
+  public static void setEnabled(boolean enabled) {
+    QueryProfiler.enabled = enabled;
+  }
+
+  public static long getSlowQueryMillis() {
+    return slowQueryMillis;
+  }
+
+  /**
+   * Sets the latency from which an execution is logged as slow.
+   *
+   * @param slowQueryMillis The threshold, in milliseconds
+   */
+  public static void setSlowQueryMillis(long slowQueryMillis) {
+    QueryProfiler.slowQueryMillis = slowQueryMillis;
+  }
+
+  /**
+   * Sets whether the plan of a statement is captured the first time it's slow. Enabled by default.
+   *
+   * @param explainSlowQueries Whether the plans are captured
+   */
+  public static void setExplainSlowQueries(boolean explainSlowQueries) {
+    QueryProfiler.explainSlowQueries = explainSlowQueries;
+  }
+
+  /**
+   * Gets a short hash of the statement, ignoring its whitespace and the values of its string and
+   * number literals, so the same query with different values has the same fingerprint.
+   *
+   * @param statement The statement
+   * @return The fingerprint, as an hexadecimal string
+   */
+  public static String fingerprint(String statement) {
+    String fingerprint = FINGERPRINTS.get(statement);
+
+    if (fingerprint == null) {
+      // Statements with literals may be unique, don't let them fill the memory
+      if (FINGERPRINTS.size() >= MAX_STATEMENTS * 10) {
+        FINGERPRINTS.clear();
+      }
+
+      fingerprint = hash(normalize(statement));
+      FINGERPRINTS.put(statement, fingerprint);
+    }
+
+    return fingerprint;
+  }
+
+  /**
+   * Gets the statistics of every statement, the ones that took the most time in total first.
+   *
+   * @return The statistics
+   */
+  public static List<Stats> getStats() {
+    List<Stats> stats = new ArrayList<>();
+
+    recordAbandoned();
+    RECORDERS.values().forEach(recorder -> stats.add(recorder.toStats()));
+    stats.sort(Comparator.comparingLong(Stats::getTotalMillis).reversed());
+
+    return stats;
+  }
+
+  /**
+   * Gets the statistics of a statement.
+   *
+   * @param workspace The workspace of the statement. Ex: "website"
+   * @param fingerprint The fingerprint of the statement. Refer to {@link #fingerprint(String)}.
+   * @return The statistics, or null if the statement hasn't been executed
+   */
+  @Nullable
+  public static Stats getStats(String workspace, String fingerprint) {
+    recordAbandoned();
+
+    Recorder recorder = RECORDERS.get(workspace + ":" + fingerprint);
+
+    return recorder == null ? null : recorder.toStats();
+  }
+
+  /**
+   * Removes the statistics and the captured plans of every statement.
+   */
+  public static void reset() {
+    RECORDERS.clear();
+  }
+
+  /**
+   * Wraps a query so its executions are measured, unless the profiler is disabled.
+   *
+   * @param query The query
+   * @param workspace The workspace of the query
+   * @param bindings The values already bound to the query, to capture its plan
+   * @param buildNanos The time it took to build the query
+   * @return The measured query
+   */
+  static Query profile(Query query, String workspace, Map<String, ?> bindings, long buildNanos) {
+    recordAbandoned();
+
+    if (!enabled) {
+      return query;
+    }
+
+    String statement = query.getStatement();
+    String fingerprint = fingerprint(statement);
+    String key = workspace + ":" + fingerprint;
+    Recorder recorder = RECORDERS.get(key);
+
+    if (recorder == null && RECORDERS.size() < MAX_STATEMENTS) {
+      recorder = RECORDERS.computeIfAbsent(key, k -> new Recorder(fingerprint, workspace,
+          statement));
+    }
+
+    if (recorder != null) {
+      recorder.buildNanos.add(buildNanos);
+    }
+
+    return new ProfiledQuery(query, workspace, recorder, bindings);
+  }
+
+  /**
+   * Records the executions whose results were garbage collected before being read entirely, like
+   * the ones of a page or of a count.
+   */
+  private static void recordAbandoned() {
+    Reference<?> reference;
+
+    while ((reference = ABANDONED.poll()) != null) {
+      Reading reading = (Reading) reference;
+
+      if (READINGS.remove(reading)) {
+        reading.execution.finish(true);
+      }
+    }
+  }
+
+  private static String normalize(String statement) {
+    String normalized = STRING_LITERAL.matcher(statement).replaceAll("?");
+
+    return StringUtils.normalizeSpace(NUMBER_LITERAL.matcher(normalized).replaceAll("?"));
+  }
+
+  private static String hash(String statement) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256")
+          .digest(statement.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+
+      // 64 bits are enough to tell statements apart
+      for (int i = 0; i < 8; i++) {
+        hex.append(String.format("%02x", hash[i]));
+      }
+
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Gets the plan Oak chooses for the query, without executing it.
+   *
+   * @return The plan, or null if the repository cannot explain the query
+   */
+  @Nullable
+  private static String explain(ProfiledQuery query) {
+    try {
+      Session session = MgnlContext.getSystemContext().getJCRSession(query.workspace);
+      Query explain = session.getWorkspace().getQueryManager()
+          .createQuery("EXPLAIN " + query.getStatement(), query.getLanguage());
+
+      for (String name : explain.getBindVariableNames()) {
+        Object value = query.bindings.get(name);
+
+        explain.bindValue(name, PreparedQueries.toValue(session.getValueFactory(),
+            value == null ? "" : value));
+      }
+
+      RowIterator rows = explain.execute().getRows();
+
+      return rows.hasNext() ? rows.nextRow().getValue("plan").getString() : null;
+    } catch (RepositoryException e) {
+      log.debug("Could not capture the plan of query: " + query.getStatement(), e);
+    }
+
+    return null;
+  }
+
+  private static boolean isTraversal(@Nullable String plan) {
+    return plan != null && plan.toLowerCase().contains("traverse");
+  }
+
+  /**
+   * The statistics of a statement in a workspace.
+   */
+  @Value
+  public static class Stats {
+    String fingerprint;
+    String workspace;
+
+    /**
+     * The first statement executed with the fingerprint.
+     */
+    String statement;
+    long executions;
+
+    /**
+     * The amount of executions whose latency is in the histogram: the ones whose results have been
+     * read entirely, and the partial ones.
+     */
+    long completed;
+
+    /**
+     * The amount of executions whose results were abandoned before being read entirely, recorded
+     * with the latency of the execute call and the results read.
+     */
+    long partial;
+    long slowExecutions;
+    long rows;
+    long buildMillis;
+    long totalMillis;
+    long maxMillis;
+
+    /**
+     * The amount of completed executions of each bucket of the latency histogram. Refer to
+     * {@link #getBucketBounds()}.
+     */
+    List<Long> histogram;
+
+    /**
+     * The plan of the statement, captured the first time it was slow.
+     */
+    @Nullable
+    String plan;
+
+    /**
+     * Whether the plan of the statement traverses the repository instead of using an index.
+     */
+    boolean traversal;
+
+    /**
+     * Gets the upper bounds of the buckets of the histogram, in milliseconds. The last bucket has
+     * no bound.
+     *
+     * @return The bounds
+     */
+    public static List<Long> getBucketBounds() {
+      List<Long> bounds = new ArrayList<>();
+
+      for (long bound : BUCKETS) {
+        bounds.add(bound);
+      }
+
+      return Collections.unmodifiableList(bounds);
+    }
+
+    public double getMeanMillis() {
+      return completed == 0 ? 0 : (double) totalMillis / completed;
+    }
+
+    public double getMeanRows() {
+      return executions == 0 ? 0 : (double) rows / executions;
+    }
+
+    /**
+     * Gets an approximation of a percentile of the latency: the upper bound of the bucket of the
+     * histogram that holds it, or the maximum latency if it's in the last bucket.
+     *
+     * @param percentile The percentile, between 0 and 100. Ex: 99
+     * @return The latency, in milliseconds
+     */
+    public long getPercentileMillis(double percentile) {
+      long target = (long) Math.ceil(completed * percentile / 100);
+      long count = 0;
+
+      for (int i = 0; i < BUCKETS.length; i++) {
+        count += histogram.get(i);
+
+        if (count >= target && count > 0) {
+          return Math.min(BUCKETS[i], maxMillis);
+        }
+      }
+
+      return maxMillis;
+    }
+  }
+
+  private static final class Recorder {
+    private final String fingerprint;
+    private final String workspace;
+    private final String statement;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder partial = new LongAdder();
+    private final LongAdder slowExecutions = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder buildNanos = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicBoolean explained = new AtomicBoolean();
+    private volatile String plan;
+
+    private Recorder(String fingerprint, String workspace, String statement) {
+      this.fingerprint = fingerprint;
+      this.workspace = workspace;
+      this.statement = statement;
+    }
+
+    private void record(long nanos, boolean abandoned) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+      int bucket = 0;
+
+      while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+        bucket++;
+      }
+
+      if (abandoned) {
+        partial.increment();
+      }
+
+      completed.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+      histogram.incrementAndGet(bucket);
+    }
+
+    private Stats toStats() {
+      List<Long> counts = new ArrayList<>();
+
+      for (int i = 0; i < histogram.length(); i++) {
+        counts.add(histogram.get(i));
+      }
+
+      return new Stats(fingerprint, workspace, statement, executions.sum(), completed.sum(),
+          partial.sum(), slowExecutions.sum(), rows.sum(),
+          TimeUnit.NANOSECONDS.toMillis(buildNanos.sum()),
+          TimeUnit.NANOSECONDS.toMillis(totalNanos.sum()),
+          TimeUnit.NANOSECONDS.toMillis(maxNanos.get()), Collections.unmodifiableList(counts), plan,
+          isTraversal(plan));
+    }
+  }
+
+  /**
+   * A single execution of a query, measured until all of its results have been read or abandoned.
+   */
+  private static final class Execution {
+    private final ProfiledQuery query;
+    private long nanos;
+    private long rows;
+    private boolean finished;
+    private boolean slow;
+    @Nullable
+    private Reading reading;
+
+    private Execution(ProfiledQuery query, long executeNanos) {
+      this.query = query;
+      this.nanos = executeNanos;
+
+      long millis = TimeUnit.NANOSECONDS.toMillis(executeNanos);
+
+      // The results may never be read entirely
+      if (millis >= slowQueryMillis) {
+        logSlow(millis, "to execute");
+      }
+    }
+
+    private void read(long readNanos, long readRows) {
+      nanos += readNanos;
+      rows += readRows;
+
+      if (query.recorder != null && readRows > 0) {
+        query.recorder.rows.add(readRows);
+      }
+    }
+
+    /**
+     * Records the execution once its results have been read entirely or abandoned.
+     */
+    private void finish(boolean abandoned) {
+      if (finished) {
+        return;
+      }
+
+      finished = true;
+
+      if (reading != null && !abandoned) {
+        READINGS.remove(reading);
+        reading.clear();
+      }
+
+      if (query.recorder != null) {
+        query.recorder.record(nanos, abandoned);
+      }
+
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+      if (millis >= slowQueryMillis && !slow) {
+        logSlow(millis, abandoned ? "and was abandoned after reading " + rows + " rows"
+            : "and read " + rows + " rows");
+      }
+    }
+
+    private void logSlow(long millis, String detail) {
+      Recorder recorder = query.recorder;
+      String plan = recorder == null ? null : recorder.plan;
+
+      slow = true;
+
+      if (recorder != null) {
+        recorder.slowExecutions.increment();
+      }
+
+      // The plan of a statement is captured only once
+      if (explainSlowQueries
+          && (recorder == null || recorder.explained.compareAndSet(false, true))) {
+        plan = explain(query);
+
+        if (recorder != null) {
+          recorder.plan = plan;
+        }
+      }
+
+      log.warn("Slow query on workspace [" + query.workspace + "] took " + millis + "ms " + detail
+          + ": " + query.getStatement()
+          + (isTraversal(plan) ? "\nIt traverses the repository instead of using an index." : "")
+          + (plan == null ? "" : "\nPlan: " + plan));
+    }
+  }
+
+  private static final class ProfiledQuery implements Query {
+    private final Query query;
+    private final String workspace;
+    @Nullable
+    private final Recorder recorder;
+    private final Map<String, Object> bindings;
+
+    private ProfiledQuery(Query query, String workspace, @Nullable Recorder recorder,
+                          Map<String, ?> bindings) {
+      this.query = query;
+      this.workspace = workspace;
+      this.recorder = recorder;
+      this.bindings = new HashMap<>(bindings);
+    }
+
+    @Override
+    public QueryResult execute() throws RepositoryException {
+      long start = System.nanoTime();
+      QueryResult result = query.execute();
+
+      if (recorder != null) {
+        recorder.executions.increment();
+      }
+
+      return new ProfiledResult(result, new Execution(this, System.nanoTime() - start));
+    }
+
+    @Override
+    public void setLimit(long limit) {
+      query.setLimit(limit);
+    }
+
+    @Override
+    public void setOffset(long offset) {
+      query.setOffset(offset);
+    }
+
+    @Override
+    public String getStatement() {
+      return query.getStatement();
+    }
+
+    @Override
+    public String getLanguage() {
+      return query.getLanguage();
+    }
+
+    @Override
+    public String getStoredQueryPath() throws RepositoryException {
+      return query.getStoredQueryPath();
+    }
+
+    @Override
+    public Node storeAsNode(String absPath) throws RepositoryException {
+      return query.storeAsNode(absPath);
+    }
+
+    @Override
+    public void bindValue(String varName, javax.jcr.Value value) throws RepositoryException {
+      query.bindValue(varName, value);
+      bindings.put(varName, value);
+    }
+
+    @Override
+    public String[] getBindVariableNames() throws RepositoryException {
+      return query.getBindVariableNames();
+    }
+  }
+
+  /**
+   * The results of an execution being read, enqueued once neither them nor their iterators are
+   * reachable anymore.
+   */
+  private static final class Reading extends PhantomReference<ProfiledResult> {
+    private final Execution execution;
+
+    private Reading(ProfiledResult result, Execution execution) {
+      super(result, ABANDONED);
+      this.execution = execution;
+    }
+  }
+
+  private static final class ProfiledResult implements QueryResult {
+    private final QueryResult result;
+    private final Execution execution;
+
+    private ProfiledResult(QueryResult result, Execution execution) {
+      this.result = result;
+      this.execution = execution;
+
+      execution.reading = new Reading(this, execution);
+      READINGS.add(execution.reading);
+    }
+
+    @Override
+    public String[] getColumnNames() throws RepositoryException {
+      return result.getColumnNames();
+    }
+
+    @Override
+    public RowIterator getRows() throws RepositoryException {
+      return new ProfiledRowIterator(result.getRows(), this);
+    }
+
+    @Override
+    public NodeIterator getNodes() throws RepositoryException {
+      return new ProfiledNodeIterator(result.getNodes(), this);
+    }
+
+    @Override
+    public String[] getSelectorNames() throws RepositoryException {
+      return result.getSelectorNames();
+    }
+  }
+
+  /**
+   * Measures the time spent reading the results, not the time the caller spends between reads.
+   *
+   * @param <T> The type of the iterator
+   */
+  private abstract static class ProfiledIterator<T extends RangeIterator> implements RangeIterator {
+    final T iterator;
+    // Keeps the result reachable, so that it's not abandoned while it's being read
+    private final ProfiledResult result;
+    private final Execution execution;
+
+    private ProfiledIterator(T iterator, ProfiledResult result) {
+      this.iterator = iterator;
+      this.result = result;
+      this.execution = result.execution;
+    }
+
+    <R> R read(Supplier<R> reader) {
+      long start = System.nanoTime();
+      R value = reader.get();
+
+      execution.read(System.nanoTime() - start, 1);
+
+      return value;
+    }
+
+    @Override
+    public boolean hasNext() {
+      long start = System.nanoTime();
+      boolean hasNext = iterator.hasNext();
+
+      execution.read(System.nanoTime() - start, 0);
+
+      if (!hasNext) {
+        execution.finish(false);
+      }
+
+      return hasNext;
+    }
+
+    @Override
+    public Object next() {
+      return read(iterator::next);
+    }
+
+    @Override
+    public void skip(long skipNum) {
+      long start = System.nanoTime();
+
+      iterator.skip(skipNum);
+      execution.read(System.nanoTime() - start, skipNum);
+    }
+
+    @Override
+    public long getSize() {
+      long start = System.nanoTime();
+      long size = iterator.getSize();
+
+      execution.read(System.nanoTime() - start, 0);
+
+      return size;
+    }
+
+    @Override
+    public long getPosition() {
+      return iterator.getPosition();
+    }
+
+    @Override
+    public void remove() {
+      iterator.remove();
+    }
+  }
+
+  private static final class ProfiledNodeIterator extends ProfiledIterator<NodeIterator>
+      implements NodeIterator {
+
+    private ProfiledNodeIterator(NodeIterator iterator, ProfiledResult result) {
+      super(iterator, result);
+    }
+
+    @Override
+    public Node nextNode() {
+      return read(iterator::nextNode);
+    }
+  }
+
+  private static final class ProfiledRowIterator extends ProfiledIterator<RowIterator>
+      implements RowIterator {
+
+    private ProfiledRowIterator(RowIterator iterator, ProfiledResult result) {
+      super(iterator, result);
+    }
+
+    @Override
+    public Row nextRow() {
+      return read(iterator::nextRow);
+    }
+  }
+}
@@ -0,0 +1,426 @@
+package com.nachoverdon.mongolia.utils;
+
+import info.magnolia.observation.WorkspaceEventListenerRegistration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A bounded LRU cache of query results, keyed by statement, workspace, query language, limit and
+ * offset. It holds the identifiers of the resulting Nodes, or their count, never the Nodes
+ * themselves, since those belong to the session that retrieved them.
+ * <p>
+ * Entries expire after a time to live, and the first time a workspace is used a JCR observation
+ * listener is registered on it: any change under the watched path of the workspace, the root by
+ * default, evicts all of its entries, since any of them may be affected.
+ * </p>
+ */
+@Slf4j
+public class QueryResultCache {
+
+  public static final int DEFAULT_MAX_SIZE = 500;
+  public static final long DEFAULT_TTL_MINUTES = 10;
+
+  private static final QueryResultCache INSTANCE = new QueryResultCache(DEFAULT_MAX_SIZE,
+      DEFAULT_TTL_MINUTES, TimeUnit.MINUTES);
+
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final Map<Key, Entry> entries;
+  private final Map<String, String> watchedPaths = new ConcurrentHashMap<>();
+  private final Map<String, WorkspaceEventListenerRegistration.Handle> listeners =
+      new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final QueryCoalescer loads = new QueryCoalescer();
+
+  /**
+   * Creates a cache that holds at most the given amount of results, for the given time.
+   *
+   * @param maxSize The maximum amount of results
+   * @param ttl The time a result is kept
+   * @param unit The unit of the time to live
+   */
+  public QueryResultCache(int maxSize, long ttl, TimeUnit unit) {
+    this.maxSize = maxSize;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        if (size() > QueryResultCache.this.maxSize) {
+          evictions.incrementAndGet();
+
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Gets the cache shared by the "getCached" methods of {@link QueryUtils}.
+   *
+   * @return The shared cache
+   */
+  public static QueryResultCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Restricts the changes that invalidate the results of a workspace to the ones under the given
+   * path, like "/site/news" for a workspace whose queries only look there. It must be set before
+   * the workspace is first used.
+   *
+   * @param workspace The workspace
+   * @param path The path whose changes invalidate the results of the workspace
+   */
+  public void setWatchedPath(String workspace, String path) {
+    if (listeners.containsKey(workspace)) {
+      log.warn("Workspace [" + workspace + "] is already observed from ["
+          + watchedPaths.getOrDefault(workspace, "/") + "], the watched path won't change");
+    }
+
+    watchedPaths.put(workspace, path);
+  }
+
+  /**
+   * Gets the identifiers of the Nodes returned by the query, without duplicates, executing it if
+   * they aren't cached yet.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The offset of the query
+   * @return The identifiers of the Nodes
+   * @throws RepositoryException If the query fails.
+   */
+  public List<String> getIdentifiers(String statement, String workspace, String language,
+                                     long limit, long offset) throws RepositoryException {
+    return get(new Key(Kind.NODES, statement, workspace, language, limit, offset), () -> {
+      Set<String> identifiers = new LinkedHashSet<>();
+      NodeIterator nodes = QueryUtils.getQuery(statement, workspace, language, limit, offset)
+          .execute().getNodes();
+
+      while (nodes.hasNext()) {
+        identifiers.add(nodes.nextNode().getIdentifier());
+      }
+
+      return Collections.unmodifiableList(new ArrayList<>(identifiers));
+    });
+  }
+
+  /**
+   * Gets the amount of rows returned by the query, counting them without loading their nodes if it
+   * isn't cached yet. Refer to {@link QueryUtils#countRows(javax.jcr.query.QueryResult)}.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @return The count
+   * @throws RepositoryException If the query fails.
+   */
+  public long getCount(String statement, String workspace, String language)
+      throws RepositoryException {
+    return get(new Key(Kind.COUNT, statement, workspace, language, -1, 0),
+        () -> QueryUtils.countRows(QueryUtils.getQuery(statement, workspace, language).execute()));
+  }
+
+  /**
+   * Gets a cached value, loading and caching it if it isn't cached yet or it has expired. Identical
+   * loads that run at the same time are coalesced. Refer to {@link QueryCoalescer}.
+   *
+   * @param key The key of the value
+   * @param loader The loader of the value
+   * @param <T> The type of the value
+   * @return The value
+   * @throws RepositoryException If the value cannot be loaded.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T get(Key key, Loader<T> loader) throws RepositoryException {
+    Entry entry;
+
+    synchronized (entries) {
+      entry = entries.get(key);
+
+      if (entry != null && entry.isExpired(ttlNanos)) {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+
+    if (entry != null) {
+      hits.incrementAndGet();
+
+      return (T) entry.value;
+    }
+
+    misses.incrementAndGet();
+    observe(key.workspace);
+
+    AtomicLong generation = getGeneration(key.workspace);
+
+    // Only the caller that executes the query caches it, the ones waiting for it may have seen
+    // changes that happened while it was executed
+    return loads.load(key, () -> {
+      // Any change while the query is executed may leave the result stale
+      long generationBefore = generation.get();
+      T value = QuerySessions.withSystemSessions(loader);
+
+      synchronized (entries) {
+        if (generation.get() == generationBefore) {
+          entries.put(key, new Entry(value));
+        }
+      }
+
+      return value;
+    });
+  }
+
+  /**
+   * Evicts every result of the workspace.
+   *
+   * @param workspace The workspace
+   */
+  public void invalidate(String workspace) {
+    invalidations.incrementAndGet();
+    getGeneration(workspace).incrementAndGet();
+
+    synchronized (entries) {
+      Iterator<Key> iterator = entries.keySet().iterator();
+
+      while (iterator.hasNext()) {
+        if (iterator.next().workspace.equals(workspace)) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts every result.
+   */
+  public void clear() {
+    invalidations.incrementAndGet();
+    generations.values().forEach(AtomicLong::incrementAndGet);
+
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * Evicts every result and unregisters the observation listeners.
+   */
+  public void shutdown() {
+    List<String> workspaces = new ArrayList<>(listeners.keySet());
+
+    for (String workspace : workspaces) {
+      WorkspaceEventListenerRegistration.Handle handle = listeners.remove(workspace);
+
+      try {
+        if (handle != null) {
+          handle.unregister();
+        }
+      } catch (RepositoryException e) {
+        log.error("Cannot unregister the query cache listener of workspace [" + workspace + "]",
+            e);
+      }
+    }
+
+    clear();
+  }
+
+  /**
+   * Gets the statistics of the cache since it was created.
+   *
+   * @return The statistics
+   */
+  public Stats getStats() {
+    int size;
+
+    synchronized (entries) {
+      size = entries.size();
+    }
+
+    return new Stats(hits.get(), misses.get(), evictions.get(), invalidations.get(), size);
+  }
+
+  /**
+   * Registers an observation listener on the given path of the workspace and its descendants.
+   *
+   * @param workspace The workspace to observe
+   * @param path The watched path of the workspace
+   * @param listener The listener that evicts the results of the workspace
+   * @return The handle of the registration
+   * @throws RepositoryException If the workspace cannot be observed.
+   */
+  protected WorkspaceEventListenerRegistration.Handle register(String workspace, String path,
+                                                               EventListener listener)
+      throws RepositoryException {
+    return WorkspaceEventListenerRegistration.observe(workspace, path, listener)
+        .withSubNodes(true)
+        .withEventTypesMask(EVENT_TYPES)
+        .register();
+  }
+
+  private AtomicLong getGeneration(String workspace) {
+    return generations.computeIfAbsent(workspace, w -> new AtomicLong());
+  }
+
+  private void observe(String workspace) {
+    if (listeners.containsKey(workspace)) {
+      return;
+    }
+
+    synchronized (listeners) {
+      if (listeners.containsKey(workspace)) {
+        return;
+      }
+
+      String path = watchedPaths.getOrDefault(workspace, "/");
+
+      try {
+        listeners.put(workspace, register(workspace, path, new InvalidationListener(workspace)));
+      } catch (RepositoryException e) {
+        log.error("Cannot observe workspace [" + workspace + "] from [" + path + "], its results "
+            + "will only expire", e);
+      }
+    }
+  }
+
+  /**
+   * Loads a value to cache.
+   *
+   * @param <T> The type of the value
+   */
+  @FunctionalInterface
+  interface Loader<T> {
+    T load() throws RepositoryException;
+  }
+
+  private class InvalidationListener implements EventListener {
+    private final String workspace;
+
+    private InvalidationListener(String workspace) {
+      this.workspace = workspace;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+      // A single invalidation covers the whole batch of events
+      if (events.hasNext()) {
+        invalidate(workspace);
+      }
+    }
+  }
+
+  /**
+   * The statistics of a {@link QueryResultCache}.
+   */
+  @Value
+  public static class Stats {
+    long hits;
+    long misses;
+    long evictions;
+    long invalidations;
+    int size;
+
+    /**
+     * Gets the ratio of requests served from the cache.
+     *
+     * @return A value between 0 and 1
+     */
+    public double getHitRate() {
+      long requests = hits + misses;
+
+      return requests == 0 ? 0 : (double) hits / requests;
+    }
+  }
+
+  enum Kind {
+    NODES, COUNT,
+
+    /**
+     * The deduplicated nodes of {@link QueryUtils#search(String, String, String)}.
+     */
+    SEARCH
+  }
+
+  static final class Key {
+    private final Kind kind;
+    private final String statement;
+    private final String workspace;
+    private final String language;
+    private final long limit;
+    private final long offset;
+
+    Key(Kind kind, String statement, String workspace, String language, long limit,
+        long offset) {
+      this.kind = kind;
+      this.statement = statement;
+      this.workspace = workspace;
+      this.language = language;
+      this.limit = limit;
+      this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key key = (Key) o;
+
+      return kind == key.kind && limit == key.limit && offset == key.offset
+          && statement.equals(key.statement) && workspace.equals(key.workspace)
+          && language.equals(key.language);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(kind, statement, workspace, language, limit, offset);
+    }
+  }
+
+  private static final class Entry {
+    private final Object value;
+    private final long createdAt = System.nanoTime();
+
+    private Entry(Object value) {
+      this.value = value;
+    }
+
+    private boolean isExpired(long ttlNanos) {
+      return System.nanoTime() - createdAt > ttlNanos;
+    }
+  }
+}
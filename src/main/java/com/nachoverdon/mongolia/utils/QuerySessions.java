@@ -0,0 +1,207 @@
+package com.nachoverdon.mongolia.utils;
+
+import info.magnolia.context.MgnlContext;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.QueryManager;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Holds the session and the {@link QueryManager} of each workspace used by {@link QueryUtils}
+ * while a scope is open, so a page that runs many queries looks them up only once. Outside a
+ * scope, they are looked up on every query. Usage example, for a background job:
+ * <pre>{@code
+ *   try (QuerySessions sessions = QuerySessions.open()) {
+ *     Collection<Node> news = QueryUtils.getNodes(newsStatement, "website");
+ *     Collection<Node> events = QueryUtils.getNodes(eventsStatement, "website");
+ *   }
+ * }</pre>
+ * <p>
+ * Requests get a scope from {@link com.nachoverdon.mongolia.filters.QuerySessionFilter}. A scope
+ * belongs to the thread that opened it and must be closed by it. Scopes can be nested, the
+ * innermost one is used.
+ * </p>
+ * <p>
+ * A scope opened with {@link #openForUser()} runs the queries with the session of the current
+ * user, so they only return the nodes the user can read. Cached queries are shared by every
+ * user, so they always run with the system session, but their nodes are still resolved with the
+ * session of the user. Coalesced queries are only shared by the queries of the same user.
+ * </p>
+ */
+@Slf4j
+public final class QuerySessions implements AutoCloseable {
+
+  private static final ThreadLocal<QuerySessions> CURRENT = new ThreadLocal<>();
+
+  private final boolean userSessions;
+  @Nullable
+  private final QuerySessions parent;
+  private final Map<String, Session> sessions = new HashMap<>();
+  private final Map<String, QueryManager> queryManagers = new HashMap<>();
+  private boolean closed;
+
+  private QuerySessions(boolean userSessions, @Nullable QuerySessions parent) {
+    this.userSessions = userSessions;
+    this.parent = parent;
+  }
+
+  /**
+   * Opens a scope on the current thread that runs the queries with the system session.
+   *
+   * @return The scope, to be closed by the same thread
+   */
+  public static QuerySessions open() {
+    return open(false);
+  }
+
+  /**
+   * Opens a scope on the current thread that runs the queries with the session of the current
+   * user. It requires a web context, like the one of a request.
+   *
+   * @return The scope, to be closed by the same thread
+   */
+  public static QuerySessions openForUser() {
+    return open(true);
+  }
+
+  private static QuerySessions open(boolean userSessions) {
+    QuerySessions scope = new QuerySessions(userSessions, CURRENT.get());
+
+    CURRENT.set(scope);
+
+    return scope;
+  }
+
+  /**
+   * Gets the scope open on the current thread.
+   *
+   * @return The innermost scope, or null if there is none
+   */
+  @Nullable
+  public static QuerySessions current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Gets the session that runs the queries of the workspace: the one of the current scope, or the
+   * system session if there is none.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The session
+   * @throws RepositoryException If the session cannot be opened.
+   */
+  public static Session getSession(String workspace) throws RepositoryException {
+    QuerySessions scope = CURRENT.get();
+
+    return scope == null
+        ? MgnlContext.getSystemContext().getJCRSession(workspace)
+        : scope.session(workspace);
+  }
+
+  /**
+   * Gets the query manager of the session that runs the queries of the workspace. Refer to
+   * {@link #getSession(String)}.
+   *
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The query manager
+   * @throws RepositoryException If the session cannot be opened.
+   */
+  public static QueryManager getQueryManager(String workspace) throws RepositoryException {
+    QuerySessions scope = CURRENT.get();
+
+    return scope == null
+        ? getSession(workspace).getWorkspace().getQueryManager()
+        : scope.queryManager(workspace);
+  }
+
+  /**
+   * Checks whether the queries of the current thread run with the session of the current user.
+   *
+   * @return Whether the current scope uses the sessions of the user
+   */
+  public static boolean isUserScope() {
+    QuerySessions scope = CURRENT.get();
+
+    return scope != null && scope.userSessions;
+  }
+
+  /**
+   * Loads a value with the system sessions, even inside a scope opened for the current user, for
+   * the results shared by every user.
+   *
+   * @param loader The loader of the value
+   * @param <T> The type of the value
+   * @return The value
+   * @throws RepositoryException If the value cannot be loaded.
+   */
+  static <T> T withSystemSessions(QueryResultCache.Loader<T> loader) throws RepositoryException {
+    if (!isUserScope()) {
+      return loader.load();
+    }
+
+    QuerySessions scope = CURRENT.get();
+
+    CURRENT.remove();
+
+    try {
+      return loader.load();
+    } finally {
+      CURRENT.set(scope);
+    }
+  }
+
+  /**
+   * Closes the scope, restoring the outer one, if any.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    sessions.clear();
+    queryManagers.clear();
+
+    if (CURRENT.get() != this) {
+      log.warn("A query session scope was closed before the ones opened inside it, or on "
+          + "another thread");
+    }
+
+    if (parent == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(parent);
+    }
+  }
+
+  private Session session(String workspace) throws RepositoryException {
+    Session session = sessions.get(workspace);
+
+    if (session == null || !session.isLive()) {
+      session = userSessions
+          ? MgnlContext.getJCRSession(workspace)
+          : MgnlContext.getSystemContext().getJCRSession(workspace);
+
+      sessions.put(workspace, session);
+      queryManagers.remove(workspace);
+    }
+
+    return session;
+  }
+
+  private QueryManager queryManager(String workspace) throws RepositoryException {
+    Session session = session(workspace);
+    QueryManager queryManager = queryManagers.get(workspace);
+
+    if (queryManager == null) {
+      queryManager = session.getWorkspace().getQueryManager();
+      queryManagers.put(workspace, queryManager);
+    }
+
+    return queryManager;
+  }
+}
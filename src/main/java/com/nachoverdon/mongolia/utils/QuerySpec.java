@@ -0,0 +1,112 @@
+package com.nachoverdon.mongolia.utils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+
+/**
+ * The description of a query to run with {@link QueryFanOut}. Usage example:
+ * <pre>{@code
+ *   QuerySpec news = QuerySpec.builder()
+ *       .statement("SELECT * FROM [mgnl:content] WHERE [category] = $category")
+ *       .workspace("news")
+ *       .binding("category", category)
+ *       .limit(5)
+ *       .build();
+ * }</pre>
+ */
+@Getter
+@Builder
+public class QuerySpec {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * The statement that will be executed.
+   */
+  private final String statement;
+
+  /**
+   * The desired workspace. Ex: "website"
+   */
+  private final String workspace;
+
+  /**
+   * The language that will be used. JCR-SQL2 by default.
+   */
+  @Builder.Default
+  private final String language = Query.JCR_SQL2;
+
+  /**
+   * The values of the bind variables of the statement, by name and without the "$".
+   */
+  @Singular
+  private final Map<String, Object> bindings;
+
+  /**
+   * The maximum amount of nodes to retrieve. No limit by default.
+   */
+  @Builder.Default
+  private final long limit = -1;
+
+  /**
+   * The offset of the query.
+   */
+  private final long offset;
+
+  /**
+   * The time to wait for the result, in milliseconds, counted from the moment the query is
+   * submitted. 10 seconds by default.
+   */
+  @Builder.Default
+  private final long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+  /**
+   * Creates the description of a query built with a {@link QueryBuilder}.
+   *
+   * @param query The query
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The description of the query
+   */
+  public static QuerySpec of(QueryBuilder query, String workspace) {
+    return QuerySpec.builder()
+        .statement(query.getStatement())
+        .workspace(workspace)
+        .bindings(query.getBindings())
+        .limit(query.getLimit())
+        .offset(query.getOffset())
+        .build();
+  }
+
+  /**
+   * Creates the description of a JCR-SQL2 query.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @return The description of the query
+   */
+  public static QuerySpec of(String statement, String workspace) {
+    return QuerySpec.builder().statement(statement).workspace(workspace).build();
+  }
+
+  /**
+   * Builds the query with the system session of the current thread.
+   *
+   * @return The query, ready to be executed
+   * @throws RepositoryException If the query cannot be created
+   */
+  Query toQuery() throws RepositoryException {
+    return bindings.isEmpty()
+        ? QueryUtils.getQuery(statement, workspace, language, limit, offset)
+        : QueryUtils.getPreparedQuery(statement, workspace, language, bindings, limit, offset);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + workspace + "] " + statement + (bindings.isEmpty() ? "" : " " + bindings);
+  }
+}
@@ -2,25 +2,33 @@ package com.nachoverdon.mongolia.utils;
 
 import com.nachoverdon.mongolia.annotations.Children;
 import com.nachoverdon.mongolia.annotations.Translatable;
-import info.magnolia.cms.i18n.I18nContentSupport;
 import info.magnolia.cms.util.QueryUtil;
-import info.magnolia.context.MgnlContext;
 import info.magnolia.jcr.util.NodeUtil;
-import info.magnolia.objectfactory.Components;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nullable;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -28,6 +36,18 @@ import org.apache.commons.lang3.StringUtils;
 @Slf4j
 public class QueryUtils extends QueryUtil {
 
+  /**
+   * The property names searched by {@link #setSearchableFields(Class, String, String, SearchMode)},
+   * by class and by the suffix of the translated properties.
+   */
+  private static final ClassValue<Map<String, List<String>>> SEARCHABLE_FIELDS =
+      new ClassValue<Map<String, List<String>>>() {
+        @Override
+        protected Map<String, List<String>> computeValue(Class<?> type) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
   /**
    * Wraps a String value between quotes.
    *
@@ -60,21 +80,22 @@ public class QueryUtils extends QueryUtil {
 
   /**
    * Builds a query for the given statement, workspace and language, setting the limit and the
-   * offset of the query.
+   * offset of the query. It uses the system session, or the one of the current
+   * {@link QuerySessions} scope.
    *
    * @param statement The SQL/xpath statement that will be executed
    * @param workspace The desired workspace. Ex: "website"
    * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
    * @param limit The maximum amount of nodes to retrieve
    * @param offset The offset of the query
-   * @return a Query with the given parameters
+   * @return a Query with the given parameters, measured by {@link QueryProfiler}
    * @throws RepositoryException If the Query cannot be created
    */
   @SuppressWarnings("deprecation")
   public static Query getQuery(String statement, String workspace, String language, long limit,
                                long offset) throws RepositoryException {
-    Query query = MgnlContext.getSystemContext().getJCRSession(workspace).getWorkspace()
-        .getQueryManager().createQuery(statement, language);
+    long start = System.nanoTime();
+    Query query = QuerySessions.getQueryManager(workspace).createQuery(statement, language);
 
     if (limit > 0) {
       query.setLimit(limit);
@@ -84,7 +105,8 @@ public class QueryUtils extends QueryUtil {
       query.setOffset(offset);
     }
 
-    return query;
+    return QueryProfiler.profile(query, workspace, Collections.emptyMap(),
+        System.nanoTime() - start);
   }
 
   /**
@@ -116,6 +138,186 @@ public class QueryUtils extends QueryUtil {
     return getQuery(statement, workspace, Query.JCR_SQL2);
   }
 
+  /**
+   * Builds a JCR-SQL2 query executed by the given session, so it returns only the Nodes its user
+   * can read, whatever the {@link QuerySessions} scope is.
+   *
+   * @param statement The SQL statement that will be executed
+   * @param session The session that will execute the query
+   * @return a Query with the given parameters
+   * @throws RepositoryException If the Query cannot be created
+   */
+  public static Query getQuery(String statement, Session session) throws RepositoryException {
+    long start = System.nanoTime();
+    Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.JCR_SQL2);
+
+    return QueryProfiler.profile(query, session.getWorkspace().getName(), Collections.emptyMap(),
+        System.nanoTime() - start);
+  }
+
+  /**
+   * Executes a query in the background, on the pool of {@link QueryFanOut}, so the calling thread
+   * can do other work meanwhile. The query runs with its own system session, released when it
+   * finishes, so the future holds the identifiers of the nodes, without duplicates. Resolve them
+   * with {@link #resolveNodes(Collection, String)} on the thread that uses the nodes. Usage
+   * example:
+   * <pre>{@code
+   *   CompletableFuture<List<String>> news = QueryUtils.getNodesAsync(statement, "website",
+   *       Query.JCR_SQL2, 10, 0, 2000);
+   *
+   *   // Render something else meanwhile
+   *   Collection<Node> nodes = QueryUtils.resolveNodes(news.get(), "website");
+   * }</pre>
+   * <p>
+   * Cancelling the future interrupts the query.
+   * </p>
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The offset of the query
+   * @param timeoutMillis The time after which the future completes exceptionally with a
+   *                      {@link java.util.concurrent.TimeoutException}, or 0 to wait forever
+   * @return A future with the identifiers of the nodes
+   */
+  public static CompletableFuture<List<String>> getNodesAsync(String statement, String workspace,
+                                                              String language, long limit,
+                                                              long offset, long timeoutMillis) {
+    return QueryFanOut.submit(QuerySpec.builder()
+        .statement(statement)
+        .workspace(workspace)
+        .language(language)
+        .limit(limit)
+        .offset(offset)
+        .timeoutMillis(timeoutMillis)
+        .build());
+  }
+
+  /**
+   * Refer to {@link #getNodesAsync(String, String, String, long, long, long)}. Uses JCR-SQL2 as
+   * default query language, without limit and with the default timeout of
+   * {@link QuerySpec#DEFAULT_TIMEOUT_MILLIS}.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A future with the identifiers of the nodes
+   */
+  public static CompletableFuture<List<String>> getNodesAsync(String statement, String workspace) {
+    return QueryFanOut.submit(QuerySpec.of(statement, workspace));
+  }
+
+  /**
+   * Counts the nodes of a query in the background, without loading them. Refer to
+   * {@link #getNodesAsync(String, String, String, long, long, long)} and
+   * {@link #countRows(QueryResult)}.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param timeoutMillis The time after which the future completes exceptionally with a
+   *                      {@link java.util.concurrent.TimeoutException}, or 0 to wait forever
+   * @return A future with the count
+   */
+  public static CompletableFuture<Long> getNodesCountAsync(String statement, String workspace,
+                                                           String language, long timeoutMillis) {
+    return QueryFanOut.supply(() -> countRows(getQuery(statement, workspace, language).execute()),
+        timeoutMillis, "[" + workspace + "] " + statement);
+  }
+
+  /**
+   * Refer to {@link #getNodesCountAsync(String, String, String, long)}. Uses JCR-SQL2 as default
+   * query language and the default timeout of {@link QuerySpec#DEFAULT_TIMEOUT_MILLIS}.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A future with the count
+   */
+  public static CompletableFuture<Long> getNodesCountAsync(String statement, String workspace) {
+    return getNodesCountAsync(statement, workspace, Query.JCR_SQL2,
+        QuerySpec.DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Builds a query for a statement with bind variables, like
+   * {@code SELECT * FROM [mgnl:page] WHERE [title] = $title}, binding the given values to it, so
+   * the values are never concatenated to the statement. Refer to {@link PreparedQueries}.
+   *
+   * @param statement The statement with bind variables that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param bindings The values of the bind variables, by name and without the "$"
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The offset of the query
+   * @return a Query with the given parameters
+   * @throws RepositoryException If the Query cannot be created or a bind variable has no value
+   */
+  public static Query getPreparedQuery(String statement, String workspace, String language,
+                                       Map<String, ?> bindings, long limit, long offset)
+      throws RepositoryException {
+    long start = System.nanoTime();
+    Query query = PreparedQueries.bind(
+        QuerySessions.getQueryManager(workspace).createQuery(statement, language),
+        QuerySessions.getSession(workspace).getValueFactory(), bindings, limit, offset);
+
+    return QueryProfiler.profile(query, workspace, bindings, System.nanoTime() - start);
+  }
+
+  /**
+   * Refer to {@link #getPreparedQuery(String, String, String, Map, long, long)}.
+   * Uses JCR-SQL2 as default query language.
+   *
+   * @param statement The JCR-SQL2 statement with bind variables that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param bindings The values of the bind variables, by name and without the "$"
+   * @return a Query with the given parameters
+   * @throws RepositoryException If the Query cannot be created or a bind variable has no value
+   */
+  public static Query getPreparedQuery(String statement, String workspace, Map<String, ?> bindings)
+      throws RepositoryException {
+    return getPreparedQuery(statement, workspace, Query.JCR_SQL2, bindings, -1, 0);
+  }
+
+  /**
+   * Gets a limited collection of nodes starting at the given offset with a statement with bind
+   * variables. Refer to {@link #getPreparedQuery(String, String, String, Map, long, long)}.
+   *
+   * @param statement The JCR-SQL2 statement with bind variables that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param bindings The values of the bind variables, by name and without the "$"
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The offset of the query
+   * @return A collection of nodes
+   */
+  public static Collection<Node> getPreparedNodes(String statement, String workspace,
+                                                  Map<String, ?> bindings, long limit,
+                                                  long offset) {
+    try {
+      Query query = getPreparedQuery(statement, workspace, Query.JCR_SQL2, bindings, limit,
+          offset);
+
+      return NodeUtils.getCollectionFromNodeIterator(query.execute().getNodes());
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "] and bindings "
+          + bindings + ": " + statement, e);
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Refer to {@link #getPreparedNodes(String, String, Map, long, long)}.
+   *
+   * @param statement The JCR-SQL2 statement with bind variables that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param bindings The values of the bind variables, by name and without the "$"
+   * @return A collection of nodes
+   */
+  public static Collection<Node> getPreparedNodes(String statement, String workspace,
+                                                  Map<String, ?> bindings) {
+    return getPreparedNodes(statement, workspace, bindings, -1, 0);
+  }
+
   /**
    * Performs a query and retrieves the first available Node. It basically uses
    * {@link #search(String, String, String, String, boolean)} in combination with
@@ -195,10 +397,95 @@ public class QueryUtils extends QueryUtil {
     return getNode(statement, workspace, Query.JCR_SQL2);
   }
 
+  /**
+   * Gets a lazy Stream of nodes, optionally filtered with a custom filter, skipping the first
+   * "offset" nodes and returning at most "limit" of them. The nodes are pulled from the query
+   * result one by one as the Stream is consumed, so only the ones needed are ever loaded. Without a
+   * filter, the limit and the offset are set on the query itself. With a filter, they apply to the
+   * nodes that pass it. The Stream should be closed, ideally with a try-with-resources, if it isn't
+   * fully consumed.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The amount of nodes to skip
+   * @param filter A custom node filter. It works the same way as a Collection.removeIf.
+   * @return A lazy Stream of nodes
+   */
+  public static Stream<Node> streamNodes(String statement, String workspace, String language,
+                                         long limit, long offset,
+                                         @Nullable Predicate<Node> filter) {
+    try {
+      if (filter == null) {
+        return NodeUtils.stream(getQuery(statement, workspace, language, limit, offset).execute()
+            .getNodes());
+      }
+
+      Stream<Node> nodes = NodeUtils.stream(getQuery(statement, workspace, language).execute()
+          .getNodes()).filter(filter.negate());
+
+      if (offset > 0) {
+        nodes = nodes.skip(offset);
+      }
+
+      return limit > 0 ? nodes.limit(limit) : nodes;
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "]: " + statement,
+          e);
+    }
+
+    return Stream.empty();
+  }
+
+  /**
+   * Refer to {@link #streamNodes(String, String, String, long, long, Predicate)}.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param filter A custom node filter. It works the same way as a Collection.removeIf.
+   * @return A lazy Stream of nodes
+   */
+  public static Stream<Node> streamNodes(String statement, String workspace, String language,
+                                         @Nullable Predicate<Node> filter) {
+    return streamNodes(statement, workspace, language, -1, 0, filter);
+  }
+
+  /**
+   * Refer to {@link #streamNodes(String, String, String, long, long, Predicate)}.
+   * Uses JCR-SQL2 as default query language.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The amount of nodes to skip
+   * @return A lazy Stream of nodes
+   */
+  public static Stream<Node> streamNodes(String statement, String workspace, long limit,
+                                         long offset) {
+    return streamNodes(statement, workspace, Query.JCR_SQL2, limit, offset, null);
+  }
+
+  /**
+   * Refer to {@link #streamNodes(String, String, String, long, long, Predicate)}.
+   * Uses JCR-SQL2 as default query language.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A lazy Stream of nodes
+   */
+  public static Stream<Node> streamNodes(String statement, String workspace) {
+    return streamNodes(statement, workspace, -1, 0);
+  }
+
   /**
    * Gets a limited collection of nodes starting at the given offset, optionally filtered with a
-   * custom filter. Note that, if a custom filter is selected, the query will retrieve ALL nodes and
-   * then it will apply the filter and the limit.
+   * custom filter. Note that, if a custom filter is selected, the offset and the limit apply to the
+   * nodes that pass it: the query is executed once, without limit, and its nodes are filtered as
+   * they are read, which the repository does lazily, until the page is full or there are no more
+   * nodes. Identical queries without a filter that run at the same time are coalesced. Refer to
+   * {@link QueryCoalescer}.
    *
    * @param statement The SQL/xpath statement that will be executed
    * @param workspace The desired workspace. Ex: "website"
@@ -212,36 +499,163 @@ public class QueryUtils extends QueryUtil {
                                                    String language, long limit, long offset,
                                                    Predicate<Node> filter) {
     try {
-      Query query = getQuery(statement, workspace, language, limit, offset);
+      if (filter == null) {
+        return QueryCoalescer.getInstance().getNodes(new QueryResultCache.Key(
+            QueryResultCache.Kind.NODES, statement, workspace, language, limit, offset),
+            QuerySessions.getSession(workspace), () -> NodeUtils.getCollectionFromNodeIterator(
+                getQuery(statement, workspace, language, limit, offset).execute().getNodes()));
+      }
+
+      return getFilteredPage(statement, workspace, language, limit, offset, filter);
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "]: " + statement,
+          e);
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Reads the result of the query, skipping the nodes removed by the filter and the first "offset"
+   * of the rest, until "limit" nodes are collected. A single iterator is read, so each node is
+   * read at most once.
+   */
+  private static List<Node> getFilteredPage(String statement, String workspace, String language,
+                                            long limit, long offset, Predicate<Node> filter)
+      throws RepositoryException {
+    List<Node> page = new ArrayList<>();
+    NodeIterator nodes = getQuery(statement, workspace, language).execute().getNodes();
+    long skipped = 0;
+
+    while (nodes.hasNext() && (limit <= 0 || page.size() < limit)) {
+      Node node = nodes.nextNode();
 
-      if (query == null) {
-        return Collections.emptyList();
+      if (filter.test(node)) {
+        continue;
       }
 
-      if (filter != null) {
-        query.setLimit(-1);
+      if (skipped < offset) {
+        skipped++;
+        continue;
       }
 
-      Collection<Node> nodes = NodeUtils.getCollectionFromNodeIterator(query.execute().getNodes());
+      page.add(node);
+    }
 
-      if (filter == null) {
-        return nodes;
+    return page;
+  }
+
+  /**
+   * Gets a page of nodes with keyset pagination: instead of skipping the nodes of the previous
+   * pages, like an offset does, the query only matches the nodes sorted after the last one of the
+   * previous page, so deep pages are as fast as the first one. It will produce something like:
+   * <pre>{@code
+   *   SELECT * FROM [mgnl:page] WHERE [date] IS NOT NULL AND (condition)
+   *     AND ([date] > $keysetValue OR ([date] = $keysetValue AND [jcr:uuid] > $keysetId))
+   *     ORDER BY [date] ASC, [jcr:uuid] ASC
+   * }</pre>
+   * <p>
+   * The identifier breaks the ties between nodes with the same sort value, so the nodes must be
+   * referenceable, like the ones of Magnolia's node types are. Nodes without the sort property are
+   * never returned.
+   * </p>
+   *
+   * @param nodeType The desired node type to be selected
+   * @param condition An optional condition
+   * @param orderBy The property to sort the nodes by
+   * @param descending If the nodes must be sorted in descending order
+   * @param token Optional. The {@link KeysetPage#getNextToken()} of the previous page, or null for
+   *              the first page
+   * @param limit The maximum amount of nodes of the page
+   * @param workspace The workspace where it should perform the query
+   * @return The page, which is empty if the query fails
+   * @throws IllegalArgumentException If the token is not valid, the limit is not positive or the
+   *                                  sort property of the nodes is multi-valued.
+   */
+  public static KeysetPage getNodesPage(String nodeType, @Nullable String condition,
+                                        String orderBy, boolean descending,
+                                        @Nullable String token, int limit, String workspace) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("The limit of a page must be positive: " + limit);
+    }
+
+    KeysetPage.Cursor cursor = StringUtils.isEmpty(token) ? null : KeysetPage.fromToken(token);
+    String statement = getPageStatement(nodeType, condition, orderBy, descending, cursor != null);
+
+    try {
+      Map<String, Object> bindings = new HashMap<>();
+
+      if (cursor != null) {
+        bindings.put("keysetValue", toValue(cursor, token, workspace));
+        bindings.put("keysetId", cursor.getIdentifier());
       }
 
-      nodes.removeIf(filter);
+      // One more node tells if there is a next page
+      Query query = getPreparedQuery(statement, workspace, Query.JCR_SQL2, bindings, limit + 1,
+          0);
+      List<Node> nodes = new ArrayList<>(
+          NodeUtils.getCollectionFromNodeIterator(query.execute().getNodes()));
 
-      return limitNodes(nodes, limit);
+      // Fails on the first page already, instead of once a token is needed
+      if (!nodes.isEmpty()) {
+        KeysetPage.getSortProperty(nodes.get(0), orderBy);
+      }
+
+      if (nodes.size() <= limit) {
+        return new KeysetPage(nodes, null);
+      }
+
+      nodes = new ArrayList<>(nodes.subList(0, limit));
+
+      return new KeysetPage(nodes, KeysetPage.toToken(nodes.get(limit - 1), orderBy));
     } catch (RepositoryException e) {
-      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "]: " + statement,
-          e);
+      log.error("Could not retrieve page on workspace [" + workspace + "]: " + statement, e);
     }
 
-    return Collections.emptyList();
+    return new KeysetPage(Collections.emptyList(), null);
+  }
+
+  /**
+   * Builds the statement of a page of {@link #getNodesPage}, which matches only the nodes sorted
+   * after the cursor, if any.
+   */
+  static String getPageStatement(String nodeType, @Nullable String condition, String orderBy,
+                                 boolean descending, boolean afterCursor) {
+    StringBuilder statement = new StringBuilder("SELECT * FROM [").append(nodeType)
+        .append("] WHERE [").append(orderBy).append("] IS NOT NULL");
+
+    if (StringUtils.isNotEmpty(condition)) {
+      statement.append(" AND (").append(condition).append(")");
+    }
+
+    if (afterCursor) {
+      String operator = descending ? " < " : " > ";
+
+      statement.append(" AND ([").append(orderBy).append("]").append(operator)
+          .append("$keysetValue OR ([").append(orderBy).append("] = $keysetValue AND ")
+          .append("[jcr:uuid]").append(operator).append("$keysetId))");
+    }
+
+    String direction = descending ? " DESC" : " ASC";
+
+    return statement.append(" ORDER BY [").append(orderBy).append("]").append(direction)
+        .append(", [jcr:uuid]").append(direction).toString();
+  }
+
+  private static Value toValue(KeysetPage.Cursor cursor, String token, String workspace)
+      throws RepositoryException {
+    try {
+      return QuerySessions.getSession(workspace).getValueFactory()
+          .createValue(cursor.getValue(), cursor.getType());
+    } catch (ValueFormatException e) {
+      throw new IllegalArgumentException("Invalid page token: " + token, e);
+    }
   }
 
   /**
    * Gets a collection of nodes, optionally filtered with a custom filter. To support queries with
-   * INNER JOIN, a selector must be specified.
+   * INNER JOIN, a selector must be specified. Identical queries without a selector that run at the
+   * same time are coalesced. Refer to {@link QueryCoalescer}.
    *
    * @param statement The SQL/xpath statement that will be executed
    * @param workspace The desired workspace. Ex: "website"
@@ -253,11 +667,13 @@ public class QueryUtils extends QueryUtil {
   public static Collection<Node> getNodes(String statement, String workspace, String language,
                                           String selectorName, Predicate<Node> filter) {
     try {
-      Collection<Node> nodes = NodeUtils.getCollectionFromNodeIterator(
-          StringUtils.isEmpty(selectorName)
-              ? search(statement, workspace, language)
-              : search(statement, workspace, language, selectorName, true)
-      );
+      Collection<Node> nodes = StringUtils.isEmpty(selectorName)
+          ? QueryCoalescer.getInstance().getNodes(new QueryResultCache.Key(
+              QueryResultCache.Kind.SEARCH, statement, workspace, language, -1, 0),
+              QuerySessions.getSession(workspace), () -> NodeUtils.getCollectionFromNodeIterator(
+                  search(workspace, statement, language, -1, 0)))
+          : NodeUtils.getCollectionFromNodeIterator(
+              search(workspace, statement, language, selectorName, true, -1, 0));
 
       if (filter != null) {
         nodes.removeIf(filter);
@@ -336,7 +752,9 @@ public class QueryUtils extends QueryUtil {
   /**
    * Gets the count of all the nodes for a given workspace and statement.
    * You can optionally pass it a filter to remove nodes that meet a certain condition. It takes a
-   * Predicate, so it works the same way as a Collection.removeIf.
+   * Predicate, so it works the same way as a Collection.removeIf. Without a filter the nodes are
+   * never loaded, refer to {@link #countRows(QueryResult)}, and with a filter they are counted as
+   * they are read.
    *
    * @param statement The SQL/xpath statement that will be executed
    * @param workspace The workspace where it should perform the query
@@ -350,14 +768,13 @@ public class QueryUtils extends QueryUtil {
       Query query = getQuery(statement, workspace, language);
 
       if (filter == null) {
-        return query.execute().getRows().getSize();
+        return countRows(query.execute());
       }
 
-      Collection<Node> nodes = NodeUtils.getCollectionFromNodeIterator(query.execute().getNodes());
-
-      nodes.removeIf(filter);
-
-      return nodes.size();
+      // Count as the nodes are read, without collecting them
+      try (Stream<Node> nodes = NodeUtils.stream(query.execute().getNodes())) {
+        return nodes.filter(filter.negate()).count();
+      }
     } catch (RepositoryException e) {
       log.error("Could not retrieve total on workspace [" + workspace + "]: " + statement, e);
     }
@@ -402,6 +819,278 @@ public class QueryUtils extends QueryUtil {
     return getNodesCount(statement, workspace, Query.JCR_SQL2);
   }
 
+  /**
+   * Gets the columns of every row of the query result, by column name, without loading the nodes.
+   * Only the columns selected by the statement are read, like
+   * {@code SELECT [page].[title] AS [title], [page].[jcr:path] AS [path] FROM [mgnl:page] AS page},
+   * which the repository can serve from its indexes. Refer to {@link QueryBuilder#column(String)}.
+   * Values are converted with {@link PropertyUtils#getValue(javax.jcr.Value)}.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param limit The maximum amount of rows to retrieve
+   * @param offset The offset of the query
+   * @return A list of rows, each of them a map of values by column name
+   */
+  public static List<Map<String, Object>> getRows(String statement, String workspace,
+                                                  String language, long limit, long offset) {
+    try {
+      return getRows(getQuery(statement, workspace, language, limit, offset).execute());
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve rows with SQL on workspace [" + workspace + "]: " + statement,
+          e);
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Refer to {@link #getRows(String, String, String, long, long)}.
+   * Uses JCR-SQL2 as default query language.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A list of rows, each of them a map of values by column name
+   */
+  public static List<Map<String, Object>> getRows(String statement, String workspace) {
+    return getRows(statement, workspace, Query.JCR_SQL2, -1, 0);
+  }
+
+  /**
+   * Reads the columns of every row of the query result, by column name, without loading the nodes.
+   * Refer to {@link #getRows(String, String, String, long, long)}.
+   *
+   * @param result The result of a query
+   * @return A list of rows, each of them a map of values by column name
+   * @throws RepositoryException If the rows cannot be read
+   */
+  public static List<Map<String, Object>> getRows(QueryResult result)
+      throws RepositoryException {
+    String[] columnNames = result.getColumnNames();
+    RowIterator rows = result.getRows();
+    List<Map<String, Object>> values = new ArrayList<>();
+
+    while (rows.hasNext()) {
+      Value[] rowValues = rows.nextRow().getValues();
+      Map<String, Object> row = new LinkedHashMap<>();
+
+      for (int i = 0; i < columnNames.length; i++) {
+        row.put(columnNames[i], PropertyUtils.getValue(i < rowValues.length ? rowValues[i] : null));
+      }
+
+      values.add(row);
+    }
+
+    return values;
+  }
+
+  /**
+   * Counts the rows of a query result without loading their nodes. The size reported by the
+   * result is used if it is known, which depends on the repository settings, otherwise the rows
+   * are iterated.
+   *
+   * @param result The result of a query
+   * @return The count
+   * @throws RepositoryException If the rows cannot be read
+   */
+  public static long countRows(QueryResult result) throws RepositoryException {
+    RowIterator rows = result.getRows();
+    long size = rows.getSize();
+
+    if (size >= 0) {
+      return size;
+    }
+
+    long count = 0;
+
+    while (rows.hasNext()) {
+      rows.nextRow();
+      count++;
+    }
+
+    return count;
+  }
+
+  /**
+   * Refer to {@link #getNodes(String, String, String, Predicate)}. The identifiers of the resulting
+   * Nodes are taken from the shared {@link QueryResultCache} if the workspace hasn't changed since
+   * the query was executed. The filter is applied to the cached result.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param filter A custom node filter
+   * @return A collection of nodes
+   */
+  public static Collection<Node> getCachedNodes(String statement, String workspace,
+                                                String language, Predicate<Node> filter) {
+    return getCachedNodesPaginated(statement, workspace, language, -1, 0, filter);
+  }
+
+  /**
+   * Refer to {@link #getCachedNodes(String, String, String, Predicate)}.
+   * Uses JCR-SQL2 as default query language.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @return A collection of nodes
+   */
+  public static Collection<Node> getCachedNodes(String statement, String workspace) {
+    return getCachedNodes(statement, workspace, Query.JCR_SQL2, null);
+  }
+
+  /**
+   * Refer to {@link #getNodesPaginated(String, String, String, long, long, Predicate)}. The
+   * identifiers of the resulting Nodes are taken from the shared {@link QueryResultCache} if the
+   * workspace hasn't changed since the query was executed. The filter is applied to the cached
+   * result, resolving the Nodes only until the page is full.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The desired workspace. Ex: "website"
+   * @param language The language that will be used. Ex: "JCR-SQL2" {@link javax.jcr.query.Query}
+   * @param limit The maximum amount of nodes to retrieve
+   * @param offset The offset of the query
+   * @param filter A custom node filter
+   * @return A collection of nodes
+   */
+  public static Collection<Node> getCachedNodesPaginated(String statement, String workspace,
+                                                         String language, long limit,
+                                                         long offset, Predicate<Node> filter) {
+    try {
+      if (filter == null) {
+        return resolveNodes(QueryResultCache.getInstance().getIdentifiers(statement, workspace,
+            language, limit, offset), workspace);
+      }
+
+      Session session = QuerySessions.getSession(workspace);
+      List<Node> page = new ArrayList<>();
+      long skipped = 0;
+
+      for (String identifier : QueryResultCache.getInstance().getIdentifiers(statement, workspace,
+          language, -1, 0)) {
+        Node node = resolveNode(session, identifier);
+
+        if (node == null || filter.test(node)) {
+          continue;
+        }
+
+        if (skipped < offset) {
+          skipped++;
+          continue;
+        }
+
+        page.add(node);
+
+        if (limit > 0 && page.size() >= limit) {
+          break;
+        }
+      }
+
+      return page;
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve nodes with SQL on workspace [" + workspace + "]: " + statement,
+          e);
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Refer to {@link #getNodesCount(String, String, String, Predicate)}. The count, or the
+   * identifiers of the Nodes to filter, are taken from the shared {@link QueryResultCache} if the
+   * workspace hasn't changed since the query was executed.
+   *
+   * @param statement The SQL/xpath statement that will be executed
+   * @param workspace The workspace where it should perform the query
+   * @param language The query language to use
+   * @param filter An optional custom filter to remove Nodes.
+   * @return The count
+   */
+  public static long getCachedNodesCount(String statement, String workspace, String language,
+                                         Predicate<Node> filter) {
+    try {
+      if (filter == null) {
+        return QueryResultCache.getInstance().getCount(statement, workspace, language);
+      }
+
+      Session session = QuerySessions.getSession(workspace);
+      long count = 0;
+
+      for (String identifier : QueryResultCache.getInstance().getIdentifiers(statement, workspace,
+          language, -1, 0)) {
+        Node node = resolveNode(session, identifier);
+
+        if (node != null && !filter.test(node)) {
+          count++;
+        }
+      }
+
+      return count;
+    } catch (RepositoryException e) {
+      log.error("Could not retrieve total on workspace [" + workspace + "]: " + statement, e);
+    }
+
+    return 0L;
+  }
+
+  /**
+   * Refer to {@link #getCachedNodesCount(String, String, String, Predicate)}.
+   * Uses JCR-SQL2 as default query language.
+   *
+   * @param statement The JCR-SQL2 statement that will be executed
+   * @param workspace The workspace where it should perform the query
+   * @return The count
+   */
+  public static long getCachedNodesCount(String statement, String workspace) {
+    return getCachedNodesCount(statement, workspace, Query.JCR_SQL2, null);
+  }
+
+  /**
+   * Gets the Nodes with the given identifiers, in the same order, with the session of the
+   * workspace, refer to {@link QuerySessions#getSession(String)}. Identifiers of Nodes that don't
+   * exist anymore, or that cannot be read by the session, are skipped.
+   *
+   * @param identifiers The identifiers of the Nodes
+   * @param workspace The workspace of the Nodes
+   * @return A mutable collection of nodes
+   * @throws RepositoryException If the workspace cannot be accessed
+   */
+  public static Collection<Node> resolveNodes(Collection<String> identifiers, String workspace)
+      throws RepositoryException {
+    return resolveNodes(identifiers, QuerySessions.getSession(workspace));
+  }
+
+  /**
+   * Refer to {@link #resolveNodes(Collection, String)}.
+   */
+  static Collection<Node> resolveNodes(Collection<String> identifiers, Session session)
+      throws RepositoryException {
+    List<Node> nodes = new ArrayList<>(identifiers.size());
+
+    for (String identifier : identifiers) {
+      Node node = resolveNode(session, identifier);
+
+      if (node != null) {
+        nodes.add(node);
+      }
+    }
+
+    return nodes;
+  }
+
+  @Nullable
+  private static Node resolveNode(Session session, String identifier) throws RepositoryException {
+    try {
+      return session.getNodeByIdentifier(identifier);
+    } catch (ItemNotFoundException e) {
+      log.debug("Node [" + identifier + "] not found on workspace ["
+          + session.getWorkspace().getName() + "]");
+    }
+
+    return null;
+  }
+
   /**
    * Create a JCR-SQL2 query condition to search on fields.
    * It will produce something like:
@@ -410,6 +1099,10 @@ public class QueryUtils extends QueryUtil {
    *     // => " LOWER(book.title_en) LIKE '%%cinderella%%' OR LOWER(book.title_es) LIKE
    *     // => '%%cinderella%%' "
    * }</pre>
+   * <p>
+   * Leading wildcards cannot use an index, so the repository is traversed. On large workspaces,
+   * use {@link SearchMode#CONTAINS} instead.
+   * </p>
    *
    * @param clazz The class of the JavaBean to build the query for
    * @param searchTerm The search term
@@ -417,55 +1110,118 @@ public class QueryUtils extends QueryUtil {
    * @return The condition of the query
    */
   public static String setSearchableFields(Class<?> clazz, String searchTerm, String as) {
-    I18nContentSupport i18nContentSupport = Components.getComponent(I18nContentSupport.class);
-    String currentLang = LangUtils.getLanguage();
-    Constructor<?> constructor = ReflectionUtils.getEmptyConstructor(clazz);
-    StringBuilder addedQuerySB = new StringBuilder();
+    return setSearchableFields(clazz, searchTerm, as, SearchMode.LIKE);
+  }
 
-    try {
-      if (constructor != null)  {
-        Object object = constructor.newInstance();
-        List<Field> fieldList = ReflectionUtils.getAllPublicAndProtectedFields(object.getClass());
-        int i = 0;
-
-        for (Field field : fieldList) {
-          String fieldName = field.getName();
-
-          // Check if is a translatable field
-          if (field.getDeclaredAnnotation(Translatable.class) != null) {
-            String defaultLang = MgnlContext.isWebContext()
-                ? i18nContentSupport.getFallbackLocale().getLanguage()
-                : LangUtils.DEFAULT_LANG;
-
-            fieldName += !currentLang.equals(defaultLang) ? "_" + currentLang : "";
-          }
-
-          // Prevent children to destroy the query
-          if (field.getDeclaredAnnotation(Children.class) == null) {
-            addedQuerySB.append(" LOWER(")
-                .append(as)
-                .append(".")
-                .append(fieldName)
-                .append(") LIKE '%%")
-                .append(StringUtils.replace(searchTerm.toLowerCase(), "'", "''"))
-                .append("%%' ");
-
-            // Append 'OR' unless it's the last element
-            if (i != fieldList.size() - 1) {
-              addedQuerySB.append(" OR ");
-            }
-          }
-
-          i++;
-        }
+  /**
+   * Create a JCR-SQL2 query condition to search on the public and protected fields of a JavaBean,
+   * using the translated property of the {@link Translatable} fields for the current language and
+   * skipping the {@link Children} ones. The fields are read only once per class and language.
+   * With {@link SearchMode#CONTAINS} it will produce something like:
+   * <pre>{@code
+   *     setSearchableFields(Book.class, "Cinderella", "book", SearchMode.CONTAINS);
+   *     // => " CONTAINS(book.title_es, 'Cinderella') OR CONTAINS(book.author, 'Cinderella') "
+   * }</pre>
+   *
+   * @param clazz The class of the JavaBean to build the query for
+   * @param searchTerm The search term
+   * @param as The variable name of the node
+   * @param mode How the fields are matched
+   * @return The condition of the query, or an empty String if there is nothing to search for
+   */
+  public static String setSearchableFields(Class<?> clazz, String searchTerm, String as,
+                                           SearchMode mode) {
+    if (mode == SearchMode.CONTAINS && StringUtils.isBlank(searchTerm)) {
+      return "";
+    }
+
+    return getSearchableFields(clazz).stream()
+        .map(field -> getSearchConstraint(as + "." + field, searchTerm, mode))
+        .collect(Collectors.joining(" OR "));
+  }
+
+  private static String getSearchConstraint(String property, String searchTerm,
+                                            SearchMode mode) {
+    switch (mode) {
+      case CONTAINS:
+        return " CONTAINS(" + property + ", " + quote(escapeFullText(searchTerm)) + ") ";
+      case NORMALIZED:
+        return " " + NormalizedPropertyIndexer.getNormalizedName(property) + " LIKE "
+            + quote("%" + NormalizedPropertyIndexer.normalize(searchTerm) + "%") + " ";
+      default:
+        return " LOWER(" + property + ") LIKE '%%"
+            + StringUtils.replace(searchTerm.toLowerCase(), "'", "''") + "%%' ";
+    }
+  }
+
+  /**
+   * Builds a JCR-SQL2 statement that searches for the given term on the fields of a JavaBean.
+   * Refer to {@link #setSearchableFields(Class, String, String, SearchMode)}. Usage example:
+   * <pre>{@code
+   *   buildSearchStatement("mgnl:page", Book.class, "Cinderella", SearchMode.CONTAINS, true)
+   *   // "SELECT * FROM [mgnl:page] AS [node] WHERE ( CONTAINS(node.title, 'Cinderella') ... )
+   *   //  ORDER BY SCORE([node]) DESC"
+   * }</pre>
+   *
+   * @param nodeType The desired node type to be selected
+   * @param clazz The class of the JavaBean to build the query for
+   * @param searchTerm The search term
+   * @param mode How the fields are matched
+   * @param orderByScore Whether the most relevant nodes come first. Only for
+   *                     {@link SearchMode#CONTAINS}.
+   * @return The query statement
+   */
+  public static String buildSearchStatement(String nodeType, Class<?> clazz, String searchTerm,
+                                            SearchMode mode, boolean orderByScore) {
+    StringBuilder statement = new StringBuilder("SELECT * FROM [" + nodeType + "] AS [node]");
+    String condition = setSearchableFields(clazz, searchTerm, "node", mode);
+
+    if (!condition.isEmpty()) {
+      statement.append(" WHERE (").append(condition).append(")");
+    }
+
+    if (orderByScore && mode == SearchMode.CONTAINS) {
+      statement.append(" ORDER BY SCORE([node]) DESC");
+    }
+
+    return statement.toString();
+  }
+
+  /**
+   * Escapes the characters of a term that have a meaning in a full-text expression, so it's
+   * searched as it is.
+   *
+   * @param term The search term
+   * @return The escaped term
+   */
+  public static String escapeFullText(String term) {
+    StringBuilder escaped = new StringBuilder(term.length());
+
+    for (char c : term.toCharArray()) {
+      if ("\\\"-!()[]{}^~*?:+|&".indexOf(c) >= 0) {
+        escaped.append('\\');
       }
-    } catch (InvocationTargetException | IllegalAccessException e) {
-      log.error(e.getMessage(), e);
-    } catch (InstantiationException e) {
-      log.error("Cannot instantiate object", e);
+
+      escaped.append(c);
     }
 
-    return addedQuerySB.toString();
+    return escaped.toString();
+  }
+
+  private static List<String> getSearchableFields(Class<?> clazz) {
+    String lang = LangUtils.getLanguage();
+    String suffix = lang.equals(LangUtils.getDefaultLanguage()) ? "" : "_" + lang;
+
+    return SEARCHABLE_FIELDS.get(clazz).computeIfAbsent(suffix, s ->
+        ReflectionUtils.getAllPublicAndProtectedFields(clazz).stream()
+            // Static fields aren't properties, and children would destroy the query
+            .filter(field -> !Modifier.isStatic(field.getModifiers())
+                && field.getDeclaredAnnotation(Children.class) == null)
+            .map(field -> field.getDeclaredAnnotation(Translatable.class) != null
+                ? field.getName() + s
+                : field.getName())
+            .collect(Collectors.collectingAndThen(Collectors.toList(),
+                Collections::unmodifiableList)));
   }
 
   /**
@@ -487,6 +1243,8 @@ public class QueryUtils extends QueryUtil {
    * Builds a simple JCR-SQL2 SELECT query. Usage example:
    * buildSqlStatement("mgnl:page", "AND", "title = 'Home'", "lang = 'es'")
    * // "SELECT * FROM [mgnl:page] WHERE title = 'Home' AND lang = 'es'"
+   * Empty conditions are skipped. For queries with values, joins or sorting, use a
+   * {@link QueryBuilder} instead.
    *
    * @param nodeType The desired node type to be selected
    * @param conditionType An optional condition. Must be "AND" or "OR".
@@ -501,24 +1259,17 @@ public class QueryUtils extends QueryUtil {
       return statement.toString();
     }
 
-    statement.append(" WHERE ");
-
-    int index = 0;
-
-    for (String condition: conditions) {
-      if (StringUtils.isNotEmpty(condition)) {
-        statement.append(" (").append(condition).append(") ");
-      }
-
-      index++;
-
-      if (index != conditions.length) {
-        statement.append(conditionType);
-      }
+    // Empty conditions are skipped, so they don't leave a dangling "AND" or "OR"
+    String joinedConditions = Arrays.stream(conditions)
+        .filter(StringUtils::isNotEmpty)
+        .map(condition -> " (" + condition + ") ")
+        .collect(Collectors.joining(StringUtils.defaultIfEmpty(conditionType, "AND")));
 
+    if (joinedConditions.isEmpty()) {
+      return statement.toString();
     }
 
-    return statement.toString();
+    return statement.append(" WHERE ").append(joinedConditions).toString();
   }
 
   /**
@@ -671,4 +1422,29 @@ public class QueryUtils extends QueryUtil {
       throws RepositoryException {
     return search(statement, workspace, Query.JCR_SQL2, limit, 0);
   }
+
+  /**
+   * How {@link #setSearchableFields(Class, String, String, SearchMode)} matches the fields.
+   */
+  public enum SearchMode {
+    /**
+     * A case insensitive {@code LIKE '%term%'} on each field. It cannot use an index.
+     */
+    LIKE,
+
+    /**
+     * A full-text {@code CONTAINS} constraint on each field, which can use a full-text index and
+     * be ordered by relevance with {@code ORDER BY SCORE()}.
+     */
+    CONTAINS,
+
+    /**
+     * A {@code LIKE '%term%'} on the normalized copy of each field, kept by a
+     * {@link NormalizedPropertyIndexer}, so accents and case are ignored without evaluating
+     * {@code LOWER()} on every node. Fields without a normalized copy never match. Like
+     * {@link #LIKE}, the leading wildcard cannot use an index, so the other constraints of the
+     * query should select few nodes.
+     */
+    NORMALIZED
+  }
 }
@@ -2,6 +2,7 @@ package com.nachoverdon.mongolia.utils;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -11,6 +12,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 
 @Slf4j
 public class ReflectionUtils {
@@ -36,6 +38,44 @@ public class ReflectionUtils {
     return result;
   }
 
+  /**
+   * Gets all the fields, whatever their visibility, from the given class and its superclasses.
+   *
+   * @param clazz The class to read fields from
+   * @return A list for Fields
+   */
+  public static List<Field> getAllFields(@Nullable Class<?> clazz) {
+    if (clazz == null) {
+      return Collections.emptyList();
+    }
+
+    List<Field> result = new ArrayList<>(getAllFields(clazz.getSuperclass()));
+
+    result.addAll(Arrays.asList(clazz.getDeclaredFields()));
+
+    return result;
+  }
+
+  /**
+   * Gets the public setter method of the given field, like "setTitle" for a "title" field. The
+   * setter must take a single parameter of the same type as the field.
+   *
+   * @param clazz The class to get the setter from
+   * @param field The field that the setter sets
+   * @return The setter method or null
+   */
+  @Nullable
+  public static Method getSetter(Class<?> clazz, Field field) {
+    try {
+      Method setter = clazz.getMethod("set" + StringUtils.capitalize(field.getName()),
+          field.getType());
+
+      return Modifier.isStatic(setter.getModifiers()) ? null : setter;
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
   /**
    * Gets a constructor that takes no parameters from the given class.
    *
@@ -0,0 +1,88 @@
+package com.nachoverdon.mongolia;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * JCR observation events to feed the listeners under test. Usage example:
+ * <pre>{@code
+ *   listener.onEvent(FakeEvents.of(FakeEvents.event(Event.PROPERTY_CHANGED, "/book/title"),
+ *       FakeEvents.moved("/archive/book", "/book")));
+ * }</pre>
+ */
+public final class FakeEvents {
+
+  private FakeEvents() {
+  }
+
+  /**
+   * Creates a batch of events.
+   *
+   * @param events The events of the batch
+   * @return An iterator over the events
+   */
+  public static EventIterator of(Event... events) {
+    Iterator<Event> iterator = Arrays.asList(events).iterator();
+
+    return proxy(EventIterator.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "hasNext":
+          return iterator.hasNext();
+        case "next":
+        case "nextEvent":
+          return iterator.next();
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  /**
+   * Creates an event.
+   *
+   * @param type The type of the event. Ex: {@link Event#NODE_ADDED}
+   * @param path The path of the event
+   * @return The event
+   */
+  public static Event event(int type, String path) {
+    return event(type, path, null);
+  }
+
+  /**
+   * Creates the event of a node moved from another path.
+   *
+   * @param path The new path of the node
+   * @param source The previous path of the node
+   * @return The event
+   */
+  public static Event moved(String path, String source) {
+    return event(Event.NODE_MOVED, path, source);
+  }
+
+  private static Event event(int type, String path, String source) {
+    return proxy(Event.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getType":
+          return type;
+        case "getPath":
+          return path;
+        case "getInfo":
+          return source == null ? Collections.emptyMap()
+              : Collections.singletonMap("srcAbsPath", source);
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(FakeEvents.class.getClassLoader(), new Class<?>[] {type},
+        handler);
+  }
+}
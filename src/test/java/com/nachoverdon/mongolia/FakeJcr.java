@@ -0,0 +1,530 @@
+package com.nachoverdon.mongolia;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.Session;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Value;
+import javax.jcr.ValueFormatException;
+import javax.jcr.Workspace;
+
+/**
+ * An in-memory workspace whose Nodes, Properties and Session are proxies of the JCR interfaces,
+ * implementing only what the tests need. Any other method throws an
+ * {@link UnsupportedOperationException}, except for queries, which fail with an
+ * {@link UnsupportedRepositoryOperationException} like on repositories without a query engine.
+ * Usage example:
+ * <pre>{@code
+ *   FakeJcr jcr = new FakeJcr("website");
+ *
+ *   jcr.getRoot().addNode("book").setProperty("title", "Dune").setProperty("pages", 412L);
+ *
+ *   Node node = jcr.getNode("/book");
+ * }</pre>
+ */
+public final class FakeJcr {
+
+  private final String workspace;
+  private final String userId;
+  private final Map<String, FakeNode> nodes = new LinkedHashMap<>();
+  private final FakeNode root;
+  private final Session session;
+  private boolean live = true;
+  private int queries;
+
+  /**
+   * Creates an empty workspace, read by the "admin" user.
+   *
+   * @param workspace The name of the workspace. Ex: "website"
+   */
+  public FakeJcr(String workspace) {
+    this(workspace, "admin");
+  }
+
+  /**
+   * Creates an empty workspace.
+   *
+   * @param workspace The name of the workspace. Ex: "website"
+   * @param userId The user of its session
+   */
+  public FakeJcr(String workspace, String userId) {
+    this.workspace = workspace;
+    this.userId = userId;
+    this.root = new FakeNode(null, "");
+    this.session = proxy(Session.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getUserID":
+          return this.userId;
+        case "isLive":
+          return live;
+        case "logout":
+          live = false;
+          return null;
+        case "getWorkspace":
+          return proxy(Workspace.class, (workspaceProxy, workspaceMethod, workspaceArgs) -> {
+            if ("getName".equals(workspaceMethod.getName())) {
+              return this.workspace;
+            }
+
+            if ("getQueryManager".equals(workspaceMethod.getName())) {
+              queries++;
+              throw new UnsupportedRepositoryOperationException("Queries are not supported");
+            }
+
+            return unsupported(workspaceProxy, workspaceMethod.getName(), workspaceArgs);
+          });
+        case "getNodeByIdentifier":
+          return getNodeByIdentifier((String) args[0]);
+        case "getNode":
+          return getNode((String) args[0]);
+        case "nodeExists":
+          return findNode((String) args[0]) != null;
+        case "getRootNode":
+          return root.toNode();
+        default:
+          return unsupported(proxy, method.getName(), args);
+      }
+    });
+  }
+
+  /**
+   * Gets the root node, to add nodes to the workspace.
+   *
+   * @return The root node
+   */
+  public FakeNode getRoot() {
+    return root;
+  }
+
+  /**
+   * Gets the session of the workspace.
+   *
+   * @return The session
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * Gets the amount of queries attempted on the workspace. They all fail, since queries are not
+   * supported.
+   *
+   * @return The amount of queries
+   */
+  public int getQueries() {
+    return queries;
+  }
+
+  /**
+   * Gets a node by its path.
+   *
+   * @param path The path of the node. Ex: "/book"
+   * @return The node
+   * @throws PathNotFoundException If there is no node at the path.
+   */
+  public Node getNode(String path) throws PathNotFoundException {
+    FakeNode node = findNode(path);
+
+    if (node == null) {
+      throw new PathNotFoundException(path);
+    }
+
+    return node.toNode();
+  }
+
+  /**
+   * Gets a node by its identifier.
+   *
+   * @param identifier The identifier of the node
+   * @return The node
+   * @throws ItemNotFoundException If there is no node with the identifier.
+   */
+  public Node getNodeByIdentifier(String identifier) throws ItemNotFoundException {
+    FakeNode node = nodes.get(identifier);
+
+    if (node == null) {
+      throw new ItemNotFoundException(identifier);
+    }
+
+    return node.toNode();
+  }
+
+  private FakeNode findNode(String path) {
+    FakeNode node = root;
+
+    for (String name : path.split("/")) {
+      if (!name.isEmpty()) {
+        node = node.children.get(name);
+
+        if (node == null) {
+          return null;
+        }
+      }
+    }
+
+    return node;
+  }
+
+  /**
+   * A node of the workspace and its properties.
+   */
+  public final class FakeNode {
+    private final FakeNode parent;
+    private final String name;
+    private final String identifier = UUID.randomUUID().toString();
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+    private final Map<String, FakeNode> children = new LinkedHashMap<>();
+
+    private FakeNode(FakeNode parent, String name) {
+      this.parent = parent;
+      this.name = name;
+      nodes.put(identifier, this);
+    }
+
+    /**
+     * Adds a child node, or replaces the existing one with the same name.
+     *
+     * @param childName The name of the child
+     * @return The child
+     */
+    public FakeNode addNode(String childName) {
+      FakeNode child = new FakeNode(this, childName);
+
+      children.put(childName, child);
+
+      return child;
+    }
+
+    /**
+     * Sets a property. Its JCR type is inferred from the value: String, Long or Integer, Double,
+     * BigDecimal, Boolean or Calendar. Arrays are multi-valued properties.
+     *
+     * @param propertyName The name of the property
+     * @param value The value of the property
+     * @return This node
+     */
+    public FakeNode setProperty(String propertyName, Object value) {
+      properties.put(propertyName, value);
+
+      return this;
+    }
+
+    /**
+     * Gets the identifier of the node.
+     *
+     * @return The identifier
+     */
+    public String getIdentifier() {
+      return identifier;
+    }
+
+    /**
+     * Gets the path of the node.
+     *
+     * @return The path. Ex: "/book"
+     */
+    public String getPath() {
+      if (parent == null) {
+        return "/";
+      }
+
+      return (parent.parent == null ? "" : parent.getPath()) + "/" + name;
+    }
+
+    /**
+     * Gets the node as a JCR node.
+     *
+     * @return A new proxy of the node
+     */
+    public Node toNode() {
+      return proxy(Node.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getName":
+            return name;
+          case "getPath":
+            return getPath();
+          case "getIdentifier":
+            return identifier;
+          case "getSession":
+            return session;
+          case "getDepth":
+            return getPath().split("/").length - 1;
+          case "getParent":
+            if (parent == null) {
+              throw new ItemNotFoundException("The root node has no parent");
+            }
+
+            return parent.toNode();
+          case "hasProperty":
+            return properties.containsKey((String) args[0]);
+          case "getProperty":
+            if (!properties.containsKey((String) args[0])) {
+              throw new PathNotFoundException(getPath() + "/" + args[0]);
+            }
+
+            return toProperty((Node) proxy, (String) args[0]);
+          case "getProperties":
+            return getProperties((Node) proxy, args == null ? null : args[0]);
+          case "hasNode":
+            return children.containsKey((String) args[0]);
+          case "getNode":
+            FakeNode child = children.get((String) args[0]);
+
+            if (child == null) {
+              throw new PathNotFoundException(getPath() + "/" + args[0]);
+            }
+
+            return child.toNode();
+          case "getNodes":
+            List<Object> childNodes = new ArrayList<>();
+
+            for (FakeNode node : children.values()) {
+              childNodes.add(node.toNode());
+            }
+
+            return new FakeIterator(childNodes);
+          case "equals":
+            return proxy == args[0] || args[0] instanceof Node
+                && identifier.equals(((Node) args[0]).getIdentifier());
+          case "hashCode":
+            return identifier.hashCode();
+          case "toString":
+            return getPath();
+          default:
+            return unsupported(proxy, method.getName(), args);
+        }
+      });
+    }
+
+    private PropertyIterator getProperties(Node node, Object globs) {
+      List<String> names = globs == null
+          ? new ArrayList<>(properties.keySet())
+          : globs instanceof String[] ? Arrays.asList((String[]) globs)
+          : Arrays.asList(((String) globs).split("\\|"));
+      List<Object> result = new ArrayList<>();
+
+      for (String propertyName : properties.keySet()) {
+        if (names.contains(propertyName.trim())) {
+          result.add(toProperty(node, propertyName));
+        }
+      }
+
+      return new FakeIterator(result);
+    }
+
+    private Property toProperty(Node node, String propertyName) {
+      Object value = properties.get(propertyName);
+      boolean multiple = value != null && value.getClass().isArray();
+      List<Value> values = new ArrayList<>();
+
+      if (multiple) {
+        for (Object item : (Object[]) value) {
+          values.add(toValue(item));
+        }
+      } else {
+        values.add(toValue(value));
+      }
+
+      return proxy(Property.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getName":
+            return propertyName;
+          case "getPath":
+            return getPath() + "/" + propertyName;
+          case "getParent":
+            return node;
+          case "isMultiple":
+            return multiple;
+          case "getType":
+            return values.isEmpty() ? PropertyType.STRING : values.get(0).getType();
+          case "getValues":
+            if (!multiple) {
+              throw new ValueFormatException(propertyName + " is single-valued");
+            }
+
+            return values.toArray(new Value[0]);
+          case "getValue":
+          case "getString":
+          case "getLong":
+          case "getDouble":
+          case "getDecimal":
+          case "getBoolean":
+          case "getDate":
+            if (multiple) {
+              throw new ValueFormatException(propertyName + " is multi-valued");
+            }
+
+            if ("getValue".equals(method.getName())) {
+              return values.get(0);
+            }
+
+            try {
+              return Value.class.getMethod(method.getName()).invoke(values.get(0));
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          default:
+            return unsupported(proxy, method.getName(), args);
+        }
+      });
+    }
+  }
+
+  private static Value toValue(Object value) {
+    int type;
+
+    if (value instanceof Long || value instanceof Integer) {
+      type = PropertyType.LONG;
+    } else if (value instanceof Double) {
+      type = PropertyType.DOUBLE;
+    } else if (value instanceof BigDecimal) {
+      type = PropertyType.DECIMAL;
+    } else if (value instanceof Boolean) {
+      type = PropertyType.BOOLEAN;
+    } else if (value instanceof Calendar) {
+      type = PropertyType.DATE;
+    } else {
+      type = PropertyType.STRING;
+    }
+
+    return proxy(Value.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getType":
+          return type;
+        case "getString":
+          return value instanceof Calendar
+              ? ((Calendar) value).toInstant().toString()
+              : String.valueOf(value);
+        case "getLong":
+          if (value instanceof Number) {
+            return ((Number) value).longValue();
+          }
+
+          try {
+            return Long.parseLong(String.valueOf(value));
+          } catch (NumberFormatException e) {
+            throw new ValueFormatException(e);
+          }
+        case "getDouble":
+          if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+          }
+
+          throw new ValueFormatException(value + " is not a number");
+        case "getDecimal":
+          if (value instanceof Number) {
+            return new BigDecimal(value.toString());
+          }
+
+          throw new ValueFormatException(value + " is not a number");
+        case "getBoolean":
+          return value instanceof Boolean ? value : Boolean.valueOf(String.valueOf(value));
+        case "getDate":
+          if (value instanceof Calendar) {
+            return value;
+          }
+
+          throw new ValueFormatException(value + " is not a date");
+        case "toString":
+          return String.valueOf(value);
+        default:
+          return unsupported(proxy, method.getName(), args);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(FakeJcr.class.getClassLoader(), new Class<?>[] {type},
+        handler);
+  }
+
+  private static Object unsupported(Object proxy, String method, Object[] args) {
+    switch (method) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return proxy.getClass().getInterfaces()[0].getSimpleName();
+      default:
+        throw new UnsupportedOperationException(method);
+    }
+  }
+
+  /**
+   * An iterator of nodes or properties.
+   */
+  private static final class FakeIterator implements NodeIterator, PropertyIterator {
+    private final List<Object> items;
+    private final Iterator<Object> iterator;
+    private long position;
+
+    private FakeIterator(List<Object> items) {
+      this.items = Collections.unmodifiableList(items);
+      this.iterator = this.items.iterator();
+    }
+
+    @Override
+    public Node nextNode() {
+      return (Node) next();
+    }
+
+    @Override
+    public Property nextProperty() {
+      return (Property) next();
+    }
+
+    @Override
+    public void skip(long skipNum) {
+      for (long i = 0; i < skipNum; i++) {
+        next();
+      }
+    }
+
+    @Override
+    public long getSize() {
+      return items.size();
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public Object next() {
+      if (!iterator.hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      position++;
+
+      return iterator.next();
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import static com.nachoverdon.mongolia.FakeEvents.event;
+import static com.nachoverdon.mongolia.FakeEvents.moved;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.nachoverdon.mongolia.FakeEvents;
+import com.nachoverdon.mongolia.FakeJcr;
+import com.nachoverdon.mongolia.annotations.Children;
+import info.magnolia.observation.WorkspaceEventListenerRegistration;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BeanCacheTest {
+
+  private static BeanCache racingCache;
+
+  private final Map<String, EventListener> listeners = new HashMap<>();
+  private final Map<String, Integer> unregistrations = new HashMap<>();
+  private FakeJcr jcr;
+  private BeanCache cache;
+
+  @Before
+  public void setUp() {
+    jcr = new FakeJcr("website", "editor");
+    cache = new ObservedCache(2);
+
+    FakeJcr.FakeNode chapters = jcr.getRoot().addNode("book").setProperty("name", "Dune")
+        .addNode("chapters");
+
+    chapters.addNode("0").setProperty("name", "Dune");
+    chapters.addNode("1").setProperty("name", "Muad'Dib");
+    jcr.getRoot().addNode("other").setProperty("name", "Children of Dune");
+  }
+
+  @Test
+  public void cachesTheBeansOfEachUser() throws Exception {
+    Book book = cache.get(jcr.getNode("/book"), Book.class, "en");
+
+    assertSame(book, cache.get(jcr.getNode("/book"), Book.class, "en"));
+    assertNotSame(book, cache.get(jcr.getNode("/book"), Book.class, "es"));
+
+    FakeJcr anonymous = new FakeJcr("website", "anonymous");
+
+    anonymous.getRoot().addNode("book").setProperty("name", "Dune");
+
+    Node node = anonymous.getNode("/book");
+
+    // Another user never gets the bean of the editor, even for the same identifier
+    assertNotSame(book, cache.get(withIdentifier(node, jcr.getNode("/book").getIdentifier()),
+        Book.class, "en"));
+    assertEquals(1, cache.getStats().getHits());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedBeans() throws Exception {
+    Book book = cache.get(jcr.getNode("/book"), Book.class, "en");
+
+    cache.get(jcr.getNode("/other"), Book.class, "en");
+    cache.get(jcr.getNode("/book"), Book.class, "en");
+    cache.get(jcr.getNode("/book"), Book.class, "es");
+
+    assertEquals(1, cache.getStats().getEvictions());
+    assertEquals(2, cache.getStats().getSize());
+    assertSame(book, cache.get(jcr.getNode("/book"), Book.class, "en"));
+  }
+
+  @Test
+  public void invalidatesTheBeansOfTheChangedNodesTheirAncestorsAndDescendants()
+      throws Exception {
+    Book book = cache.get(jcr.getNode("/book"), Book.class, "en");
+    Book other = cache.get(jcr.getNode("/other"), Book.class, "en");
+
+    // A child added below a mapped child
+    fire("website", event(Event.NODE_ADDED, "/book/chapters/1/notes"));
+
+    Book changed = cache.get(jcr.getNode("/book"), Book.class, "en");
+
+    assertNotSame(book, changed);
+    assertSame(other, cache.get(jcr.getNode("/other"), Book.class, "en"));
+
+    // The parent of a mapped node moved somewhere else
+    fire("website", moved("/archive/other", "/"));
+
+    assertNotSame(changed, cache.get(jcr.getNode("/book"), Book.class, "en"));
+    assertNotSame(other, cache.get(jcr.getNode("/other"), Book.class, "en"));
+  }
+
+  @Test
+  public void invalidatesOncePerBatchOfEvents() throws Exception {
+    cache.get(jcr.getNode("/book"), Book.class, "en");
+    cache.get(jcr.getNode("/other"), Book.class, "en");
+
+    fire("website", event(Event.PROPERTY_CHANGED, "/book/name"),
+        event(Event.PROPERTY_CHANGED, "/other/name"), moved("/moved", "/book/chapters/0"));
+
+    assertEquals(1, cache.getStats().getInvalidations());
+    assertEquals(0, cache.getStats().getSize());
+  }
+
+  @Test
+  public void invalidatesTheBeansThatEmbedNodesOfOtherWorkspaces() throws Exception {
+    FakeJcr dam = new FakeJcr("dam", "editor");
+
+    dam.getRoot().addNode("chapters").addNode("0").setProperty("name", "Cover");
+
+    Node book = withChildren(jcr.getNode("/book"), dam.getNode("/"));
+    // The dam workspace is only observed once a bean embeds one of its nodes
+    Book uncached = cache.get(book, Book.class, "en");
+    Book cached = cache.get(book, Book.class, "en");
+
+    assertNotSame(uncached, cached);
+    assertEquals("Cover", cached.chapters.iterator().next().name);
+    assertSame(cached, cache.get(book, Book.class, "en"));
+
+    fire("website", event(Event.PROPERTY_CHANGED, "/other/name"));
+
+    assertSame(cached, cache.get(book, Book.class, "en"));
+
+    fire("dam", event(Event.PROPERTY_CHANGED, "/chapters/0/name"));
+
+    assertNotSame(cached, cache.get(book, Book.class, "en"));
+  }
+
+  @Test
+  public void doesNotCacheTheBeansMappedWhileInvalidating() throws Exception {
+    racingCache = cache;
+
+    try {
+      RacingBook book = cache.get(jcr.getNode("/book"), RacingBook.class, "en");
+
+      assertNotSame(book, cache.get(jcr.getNode("/book"), RacingBook.class, "en"));
+      assertEquals(0, cache.getStats().getSize());
+    } finally {
+      racingCache = null;
+    }
+  }
+
+  @Test
+  public void doesNotCacheLazyBeans() throws Exception {
+    LazyBook book = cache.get(jcr.getNode("/book"), LazyBook.class, "en");
+
+    assertNotSame(book, cache.get(jcr.getNode("/book"), LazyBook.class, "en"));
+  }
+
+  @Test
+  public void doesNotCacheTheBeansOfUnobservedWorkspaces() throws Exception {
+    BeanCache unobserved = new BeanCache(2) {
+      @Override
+      protected WorkspaceEventListenerRegistration.Handle register(String workspace,
+                                                                   EventListener listener)
+          throws RepositoryException {
+        throw new RepositoryException("Observation is not supported");
+      }
+    };
+    Book book = unobserved.get(jcr.getNode("/book"), Book.class, "en");
+
+    assertNotSame(book, unobserved.get(jcr.getNode("/book"), Book.class, "en"));
+  }
+
+  @Test
+  public void unregistersTheListenersOnShutdown() throws Exception {
+    cache.get(jcr.getNode("/book"), Book.class, "en");
+    cache.shutdown();
+
+    assertEquals(Collections.singletonMap("website", 1), unregistrations);
+    assertEquals(0, cache.getStats().getSize());
+  }
+
+  private void fire(String workspace, Event... events) {
+    listeners.get(workspace).onEvent(FakeEvents.of(events));
+  }
+
+  private static Node withIdentifier(Node node, String identifier) {
+    return delegate(node, "getIdentifier", identifier);
+  }
+
+  /**
+   * Gets a Node whose only children are the ones of another Node, maybe of another workspace.
+   */
+  private static Node withChildren(Node node, Node parent) throws RepositoryException {
+    Node children = parent.getNode("chapters");
+
+    return (Node) Proxy.newProxyInstance(BeanCacheTest.class.getClassLoader(),
+        new Class<?>[] {Node.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getNodes":
+              return parent.getNodes();
+            case "hasNode":
+              return "chapters".equals(args[0]);
+            case "getNode":
+              return children;
+            default:
+              return invoke(node, method, args);
+          }
+        });
+  }
+
+  private static Node delegate(Node node, String methodName, Object result) {
+    return (Node) Proxy.newProxyInstance(BeanCacheTest.class.getClassLoader(),
+        new Class<?>[] {Node.class}, (proxy, method, args) -> methodName.equals(method.getName())
+            ? result : invoke(node, method, args));
+  }
+
+  private static Object invoke(Node node, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(node, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Captures the listeners instead of registering them on the repository.
+   */
+  private class ObservedCache extends BeanCache {
+    private ObservedCache(int maxSize) {
+      super(maxSize);
+    }
+
+    @Override
+    protected WorkspaceEventListenerRegistration.Handle register(String workspace,
+                                                                 EventListener listener) {
+      listeners.put(workspace, listener);
+
+      return () -> unregistrations.merge(workspace, 1, Integer::sum);
+    }
+  }
+
+  public static class Book {
+    public String name;
+    @Children(typeOf = Chapter.class)
+    public Collection<Chapter> chapters;
+  }
+
+  public static class LazyBook {
+    @Children(typeOf = Chapter.class, lazy = true)
+    public Collection<Chapter> chapters;
+  }
+
+  public static class RacingBook {
+    private String name;
+
+    public void setName(String name) {
+      // Some other node changes while this one is mapped
+      racingCache.invalidate("website", "/unrelated");
+      this.name = name;
+    }
+  }
+
+  public static class Chapter {
+    public String name;
+  }
+}
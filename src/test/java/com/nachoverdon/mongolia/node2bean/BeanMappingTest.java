@@ -0,0 +1,88 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+
+public class BeanMappingTest {
+
+  private static final List<Class<?>> PRIMITIVES = Arrays.asList(boolean.class, byte.class,
+      short.class, char.class, int.class, long.class, float.class, double.class);
+  private static final List<Object> VALUES = Arrays.asList(true, (byte) 1, (short) 2, 'c', 3, 4L,
+      5.5f, 6.5, "7", null);
+
+  @Test
+  public void adaptsTheValuesLikeTheSetterMethodHandles() {
+    for (Class<?> type : PRIMITIVES) {
+      MethodHandle identity = MethodHandles.identity(type)
+          .asType(MethodType.methodType(Object.class, Object.class));
+
+      for (Object value : VALUES) {
+        Object expected;
+
+        try {
+          expected = (Object) identity.invokeExact(value);
+        } catch (Throwable e) {
+          assertRejected(value, type);
+          continue;
+        }
+
+        assertEquals(type + " <- " + value, expected, BeanMapping.adapt(value, type, "field"));
+      }
+    }
+  }
+
+  @Test
+  public void adaptsTheReferenceTypesOnlyToTheirInstances() {
+    Date date = new Date(0);
+
+    assertSame(date, BeanMapping.adapt(date, Object.class, "field"));
+    assertSame(date, BeanMapping.adapt(date, Date.class, "field"));
+    assertNull(BeanMapping.adapt(null, Date.class, "field"));
+    assertRejected("1970", Date.class);
+    assertRejected(1, Long.class);
+  }
+
+  @Test
+  public void setsTheFieldsThroughTheirSetters() throws Exception {
+    BeanMapping<Book> mapping = BeanMapping.of(Book.class);
+    Book book = new Book();
+
+    mapping.getField("pages").set(book, (short) 412);
+    mapping.getField("copies").set(book, 20);
+    mapping.getField("visible").set(book, true);
+
+    assertEquals(412, book.pages);
+    assertEquals(20L, book.copies);
+    assertEquals(true, book.visible);
+  }
+
+  private static void assertRejected(Object value, Class<?> type) {
+    try {
+      BeanMapping.adapt(value, type, "field");
+      fail(type + " <- " + value + " was not rejected");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Cannot set " + (value == null ? "null" : value.getClass().getName())
+          + " value to field 'field' of type " + type.getName(), e.getMessage());
+    }
+  }
+
+  public static class Book {
+    public int pages;
+    public long copies;
+    private boolean visible;
+
+    public void setVisible(boolean visible) {
+      this.visible = visible;
+    }
+  }
+}
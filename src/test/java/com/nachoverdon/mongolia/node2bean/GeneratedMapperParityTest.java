@@ -0,0 +1,329 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.nachoverdon.mongolia.FakeJcr;
+import com.nachoverdon.mongolia.node2bean.processor.NodeMapperProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.annotation.processing.Processor;
+import javax.jcr.Node;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the {@link NodeMapper}s generated by {@link NodeMapperProcessor} map the same values
+ * and fail for the same ones as the reflection based mapping plan. The same beans are compiled
+ * twice, with and without the processor, and loaded by different class loaders.
+ */
+public class GeneratedMapperParityTest {
+
+  private static final String BOOK = "package parity;\n"
+      + "import com.nachoverdon.mongolia.annotations.Children;\n"
+      + "import com.nachoverdon.mongolia.annotations.Translatable;\n"
+      + "import java.util.Collection;\n"
+      + "import java.util.Date;\n"
+      + "import java.util.List;\n"
+      + "public class Book {\n"
+      + "  @Translatable public String title;\n"
+      + "  public boolean available;\n"
+      + "  private int pages;\n"
+      + "  private long copies;\n"
+      + "  private Integer year;\n"
+      + "  private double price;\n"
+      + "  private Object anything;\n"
+      + "  private Date published;\n"
+      + "  private String isbn;\n"
+      + "  private String hidden;\n"
+      + "  @Children(typeOf = Chapter.class) private Collection<Chapter> chapters;\n"
+      + "  @Children(typeOf = Chapter.class) public List<Chapter> sections;\n"
+      + "  public void setPages(int pages) { this.pages = pages; }\n"
+      + "  public void setCopies(long copies) { this.copies = copies; }\n"
+      + "  public void setYear(Integer year) { this.year = year; }\n"
+      + "  public void setPrice(double price) { this.price = price; }\n"
+      + "  public void setAnything(Object anything) { this.anything = anything; }\n"
+      + "  public void setPublished(Date published) { this.published = published; }\n"
+      + "  public void setChapters(Collection<Chapter> chapters) { this.chapters = chapters; }\n"
+      + "  public void setIsbn(String isbn) {\n"
+      + "    if (isbn.isEmpty()) throw new IllegalStateException(\"Empty ISBN\");\n"
+      + "    this.isbn = isbn;\n"
+      + "  }\n"
+      + "}\n";
+
+  private static final String CHAPTER = "package parity;\n"
+      + "import com.nachoverdon.mongolia.annotations.Translatable;\n"
+      + "public class Chapter {\n"
+      + "  @Translatable public String name;\n"
+      + "  public int number;\n"
+      + "}\n";
+
+  private static final String LOMBOK_BOOK = "package parity;\n"
+      + "import com.nachoverdon.mongolia.annotations.Translatable;\n"
+      + "@lombok.Data\n"
+      + "public class LombokBook {\n"
+      + "  @Translatable private String title;\n"
+      + "  private int pages;\n"
+      + "  @lombok.Setter(lombok.AccessLevel.NONE) private String hidden;\n"
+      + "}\n";
+
+  @ClassRule
+  public static final TemporaryFolder FOLDER = new TemporaryFolder();
+
+  private static Path sources;
+  private static URLClassLoader reflection;
+  private static URLClassLoader generated;
+
+  @BeforeClass
+  public static void compile() throws Exception {
+    sources = FOLDER.newFolder("sources").toPath();
+
+    List<File> files = new ArrayList<>();
+
+    files.add(write("Book", BOOK));
+    files.add(write("Chapter", CHAPTER));
+    files.add(write("LombokBook", LOMBOK_BOOK));
+
+    reflection = compile(files, "reflection", getLombok());
+    generated = compile(files, "generated", getLombok(), new NodeMapperProcessor());
+  }
+
+  @AfterClass
+  public static void close() throws IOException {
+    reflection.close();
+    generated.close();
+  }
+
+  @Test
+  public void mappersAreOnlyGeneratedByTheProcessor() throws Exception {
+    assertNull(NodeMappers.get(reflection.loadClass("parity.Book")));
+    assertNotNull(NodeMappers.get(generated.loadClass("parity.Book")));
+    assertNotNull(NodeMappers.get(generated.loadClass("parity.Chapter")));
+    assertNotNull(NodeMappers.get(generated.loadClass("parity.LombokBook")));
+  }
+
+  @Test
+  public void mapsTheSameValues() throws Exception {
+    FakeJcr jcr = new FakeJcr("website");
+    Calendar published = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+    published.setTimeInMillis(0);
+
+    FakeJcr.FakeNode book = jcr.getRoot().addNode("book")
+        .setProperty("title", "Dune")
+        .setProperty("title_es", "Duna")
+        .setProperty("available", true)
+        .setProperty("pages", 412L)
+        .setProperty("copies", 20L)
+        .setProperty("year", 1965L)
+        .setProperty("price", 9L)
+        .setProperty("anything", "Arrakis")
+        .setProperty("published", published)
+        .setProperty("isbn", "978-0441013593")
+        .setProperty("hidden", "Not mapped");
+    FakeJcr.FakeNode chapters = book.addNode("chapters");
+
+    chapters.addNode("0").setProperty("name", "Dune").setProperty("number", 1L);
+    chapters.addNode("1").setProperty("name_es", "Muad'Dib").setProperty("number", 2L);
+    // Only Collection fields hold children
+    book.addNode("sections").addNode("0").setProperty("name", "Book one");
+
+    Node node = jcr.getNode("/book");
+    String expected = assertSameOutcome("parity.Book", node, "en");
+
+    assertTrue(expected, expected.contains("title=Dune"));
+    assertTrue(expected, expected.contains("pages=412"));
+    assertTrue(expected, expected.contains("copies=20"));
+    assertTrue(expected, expected.contains("price=9.0"));
+    assertTrue(expected, expected.contains("hidden=null"));
+    assertTrue(expected, expected.contains("number=2"));
+    assertTrue(expected, expected.contains("sections=null"));
+
+    String translated = assertSameOutcome("parity.Book", node, "es");
+
+    assertTrue(translated, translated.contains("title=Duna"));
+    assertTrue(translated, translated.contains("name=Muad'Dib"));
+  }
+
+  @Test
+  public void mapsTheSameLombokBeans() throws Exception {
+    FakeJcr jcr = new FakeJcr("website");
+
+    jcr.getRoot().addNode("book")
+        .setProperty("title", "Dune")
+        .setProperty("title_es", "Duna")
+        .setProperty("pages", 412L)
+        .setProperty("hidden", "Not mapped");
+
+    String expected = assertSameOutcome("parity.LombokBook", jcr.getNode("/book"), "es");
+
+    assertTrue(expected, expected.contains("title=Duna"));
+    assertTrue(expected, expected.contains("pages=412"));
+    assertTrue(expected, expected.contains("hidden=null"));
+  }
+
+  @Test
+  public void failsForTheSameValues() throws Exception {
+    Map<String, Object> invalidValues = new TreeMap<>();
+
+    // Narrowing, parsing, unsupported types and null values for primitives are not allowed
+    invalidValues.put("copies", "20");
+    invalidValues.put("pages", 412.5);
+    invalidValues.put("title", 12L);
+    invalidValues.put("available", "true");
+    invalidValues.put("year", true);
+    // Thrown by the setter
+    invalidValues.put("isbn", "");
+
+    for (Map.Entry<String, Object> invalidValue : invalidValues.entrySet()) {
+      FakeJcr jcr = new FakeJcr("website");
+
+      jcr.getRoot().addNode("book").setProperty(invalidValue.getKey(), invalidValue.getValue());
+
+      String outcome = assertSameOutcome("parity.Book", jcr.getNode("/book"), "en");
+
+      assertFalse(invalidValue + " => " + outcome, outcome.startsWith("parity.Book"));
+    }
+  }
+
+  @Test
+  public void skipsTheChildrenBeyondTheMaximumDepth() throws Exception {
+    FakeJcr jcr = new FakeJcr("website");
+
+    jcr.getRoot().addNode("book").addNode("chapters").addNode("0").setProperty("name", "Dune");
+
+    MappingOptions options = MappingOptions.builder().maxDepth(0).build();
+    String expected = describe(map(reflection, "parity.Book", jcr.getNode("/book"), "en", options));
+
+    assertEquals(expected,
+        describe(map(generated, "parity.Book", jcr.getNode("/book"), "en", options)));
+    assertTrue(expected, expected.contains("chapters=null"));
+  }
+
+  /**
+   * Maps the node with both class loaders and checks that both map the same bean, or fail the
+   * same way.
+   *
+   * @return The description of the outcome
+   */
+  private static String assertSameOutcome(String className, Node node, String language)
+      throws Exception {
+    String expected = describe(reflection, className, node, language);
+
+    assertEquals(expected, describe(generated, className, node, language));
+
+    return expected;
+  }
+
+  private static String describe(ClassLoader loader, String className, Node node,
+                                 String language) throws Exception {
+    try {
+      return describe(map(loader, className, node, language, MappingOptions.DEFAULT));
+    } catch (RuntimeException e) {
+      return e.toString();
+    }
+  }
+
+  private static Object map(ClassLoader loader, String className, Node node, String language,
+                            MappingOptions options) throws Exception {
+    MappingContext context = new MappingContext(language, "en", options, 0);
+
+    return Node2Bean.mapNode(node, loader.loadClass(className), context);
+  }
+
+  /**
+   * Describes the values of all the fields of a bean, so beans of different class loaders can be
+   * compared.
+   */
+  private static String describe(Object value) throws IllegalAccessException {
+    if (value == null) {
+      return "null";
+    }
+
+    if (value instanceof Collection) {
+      List<String> items = new ArrayList<>();
+
+      for (Object item : (Collection<?>) value) {
+        items.add(describe(item));
+      }
+
+      return items.toString();
+    }
+
+    if (!(value.getClass().getClassLoader() instanceof URLClassLoader)) {
+      return value.toString();
+    }
+
+    StringBuilder description = new StringBuilder(value.getClass().getName()).append('{');
+
+    for (Field field : value.getClass().getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        field.setAccessible(true);
+        description.append(field.getName()).append('=').append(describe(field.get(value)))
+            .append(", ");
+      }
+    }
+
+    return description.append('}').toString();
+  }
+
+  private static File write(String className, String source) throws IOException {
+    Path file = sources.resolve(className + ".java");
+
+    Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+
+    return file.toFile();
+  }
+
+  private static URLClassLoader compile(List<File> files, String name, Processor... processors)
+      throws IOException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    File output = FOLDER.newFolder(name);
+
+    try (StandardJavaFileManager fileManager =
+             compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+      Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+      JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null,
+          Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d",
+              output.getPath(), "-implicit:class"),
+          null, units);
+
+      task.setProcessors(Arrays.asList(processors));
+
+      assertTrue("Cannot compile the " + name + " beans", task.call());
+    }
+
+    return new URLClassLoader(new URL[] {output.toURI().toURL()},
+        GeneratedMapperParityTest.class.getClassLoader());
+  }
+
+  private static Processor getLombok() throws ReflectiveOperationException {
+    return (Processor) Class.forName("lombok.launch.AnnotationProcessorHider$AnnotationProcessor")
+        .getConstructor().newInstance();
+  }
+}
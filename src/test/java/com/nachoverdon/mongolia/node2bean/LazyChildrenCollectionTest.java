@@ -0,0 +1,77 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.nachoverdon.mongolia.FakeJcr;
+import com.nachoverdon.mongolia.annotations.Children;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class LazyChildrenCollectionTest {
+
+  @Test
+  public void mapsTheChildrenOnFirstAccess() throws Exception {
+    FakeJcr jcr = new FakeJcr("website", "editor");
+    FakeJcr.FakeNode chapters = jcr.getRoot().addNode("book").addNode("chapters");
+
+    chapters.addNode("0").setProperty("name", "Dune");
+    chapters.addNode("1").setProperty("name", "Muad'Dib");
+
+    MappingContext context = new MappingContext("en", "en", MappingOptions.DEFAULT, 0);
+    Book book = Node2Bean.mapNode(jcr.getNode("/book"), Book.class, context);
+    LazyChildrenCollection<Chapter> lazy = (LazyChildrenCollection<Chapter>) book.chapters;
+
+    assertTrue(context.hasLazyChildren());
+    assertFalse(lazy.isLoaded());
+    assertEquals(2, lazy.size());
+    assertTrue(lazy.isLoaded());
+    assertEquals(Arrays.asList("Dune", "Muad'Dib"),
+        lazy.stream().map(chapter -> chapter.name).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void readsTheChildrenWithTheSessionOfTheMappedNodes() throws Exception {
+    FakeJcr jcr = new FakeJcr("website", "editor");
+
+    jcr.getRoot().addNode("book");
+
+    MappingContext context = new MappingContext("en", "en", MappingOptions.DEFAULT, 0);
+
+    Node2Bean.mapNode(jcr.getNode("/book"), Book.class, context);
+
+    assertSame(jcr.getSession(), context.getSession("website"));
+    assertSame(jcr.getSession(), context.fork().getSession("website"));
+  }
+
+  @Test
+  public void eagerChildrenDoNotDependOnTheSession() throws Exception {
+    FakeJcr jcr = new FakeJcr("website");
+
+    jcr.getRoot().addNode("book").addNode("chapters").addNode("0").setProperty("name", "Dune");
+
+    MappingContext context = new MappingContext("en", "en", MappingOptions.DEFAULT, 0);
+    EagerBook book = Node2Bean.mapNode(jcr.getNode("/book"), EagerBook.class, context);
+
+    assertFalse(context.hasLazyChildren());
+    assertEquals(1, book.chapters.size());
+  }
+
+  public static class Book {
+    @Children(typeOf = Chapter.class, lazy = true)
+    public Collection<Chapter> chapters;
+  }
+
+  public static class EagerBook {
+    @Children(typeOf = Chapter.class)
+    public Collection<Chapter> chapters;
+  }
+
+  public static class Chapter {
+    public String name;
+  }
+}
@@ -0,0 +1,156 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.nachoverdon.mongolia.FakeJcr;
+import com.nachoverdon.mongolia.annotations.Children;
+import com.nachoverdon.mongolia.annotations.Reference;
+import com.nachoverdon.mongolia.annotations.Translatable;
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import javax.jcr.Node;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Node2JsonTest {
+
+  private FakeJcr jcr;
+  private FakeJcr.FakeNode book;
+
+  @Before
+  public void setUp() {
+    Calendar published = Calendar.getInstance(TimeZone.getTimeZone("Europe/Madrid"));
+
+    published.setTimeInMillis(0);
+    jcr = new FakeJcr("website");
+    book = jcr.getRoot().addNode("book")
+        .setProperty("title", "Dune")
+        .setProperty("title_es", "Duna")
+        .setProperty("pages", 412L)
+        .setProperty("copies", 20L)
+        .setProperty("price", 9.99)
+        .setProperty("tags", new String[] {"sci-fi", "classic"})
+        .setProperty("published", published);
+    book.addNode("chapters").addNode("0").setProperty("name", "Dune");
+  }
+
+  @Test
+  public void writesTheValuesThatNode2BeanSets() throws Exception {
+    Book bean = Node2Bean.mapNode(jcr.getNode("/book"), Book.class, context("es"));
+
+    // Node2Bean only maps strings, longs as ints, dates and booleans
+    assertNull(bean.price);
+    assertNull(bean.tags);
+    assertEquals("{\"title\":\"Duna\",\"pages\":412,\"copies\":20,\"price\":null,"
+        + "\"tags\":null,\"published\":\"1970-01-01T00:00:00Z\",\"edition\":\"First\","
+        + "\"chapters\":[{\"name\":\"Dune\"}],\"author\":null,\"related\":null}",
+        write(jcr.getNode("/book"), Book.class, "es"));
+  }
+
+  @Test
+  public void writesTheReferencedNodes() throws Exception {
+    FakeJcr.FakeNode author = jcr.getRoot().addNode("herbert").setProperty("title", "Herbert");
+
+    author.setProperty("related", new String[] {book.getIdentifier()});
+    book.setProperty("author", author.getIdentifier())
+        .setProperty("related", new String[] {book.getIdentifier(), author.getIdentifier()});
+
+    MappingOptions options = MappingOptions.builder().include("title").include("related")
+        .build();
+    StringWriter writer = new StringWriter();
+
+    Node2Json.write(jcr.getNode("/herbert"), Book.class, "en", options, writer);
+
+    // The book cannot reference itself nor the author being written, only the root is projected
+    assertEquals("{\"title\":\"Herbert\",\"related\":[{\"title\":\"Dune\",\"pages\":412,"
+        + "\"copies\":20,\"price\":null,\"tags\":null,\"published\":\"1970-01-01T00:00:00Z\","
+        + "\"edition\":\"First\",\"chapters\":[{\"name\":\"Dune\"}],\"author\":null,"
+        + "\"related\":[]}]}", writer.toString());
+  }
+
+  @Test
+  public void fetchesTheReferencesOfEachFieldWithASingleQuery() throws Exception {
+    FakeJcr.FakeNode shelf = jcr.getRoot().addNode("shelf");
+    String[] related = new String[5];
+
+    for (int i = 0; i < related.length; i++) {
+      related[i] = jcr.getRoot().addNode("book" + i).setProperty("title", "Book " + i)
+          .getIdentifier();
+    }
+
+    shelf.setProperty("related", related);
+
+    MappingOptions options = MappingOptions.builder().include("related").build();
+    StringWriter writer = new StringWriter();
+
+    Node2Json.write(jcr.getNode("/shelf"), Book.class, "en", options, writer);
+
+    assertEquals(1, jcr.getQueries());
+    assertEquals(5, writer.toString().split("\\{\"title\":\"Book").length - 1);
+  }
+
+  @Test
+  public void writesTheInitialValuesOfTheFieldsThatHideTheOnesOfTheSuperclass() throws Exception {
+    StringWriter writer = new StringWriter();
+
+    Node2Json.write(jcr.getNode("/book"), Reprint.class, "en",
+        MappingOptions.builder().include("edition").build(), writer);
+
+    assertEquals("{\"edition\":\"Second\"}", writer.toString());
+  }
+
+  @Test
+  public void writesNullForBeansThatCannotBeInstantiated() throws Exception {
+    assertEquals("null", write(jcr.getNode("/book"), Unmappable.class, "en"));
+  }
+
+  private static String write(Node node, Class<?> clazz, String lang) throws Exception {
+    StringWriter writer = new StringWriter();
+
+    Node2Json.write(node, clazz, lang, MappingOptions.DEFAULT, writer);
+
+    return writer.toString();
+  }
+
+  private static MappingContext context(String lang) {
+    return new MappingContext(lang, "en", MappingOptions.DEFAULT, 0);
+  }
+
+  public static class Book {
+    @Translatable
+    public String title;
+    public int pages;
+    public long copies;
+    public Double price;
+    public List<String> tags;
+    public Date published;
+    public String edition = "First";
+    @Children(typeOf = Chapter.class)
+    public Collection<Chapter> chapters;
+    @Reference(workspace = "website", typeOf = Book.class)
+    public Book author;
+    @Reference(workspace = "website", typeOf = Book.class)
+    public List<Book> related;
+  }
+
+  public static class Chapter {
+    public String name;
+  }
+
+  public static class Reprint extends Book {
+    public String edition = "Second";
+  }
+
+  public static class Unmappable {
+    public String title;
+
+    public Unmappable() {
+      throw new IllegalStateException("Not mappable");
+    }
+  }
+}
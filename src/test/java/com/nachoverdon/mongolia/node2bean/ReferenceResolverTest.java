@@ -0,0 +1,131 @@
+package com.nachoverdon.mongolia.node2bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.nachoverdon.mongolia.FakeJcr;
+import com.nachoverdon.mongolia.annotations.Reference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReferenceResolverTest {
+
+  private FakeJcr jcr;
+  private FakeJcr.FakeNode author;
+  private FakeJcr.FakeNode dune;
+  private FakeJcr.FakeNode messiah;
+
+  @Before
+  public void setUp() {
+    jcr = new FakeJcr("website", "editor");
+    author = jcr.getRoot().addNode("herbert").setProperty("name", "Frank Herbert");
+    dune = jcr.getRoot().addNode("dune").setProperty("name", "Dune");
+    messiah = jcr.getRoot().addNode("messiah").setProperty("name", "Dune Messiah");
+  }
+
+  @Test
+  public void setsTheReferencesInTheDeclaredCollections() throws Exception {
+    author.setProperty("books", new String[] {dune.getIdentifier(), messiah.getIdentifier()});
+    dune.setProperty("sequels", new String[] {messiah.getIdentifier()});
+
+    Author bean = map(author, Author.class);
+
+    assertEquals(LinkedHashSet.class, bean.books.getClass());
+    assertEquals(Arrays.asList("Dune", "Dune Messiah"), names(bean.books));
+
+    Book first = bean.books.iterator().next();
+
+    assertEquals(LinkedList.class, first.sequels.getClass());
+    // A Node referenced by several beans is mapped only once
+    assertSame(bean.books.toArray()[1], first.sequels.getFirst());
+  }
+
+  @Test
+  public void readsTheReferencesWithTheSessionOfTheMappedNodes() throws Exception {
+    author.setProperty("books", new String[] {dune.getIdentifier()});
+
+    MappingContext context = new MappingContext("en", "en", MappingOptions.DEFAULT, 0);
+
+    // There is no Magnolia context, so the references can only be read with that session
+    assertEquals(1, Node2Bean.mapNode(jcr.getNode("/herbert"), Author.class, context).books
+        .size());
+    assertSame(jcr.getSession(), context.getSession("website"));
+  }
+
+  @Test
+  public void leavesTheReferencesToAncestorsUnset() throws Exception {
+    author.setProperty("books", new String[] {dune.getIdentifier()});
+    dune.setProperty("author", author.getIdentifier())
+        .setProperty("sequels", new String[] {messiah.getIdentifier()});
+    messiah.setProperty("sequels", new String[] {dune.getIdentifier()});
+
+    Author bean = map(author, Author.class);
+    Book book = bean.books.iterator().next();
+
+    assertNull(book.author);
+    assertEquals(Arrays.asList("Dune Messiah"), names(book.sequels));
+    assertTrue(book.sequels.getFirst().sequels.isEmpty());
+  }
+
+  @Test
+  public void doesNotReuseTheBeansThatHoldTheReferringOne() throws Exception {
+    FakeJcr.FakeNode shelf = jcr.getRoot().addNode("shelf");
+
+    shelf.setProperty("books", new String[] {dune.getIdentifier(), messiah.getIdentifier()});
+    dune.setProperty("sequels", new String[] {messiah.getIdentifier()});
+    messiah.setProperty("sequels", new String[] {dune.getIdentifier()});
+
+    Author bean = map(shelf, Author.class);
+    Book first = (Book) bean.books.toArray()[0];
+    Book second = (Book) bean.books.toArray()[1];
+
+    assertEquals(Arrays.asList("Dune Messiah"), names(first.sequels));
+    assertSame(second, first.sequels.getFirst());
+    // Dune holds Dune Messiah, so Dune Messiah cannot hold Dune
+    assertTrue(second.sequels.isEmpty());
+  }
+
+  @Test
+  public void createsTheDeclaredCollections() {
+    assertEquals(ArrayList.class, ReferenceResolver.newCollection(Collection.class).getClass());
+    assertEquals(ArrayList.class, ReferenceResolver.newCollection(List.class).getClass());
+    assertEquals(LinkedHashSet.class, ReferenceResolver.newCollection(Set.class).getClass());
+    assertEquals(ArrayDeque.class, ReferenceResolver.newCollection(Queue.class).getClass());
+    assertEquals(LinkedList.class, ReferenceResolver.newCollection(LinkedList.class).getClass());
+  }
+
+  private <T> T map(FakeJcr.FakeNode node, Class<T> clazz) throws Exception {
+    return Node2Bean.mapNode(jcr.getNode(node.getPath()), clazz,
+        new MappingContext("en", "en", MappingOptions.DEFAULT, 0));
+  }
+
+  private static List<String> names(Collection<Book> books) {
+    return books.stream().map(book -> book.name).collect(Collectors.toList());
+  }
+
+  public static class Author {
+    public String name;
+    @Reference(workspace = "website", typeOf = Book.class)
+    public Set<Book> books;
+  }
+
+  public static class Book {
+    public String name;
+    @Reference(workspace = "website", typeOf = Author.class)
+    public Author author;
+    @Reference(workspace = "website", typeOf = Book.class)
+    public LinkedList<Book> sequels;
+  }
+}
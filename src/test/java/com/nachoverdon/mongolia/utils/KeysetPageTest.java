@@ -0,0 +1,89 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.nachoverdon.mongolia.FakeJcr;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeysetPageTest {
+
+  private FakeJcr jcr;
+  private FakeJcr.FakeNode book;
+
+  @Before
+  public void setUp() {
+    jcr = new FakeJcr("website");
+    book = jcr.getRoot().addNode("book")
+        .setProperty("title", "Dune | Part 2")
+        .setProperty("pages", 412L)
+        .setProperty("tags", new String[] {"sci-fi", "classic"});
+  }
+
+  @Test
+  public void readsTheCursorOfItsToken() throws Exception {
+    Node node = jcr.getNode("/book");
+    String token = KeysetPage.toToken(node, "title");
+
+    // URL safe, without padding
+    assertFalse(token.matches(".*[+/=].*"));
+    assertEquals(new KeysetPage.Cursor(PropertyType.STRING, "Dune | Part 2", book.getIdentifier()),
+        KeysetPage.fromToken(token));
+    assertEquals(new KeysetPage.Cursor(PropertyType.LONG, "412", book.getIdentifier()),
+        KeysetPage.fromToken(KeysetPage.toToken(node, "pages")));
+  }
+
+  @Test
+  public void rejectsTheInvalidTokens() {
+    assertInvalid("not a token!");
+    assertInvalid(encode("1|identifier"));
+    assertInvalid(encode("STRING|identifier|Dune"));
+    assertInvalid(encode("99|identifier|Dune"));
+  }
+
+  @Test
+  public void rejectsTheMultiValuedSortProperties() throws Exception {
+    try {
+      KeysetPage.toToken(jcr.getNode("/book"), "tags");
+      fail("The multi-valued property was not rejected");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Cannot page by the multi-valued property 'tags' of node /book",
+          e.getMessage());
+    }
+  }
+
+  @Test
+  public void matchesTheNodesAfterTheCursorInTheSortDirection() {
+    assertEquals("SELECT * FROM [mgnl:page] WHERE [date] IS NOT NULL AND ([hidden] = false)"
+        + " ORDER BY [date] ASC, [jcr:uuid] ASC",
+        QueryUtils.getPageStatement("mgnl:page", "[hidden] = false", "date", false, false));
+    assertEquals("SELECT * FROM [mgnl:page] WHERE [date] IS NOT NULL"
+        + " AND ([date] > $keysetValue OR ([date] = $keysetValue AND [jcr:uuid] > $keysetId))"
+        + " ORDER BY [date] ASC, [jcr:uuid] ASC",
+        QueryUtils.getPageStatement("mgnl:page", null, "date", false, true));
+    assertEquals("SELECT * FROM [mgnl:page] WHERE [date] IS NOT NULL"
+        + " AND ([date] < $keysetValue OR ([date] = $keysetValue AND [jcr:uuid] < $keysetId))"
+        + " ORDER BY [date] DESC, [jcr:uuid] DESC",
+        QueryUtils.getPageStatement("mgnl:page", "", "date", true, true));
+  }
+
+  private static void assertInvalid(String token) {
+    try {
+      KeysetPage.fromToken(token);
+      fail("Token " + token + " was not rejected");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Invalid page token: " + token, e.getMessage());
+    }
+  }
+
+  private static String encode(String token) {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(token.getBytes(StandardCharsets.UTF_8));
+  }
+}
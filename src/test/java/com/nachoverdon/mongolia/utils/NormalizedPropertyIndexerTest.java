@@ -0,0 +1,33 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class NormalizedPropertyIndexerTest {
+
+  private final NormalizedPropertyIndexer indexer = new NormalizedPropertyIndexer("website", "/",
+      Collections.singleton("mgnl:page"), Arrays.asList("title", "author"),
+      Collections.singleton("title"), Arrays.asList("en", "es"));
+
+  @Test
+  public void indexesTheTranslationsToTheLanguagesOfTheSite() {
+    assertTrue(indexer.isIndexed("title"));
+    assertTrue(indexer.isIndexed("title_es"));
+    assertTrue(indexer.isIndexed("author"));
+    assertFalse(indexer.isIndexed("title_old"));
+    assertFalse(indexer.isIndexed("title_fr"));
+    assertFalse(indexer.isIndexed("author_es"));
+    assertFalse(indexer.isIndexed("title_es_norm"));
+  }
+
+  @Test
+  public void normalizesAccentsAndCase() {
+    assertEquals("cancion", NormalizedPropertyIndexer.normalize("Canción"));
+    assertEquals("title_es_norm", NormalizedPropertyIndexer.getNormalizedName("title_es"));
+  }
+}
@@ -0,0 +1,131 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import org.junit.Test;
+
+public class PreparedQueriesTest {
+
+  private static final String STATEMENT =
+      "SELECT * FROM [mgnl:page] WHERE [title] = $title AND [pages] > $pages";
+
+  /**
+   * The values created by the factory, as the type and value they were created from.
+   */
+  private final ValueFactory valueFactory = proxy(ValueFactory.class, (method, args) -> {
+    Object argument = args[0] instanceof Calendar ? ((Calendar) args[0]).getTime() : args[0];
+
+    return proxy(Value.class, (valueMethod, valueArgs) ->
+        argument.getClass().getSimpleName() + ":" + argument);
+  });
+
+  @Test
+  public void bindsTheValuesAsTheMatchingJcrTypes() throws Exception {
+    RecordingQuery query = new RecordingQuery();
+    Map<String, Object> bindings = new LinkedHashMap<>();
+
+    bindings.put("title", "Dune");
+    bindings.put("pages", 412);
+    bindings.put("price", 9.99f);
+    bindings.put("total", new BigDecimal("10.50"));
+    bindings.put("published", new Date(0));
+    bindings.put("visible", true);
+    bindings.put("category", new StringBuilder("sci-fi"));
+
+    PreparedQueries.bind(query.proxy, valueFactory, bindings, -1, 0);
+
+    assertEquals("String:Dune", query.bound.get("title"));
+    assertEquals("Long:412", query.bound.get("pages"));
+    assertEquals("Double:" + (double) 9.99f, query.bound.get("price"));
+    assertEquals("BigDecimal:10.50", query.bound.get("total"));
+    assertEquals("Date:" + new Date(0), query.bound.get("published"));
+    assertEquals("Boolean:true", query.bound.get("visible"));
+    assertEquals("String:sci-fi", query.bound.get("category"));
+  }
+
+  @Test
+  public void rejectsTheStatementsWithUnboundVariables() throws Exception {
+    RecordingQuery query = new RecordingQuery();
+
+    try {
+      PreparedQueries.bind(query.proxy, valueFactory, new HashMap<>(), -1, 0);
+      fail("The unbound variables were not rejected");
+    } catch (InvalidQueryException e) {
+      assertEquals("Missing values for the bind variables [pages, title] of statement:\n"
+          + STATEMENT, e.getMessage());
+    }
+
+    assertEquals(0, query.bound.size());
+  }
+
+  @Test
+  public void setsOnlyAPositiveLimitAndOffset() throws Exception {
+    Map<String, Object> bindings = new HashMap<>();
+
+    bindings.put("title", "Dune");
+    bindings.put("pages", 1);
+
+    RecordingQuery unlimited = new RecordingQuery();
+
+    PreparedQueries.bind(unlimited.proxy, valueFactory, bindings, -1, 0);
+
+    assertFalse(unlimited.bound.containsKey("limit"));
+    assertFalse(unlimited.bound.containsKey("offset"));
+
+    RecordingQuery page = new RecordingQuery();
+
+    PreparedQueries.bind(page.proxy, valueFactory, bindings, 10, 20);
+
+    assertEquals(10L, page.bound.get("limit"));
+    assertEquals(20L, page.bound.get("offset"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return (T) Proxy.newProxyInstance(PreparedQueriesTest.class.getClassLoader(),
+        new Class<?>[] {type}, (proxy, method, args) -> handler.handle(method.getName(), args));
+  }
+
+  private interface Handler {
+    Object handle(String method, Object[] args);
+  }
+
+  /**
+   * A query of {@link #STATEMENT} that records its bound values, limit and offset.
+   */
+  private static final class RecordingQuery {
+    private final Map<String, Object> bound = new HashMap<>();
+    private final Query proxy = PreparedQueriesTest.proxy(Query.class, (method, args) -> {
+      switch (method) {
+        case "getStatement":
+          return STATEMENT;
+        case "getBindVariableNames":
+          return new String[] {"title", "pages"};
+        case "bindValue":
+          bound.put((String) args[0], args[1].toString());
+          return null;
+        case "setLimit":
+          bound.put("limit", args[0]);
+          return null;
+        case "setOffset":
+          bound.put("offset", args[0]);
+          return null;
+        default:
+          throw new UnsupportedOperationException(method);
+      }
+    });
+  }
+}
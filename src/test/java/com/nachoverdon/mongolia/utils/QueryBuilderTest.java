@@ -0,0 +1,107 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.nachoverdon.mongolia.utils.QueryBuilder.Condition;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class QueryBuilderTest {
+
+  @Test
+  public void bindsEveryValueInOrderOfAppearance() {
+    QueryBuilder query = QueryBuilder.select("mgnl:page", "page")
+        .where(Condition.isDescendantNode("page", "/site/news"),
+            Condition.eq("page.category", "sci-fi"),
+            null,
+            Condition.or(Condition.gt("page.pages", 100), Condition.likeIgnoreCase("title", "D%")))
+        .orderByDescending("page.date")
+        .orderBy("page.title");
+    Map<String, Object> bindings = new LinkedHashMap<>();
+
+    bindings.put("v0", "d%");
+    bindings.put("v1", 100);
+    bindings.put("v2", "sci-fi");
+
+    assertEquals("SELECT * FROM [mgnl:page] AS [page] WHERE"
+        + " (LOWER([title]) LIKE $v0 OR [page].[pages] > $v1)"
+        + " AND ISDESCENDANTNODE([page], '/site/news') AND [page].[category] = $v2"
+        + " ORDER BY [page].[date] DESC, [page].[title] ASC", query.getStatement());
+    assertEquals(bindings, query.getBindings());
+  }
+
+  @Test
+  public void writesTheColumnsAndTheJoins() {
+    QueryBuilder query = QueryBuilder.select("mgnl:page", "page")
+        .column("page.title")
+        .column("page.jcr:path", "path")
+        .innerJoin("mgnl:area", "area", Condition.childNodeJoin("area", "page"))
+        .where(Condition.isNotNull("area.*"), Condition.not(Condition.isNull("page.date")));
+
+    assertEquals("SELECT [page].[title] AS [title], [page].[jcr:path] AS [path]"
+        + " FROM [mgnl:page] AS [page] INNER JOIN [mgnl:area] AS [area]"
+        + " ON ISCHILDNODE([area], [page]) WHERE NOT [page].[date] IS NULL"
+        + " AND [area].* IS NOT NULL", query.getStatement());
+  }
+
+  @Test
+  public void hasTheSameStatementAndFingerprintWhateverTheOrderOfTheConditions() {
+    QueryBuilder query = QueryBuilder.select("mgnl:page")
+        .where(Condition.eq("category", "sci-fi"), Condition.or(Condition.eq("author", "Herbert"),
+            Condition.isNull("author")));
+    QueryBuilder reordered = QueryBuilder.select("mgnl:page")
+        .where(Condition.or(Condition.isNull("author"), Condition.eq("author", "Asimov")))
+        .where(Condition.eq("category", "fantasy"));
+
+    assertEquals(query.getStatement(), reordered.getStatement());
+    assertEquals(query.getFingerprint(), reordered.getFingerprint());
+    assertEquals(query.getFingerprint(), QueryProfiler.fingerprint(query.getStatement()));
+    assertNotEquals(query.getFingerprint(),
+        QueryBuilder.select("mgnl:page").where(Condition.eq("category", "sci-fi"))
+            .getFingerprint());
+    // The limit and the offset are not part of it
+    assertEquals(query.getFingerprint(), query.limit(10).offset(20).getFingerprint());
+  }
+
+  @Test
+  public void matchesAnyOfTheValuesOrNoNodeWithoutValues() {
+    assertEquals("SELECT * FROM [mgnl:page] WHERE ([category] IS NULL AND [category] IS NOT NULL)",
+        QueryBuilder.select("mgnl:page")
+            .where(Condition.in("category", Collections.emptyList())).getStatement());
+    assertEquals("SELECT * FROM [mgnl:page] WHERE"
+        + " NOT ([category] IS NULL AND [category] IS NOT NULL)",
+        QueryBuilder.select("mgnl:page")
+            .where(Condition.not(Condition.in("category", Collections.emptyList())))
+            .getStatement());
+    assertEquals("SELECT * FROM [mgnl:page] WHERE [category] = $v0 OR [category] = $v1",
+        QueryBuilder.select("mgnl:page")
+            .where(Condition.in("category", Arrays.asList("sci-fi", "fantasy")),
+                Condition.and())
+            .getStatement());
+  }
+
+  @Test
+  public void rejectsTheMissingConditionsAndValues() {
+    assertNull(Condition.and((Condition) null));
+
+    try {
+      Condition.not(Condition.or());
+      fail("The missing condition was not rejected");
+    } catch (NullPointerException e) {
+      assertEquals("The negated condition cannot be null", e.getMessage());
+    }
+
+    try {
+      Condition.eq("category", null);
+      fail("The missing value was not rejected");
+    } catch (NullPointerException e) {
+      assertEquals("The value of a condition cannot be null", e.getMessage());
+    }
+  }
+}
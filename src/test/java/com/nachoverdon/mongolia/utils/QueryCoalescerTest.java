@@ -0,0 +1,181 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.nachoverdon.mongolia.FakeJcr;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryCoalescerTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private ExecutorService executor;
+  private QueryCoalescer coalescer;
+  private FakeJcr jcr;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(2);
+    coalescer = new QueryCoalescer();
+    jcr = new FakeJcr("website", "editor");
+    jcr.getRoot().addNode("news").setProperty("title", "News");
+    jcr.getRoot().addNode("events").setProperty("title", "Events");
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void coalescesTheIdenticalQueriesOfTheSameUser() throws Exception {
+    Future<Collection<Node>> leader = executor.submit(() ->
+        coalescer.getNodes(key("news"), jcr.getSession(), () -> {
+          awaitRelease();
+
+          return nodes("/news", "/events");
+        }));
+
+    awaitExecutions(1);
+
+    // The waiter starts while the leader is running and never executes the query
+    Future<Collection<Node>> waiter = executor.submit(() ->
+        coalescer.getNodes(key("news"), jcr.getSession(), () -> {
+          throw new AssertionError("The query was executed twice");
+        }));
+
+    awaitCoalesced(1);
+    release.countDown();
+
+    assertEquals(Arrays.asList("/news", "/events"), paths(leader.get(5, TimeUnit.SECONDS)));
+    assertEquals(Arrays.asList("/news", "/events"), paths(waiter.get(5, TimeUnit.SECONDS)));
+    assertEquals(new QueryCoalescer.Stats(1, 1, 0), coalescer.getStats());
+  }
+
+  @Test
+  public void doesNotCoalesceTheQueriesOfOtherUsers() throws Exception {
+    executor.submit(() -> coalescer.getNodes(key("news"), jcr.getSession(), () -> {
+      awaitRelease();
+
+      return nodes("/news");
+    }));
+
+    awaitExecutions(1);
+
+    FakeJcr anonymous = new FakeJcr("website", "anonymous");
+
+    anonymous.getRoot().addNode("public");
+
+    // It runs while the query of the editor is still running
+    Collection<Node> nodes = coalescer.getNodes(key("news"), anonymous.getSession(),
+        () -> new ArrayList<>(Arrays.asList(anonymous.getNode("/public"))));
+
+    assertEquals(Arrays.asList("/public"), paths(nodes));
+    assertEquals(new QueryCoalescer.Stats(2, 0, 1), coalescer.getStats());
+  }
+
+  @Test
+  public void propagatesTheFailureToTheWaitingQueries() throws Exception {
+    RepositoryException failure = new RepositoryException("Invalid statement");
+    Future<Collection<Node>> leader = executor.submit(() ->
+        coalescer.getNodes(key("news"), jcr.getSession(), () -> {
+          awaitRelease();
+
+          throw failure;
+        }));
+
+    awaitExecutions(1);
+
+    Future<Collection<Node>> waiter = executor.submit(() ->
+        coalescer.getNodes(key("news"), jcr.getSession(), () -> nodes("/news")));
+
+    awaitCoalesced(1);
+    release.countDown();
+
+    assertFailure(failure, leader);
+
+    try {
+      waiter.get(5, TimeUnit.SECONDS);
+      fail("The waiting query did not fail");
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause().getCause());
+    }
+
+    // A failed query is not remembered
+    assertEquals(Arrays.asList("/news"),
+        paths(coalescer.getNodes(key("news"), jcr.getSession(), () -> nodes("/news"))));
+  }
+
+  private Collection<Node> nodes(String... paths) throws RepositoryException {
+    List<Node> nodes = new ArrayList<>();
+
+    for (String path : paths) {
+      nodes.add(jcr.getNode(path));
+    }
+
+    return nodes;
+  }
+
+  private void awaitRelease() throws RepositoryException {
+    try {
+      release.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      throw new RepositoryException(e);
+    }
+  }
+
+  private void awaitExecutions(long executions) throws InterruptedException {
+    while (coalescer.getStats().getExecutions() < executions) {
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+  }
+
+  private void awaitCoalesced(long coalesced) throws InterruptedException {
+    while (coalescer.getStats().getCoalesced() < coalesced) {
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+  }
+
+  private static void assertFailure(Exception failure, Future<?> call) throws Exception {
+    try {
+      call.get(5, TimeUnit.SECONDS);
+      fail("The query did not fail");
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+  }
+
+  private static List<String> paths(Collection<Node> nodes) throws RepositoryException {
+    List<String> paths = new ArrayList<>();
+
+    for (Node node : nodes) {
+      paths.add(node.getPath());
+    }
+
+    return paths;
+  }
+
+  private static QueryResultCache.Key key(String statement) {
+    return new QueryResultCache.Key(QueryResultCache.Kind.SEARCH, statement, "website",
+        Query.JCR_SQL2, -1, 0);
+  }
+}
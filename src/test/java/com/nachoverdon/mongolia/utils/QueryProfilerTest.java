@@ -0,0 +1,161 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.NodeIterator;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryProfilerTest {
+
+  private static final String STATEMENT = "SELECT * FROM [mgnl:page] WHERE [pages] > 100";
+
+  @Before
+  public void setUp() {
+    QueryProfiler.reset();
+    QueryProfiler.setExplainSlowQueries(false);
+  }
+
+  @After
+  public void tearDown() {
+    QueryProfiler.reset();
+    QueryProfiler.setExplainSlowQueries(true);
+    QueryProfiler.setSlowQueryMillis(QueryProfiler.DEFAULT_SLOW_QUERY_MILLIS);
+  }
+
+  @Test
+  public void ignoresTheWhitespaceAndTheValuesOfTheLiterals() {
+    String fingerprint = QueryProfiler.fingerprint(
+        "SELECT * FROM [mgnl:page] WHERE [title] = 'Dune' AND [pages] > 100");
+
+    assertEquals(16, fingerprint.length());
+    assertEquals(fingerprint, QueryProfiler.fingerprint(
+        "SELECT *  FROM [mgnl:page]\n  WHERE [title] = 'It''s' AND [pages] > 2.5"));
+    assertEquals(fingerprint, QueryProfiler.fingerprint(
+        "SELECT * FROM [mgnl:page] WHERE [title] = \"Dune\" AND [pages] > 0"));
+    assertNotEquals(fingerprint, QueryProfiler.fingerprint(
+        "SELECT * FROM [mgnl:page] WHERE [title] = 'Dune' AND [pages] < 100"));
+    assertNotEquals(fingerprint, QueryProfiler.fingerprint(
+        "SELECT * FROM [mgnl:page2] WHERE [title] = 'Dune' AND [pages] > 100"));
+  }
+
+  @Test
+  public void approximatesThePercentilesWithTheBucketBounds() {
+    // 5 executions of up to 1ms, 4 of up to 10ms and 1 of over 10s
+    List<Long> histogram = histogram();
+
+    histogram.set(0, 5L);
+    histogram.set(3, 4L);
+    histogram.set(QueryProfiler.BUCKETS.length, 1L);
+
+    QueryProfiler.Stats stats = stats(histogram, 12000);
+
+    assertEquals(1, stats.getPercentileMillis(0));
+    assertEquals(1, stats.getPercentileMillis(50));
+    assertEquals(10, stats.getPercentileMillis(90));
+    assertEquals(12000, stats.getPercentileMillis(99));
+    assertEquals(12000, stats.getPercentileMillis(100));
+
+    // No bound higher than the maximum latency
+    histogram = histogram();
+    histogram.set(3, 10L);
+
+    assertEquals(7, stats(histogram, 7).getPercentileMillis(50));
+    assertEquals(0, stats(histogram(), 0).getPercentileMillis(99));
+  }
+
+  @Test
+  public void logsTheSlowExecutionsBeforeTheirResultsAreRead() throws Exception {
+    QueryProfiler.setSlowQueryMillis(5);
+
+    Query query = QueryProfiler.profile(query(20), "website", Collections.emptyMap(), 0);
+    String fingerprint = QueryProfiler.fingerprint(STATEMENT);
+
+    query.execute();
+
+    QueryProfiler.Stats stats = QueryProfiler.getStats("website", fingerprint);
+
+    assertEquals(1, stats.getExecutions());
+    assertEquals(1, stats.getSlowExecutions());
+    assertEquals(0, stats.getCompleted());
+  }
+
+  @Test
+  public void recordsTheExecutionsWhoseResultsAreAbandoned() throws Exception {
+    String fingerprint = QueryProfiler.fingerprint(STATEMENT);
+
+    readFirstNode();
+
+    long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+    while (QueryProfiler.getStats("website", fingerprint).getCompleted() == 0
+        && System.nanoTime() < timeout) {
+      System.gc();
+      Thread.sleep(10);
+    }
+
+    QueryProfiler.Stats stats = QueryProfiler.getStats("website", fingerprint);
+
+    assertEquals(1, stats.getCompleted());
+    assertEquals(1, stats.getPartial());
+    assertEquals(1, stats.getRows());
+  }
+
+  /**
+   * Reads only the first node of an execution, leaving its results unreachable once it returns.
+   */
+  private static void readFirstNode() throws Exception {
+    Query query = QueryProfiler.profile(query(0), "website", Collections.emptyMap(), 0);
+
+    query.execute().getNodes().nextNode();
+  }
+
+  private static List<Long> histogram() {
+    return new ArrayList<>(Collections.nCopies(QueryProfiler.BUCKETS.length + 1, 0L));
+  }
+
+  private static QueryProfiler.Stats stats(List<Long> histogram, long maxMillis) {
+    long completed = histogram.stream().mapToLong(Long::longValue).sum();
+
+    return new QueryProfiler.Stats("fingerprint", "website", STATEMENT, completed, completed, 0, 0,
+        0, 0, 0, maxMillis, histogram, null, false);
+  }
+
+  /**
+   * A query of {@link #STATEMENT} that takes some time to execute and has endless results.
+   */
+  private static Query query(long executeMillis) {
+    NodeIterator nodes = proxy(NodeIterator.class, method -> method.equals("hasNext") ? true
+        : null);
+    QueryResult result = proxy(QueryResult.class, method -> nodes);
+
+    return proxy(Query.class, method -> {
+      if (method.equals("getStatement")) {
+        return STATEMENT;
+      }
+
+      Thread.sleep(executeMillis);
+
+      return result;
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return (T) Proxy.newProxyInstance(QueryProfilerTest.class.getClassLoader(),
+        new Class<?>[] {type}, (proxy, method, args) -> handler.handle(method.getName()));
+  }
+
+  private interface Handler {
+    Object handle(String method) throws Exception;
+  }
+}
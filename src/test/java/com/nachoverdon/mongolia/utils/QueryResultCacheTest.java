@@ -0,0 +1,134 @@
+package com.nachoverdon.mongolia.utils;
+
+import static com.nachoverdon.mongolia.FakeEvents.event;
+import static org.junit.Assert.assertEquals;
+
+import com.nachoverdon.mongolia.FakeEvents;
+import info.magnolia.observation.WorkspaceEventListenerRegistration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+
+  private final Map<String, EventListener> listeners = new HashMap<>();
+  private final Map<String, String> paths = new HashMap<>();
+  private final Map<String, Integer> unregistrations = new HashMap<>();
+  private final AtomicInteger loads = new AtomicInteger();
+  private QueryResultCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new ObservedCache(2, 1, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void cachesTheResultsOfEachQuery() throws Exception {
+    assertEquals(1, get(cache, "news", "website"));
+    assertEquals(1, get(cache, "news", "website"));
+    assertEquals(2, get(cache, "news", "dam"));
+    assertEquals(3, get(cache, "events", "website"));
+    assertEquals(1, cache.getStats().getHits());
+    assertEquals(3, cache.getStats().getMisses());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedResults() throws Exception {
+    get(cache, "news", "website");
+    get(cache, "events", "website");
+    get(cache, "news", "website");
+    get(cache, "shows", "website");
+
+    assertEquals(1, cache.getStats().getEvictions());
+    assertEquals(2, cache.getStats().getSize());
+    assertEquals(1, get(cache, "news", "website"));
+    assertEquals(4, get(cache, "events", "website"));
+  }
+
+  @Test
+  public void expiresTheResults() throws Exception {
+    QueryResultCache expiring = new ObservedCache(2, 1, TimeUnit.NANOSECONDS);
+
+    get(expiring, "news", "website");
+    TimeUnit.MILLISECONDS.sleep(1);
+
+    assertEquals(2, get(expiring, "news", "website"));
+  }
+
+  @Test
+  public void invalidatesTheResultsOfTheChangedWorkspaceOncePerBatch() throws Exception {
+    cache.setWatchedPath("website", "/site");
+    get(cache, "news", "website");
+    get(cache, "news", "dam");
+
+    assertEquals("/site", paths.get("website"));
+    assertEquals("/", paths.get("dam"));
+
+    listeners.get("website").onEvent(FakeEvents.of(event(Event.NODE_ADDED, "/site/news/1"),
+        event(Event.PROPERTY_CHANGED, "/site/news/1/title")));
+
+    assertEquals(1, cache.getStats().getInvalidations());
+    assertEquals(3, get(cache, "news", "website"));
+    assertEquals(2, get(cache, "news", "dam"));
+  }
+
+  @Test
+  public void doesNotCacheTheResultsLoadedWhileInvalidating() throws Exception {
+    long count = cache.get(key("news", "website"), () -> {
+      // The workspace changes while the query is executed
+      listeners.get("website").onEvent(FakeEvents.of(event(Event.NODE_REMOVED, "/news/1")));
+
+      return (long) loads.incrementAndGet();
+    });
+
+    assertEquals(1, count);
+    assertEquals(0, cache.getStats().getSize());
+    assertEquals(2, get(cache, "news", "website"));
+    assertEquals(2, get(cache, "news", "website"));
+  }
+
+  @Test
+  public void unregistersTheListenersOnShutdown() throws Exception {
+    get(cache, "news", "website");
+    cache.shutdown();
+
+    assertEquals(Collections.singletonMap("website", 1), unregistrations);
+    assertEquals(0, cache.getStats().getSize());
+  }
+
+  private long get(QueryResultCache target, String statement, String workspace)
+      throws RepositoryException {
+    return target.get(key(statement, workspace), () -> (long) loads.incrementAndGet());
+  }
+
+  private static QueryResultCache.Key key(String statement, String workspace) {
+    return new QueryResultCache.Key(QueryResultCache.Kind.COUNT, statement, workspace,
+        Query.JCR_SQL2, -1, 0);
+  }
+
+  /**
+   * Captures the listeners instead of registering them on the repository.
+   */
+  private class ObservedCache extends QueryResultCache {
+    private ObservedCache(int maxSize, long ttl, TimeUnit unit) {
+      super(maxSize, ttl, unit);
+    }
+
+    @Override
+    protected WorkspaceEventListenerRegistration.Handle register(String workspace, String path,
+                                                                 EventListener listener) {
+      listeners.put(workspace, listener);
+      paths.put(workspace, path);
+
+      return () -> unregistrations.merge(workspace, 1, Integer::sum);
+    }
+  }
+}
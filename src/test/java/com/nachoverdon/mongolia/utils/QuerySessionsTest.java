@@ -0,0 +1,47 @@
+package com.nachoverdon.mongolia.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class QuerySessionsTest {
+
+  @After
+  public void tearDown() {
+    while (QuerySessions.current() != null) {
+      QuerySessions.current().close();
+    }
+  }
+
+  @Test
+  public void restoresTheOuterScopeWhenANestedOneIsClosed() {
+    QuerySessions outer = QuerySessions.open();
+    QuerySessions inner = QuerySessions.openForUser();
+
+    assertSame(inner, QuerySessions.current());
+    assertTrue(QuerySessions.isUserScope());
+
+    inner.close();
+    // Closing a scope twice has no effect
+    inner.close();
+
+    assertSame(outer, QuerySessions.current());
+    assertFalse(QuerySessions.isUserScope());
+
+    outer.close();
+
+    assertNull(QuerySessions.current());
+  }
+
+  @Test
+  public void loadsWithTheSystemSessionsInsideAUserScope() throws Exception {
+    try (QuerySessions scope = QuerySessions.openForUser()) {
+      assertFalse(QuerySessions.withSystemSessions(QuerySessions::isUserScope));
+      assertSame(scope, QuerySessions.current());
+    }
+  }
+}